@@ -0,0 +1,78 @@
+package com.gengzi.sftp.cache;
+
+
+import com.gengzi.sftp.nio.S3SftpFileSystem;
+import com.gengzi.sftp.nio.S3SftpPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 不存在的key的缓存（负缓存）
+ * 客户端经常探测 .filepart、锁文件等并不存在的文件，记录短时间内已知不存在的key，避免重复的 404 HEAD 请求
+ */
+public class AbsentKeyCacheUtil {
+    private static final Logger logger = LoggerFactory.getLogger(AbsentKeyCacheUtil.class);
+
+    /**
+     * 判断key是否已知不存在
+     *
+     * @param s3SftpPath
+     * @param noDirectory 是否还要求该路径也不是目录
+     * @return
+     */
+    public static boolean isAbsent(S3SftpPath s3SftpPath, boolean noDirectory) {
+        try {
+            String key = s3SftpPath.getKey();
+            if (!UserPathFileAttributesCacheUtil.inUserRoot(s3SftpPath.getFileSystem(), key)) {
+                return false;
+            }
+            boolean absent = UserPathFileAttributesCacheUtil.getMetadataIndex(s3SftpPath.getFileSystem()).isAbsent(key, noDirectory);
+            logger.trace("AbsentKeyCache isAbsent key:{}, noDirectory:{}, absent:{}", key, noDirectory, absent);
+            return absent;
+        } catch (Exception e) {
+            logger.error("AbsentKeyCache isAbsent error !!! exception:{}", e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * 记录不存在的key
+     *
+     * @param s3SftpPath
+     * @param noDirectory 该路径是否也不是目录
+     */
+    public static void putAbsent(S3SftpPath s3SftpPath, boolean noDirectory) {
+        try {
+            String key = s3SftpPath.getKey();
+            if (!UserPathFileAttributesCacheUtil.inUserRoot(s3SftpPath.getFileSystem(), key)) {
+                return;
+            }
+            UserPathFileAttributesCacheUtil.getMetadataIndex(s3SftpPath.getFileSystem()).markAbsent(key, noDirectory);
+            logger.debug("AbsentKeyCache putAbsent key:{}, noDirectory:{}", key, noDirectory);
+        } catch (Exception e) {
+            logger.error("AbsentKeyCache putAbsent error !!! exception:{}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * key被创建（上传、创建目录、复制或移动到该key）时清除记录
+     *
+     * @param sftpFileSystem
+     * @param key            被创建的key
+     */
+    public static void removeAbsent(S3SftpFileSystem sftpFileSystem, String key) {
+        try {
+            MetadataIndex metadataIndex = UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem);
+            metadataIndex.clearAbsent(key);
+            CacheInvalidationBus.publish(CacheInvalidationBus.Type.ABSENT, metadataIndex.scope(), key);
+            logger.debug("AbsentKeyCache removeAbsent key:{}", key);
+        } catch (Exception e) {
+            logger.error("AbsentKeyCache removeAbsent error !!! exception:{}", e.getMessage(), e);
+        }
+    }
+
+    public static String getCacheStats(S3SftpFileSystem sftpFileSystem) {
+        return UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).getAbsentStats();
+    }
+
+}
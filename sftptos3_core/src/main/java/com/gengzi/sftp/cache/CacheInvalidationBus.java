@@ -0,0 +1,337 @@
+package com.gengzi.sftp.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 集群节点之间的元信息缓存失效广播
+ * <p>
+ * 每个节点有自己的 {@link CacheManager}，一个节点上的写入（上传、删除、重命名、创建目录）只会使本节点的缓存失效。
+ * 本类通过 UDP 把失效消息发送给配置的所有对等节点，对等节点收到后使自己的缓存失效（不再转发）。
+ * UDP 不保证送达，丢失的消息仍由缓存过期时间兜底。
+ * 对等节点列表可以包含自己，发送者会忽略自己发出的消息，因此所有节点可以使用相同的配置。
+ * 对等节点的地址启动时解析一次，之后由后台线程定时（以及发送失败后）重新解析，发送时不做 DNS 查询
+ */
+public final class CacheInvalidationBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+    private static final int MAGIC = 0x53335349;
+    private static final byte VERSION = 1;
+    private static final int MAX_PACKET_SIZE = 65507;
+    private static final String THREAD_NAME = "sftptos3-cache-invalidation-thread";
+    private static final String RESOLVE_THREAD_NAME = "sftptos3-cache-invalidation-resolve-thread";
+    // 定时重新解析对等节点地址的间隔
+    private static final long RESOLVE_INTERVAL_SECONDS = 30;
+
+    private static volatile CacheInvalidationBus shared;
+
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final DatagramSocket socket;
+    private final List<Peer> peers;
+    private final Consumer<Invalidation> listener;
+    private final Thread receiveThread;
+    private final ScheduledExecutorService resolveExecutor;
+    private volatile boolean closed;
+
+    /**
+     * @param port     本节点监听的 UDP 端口
+     * @param peers    对等节点，host:port
+     * @param listener 收到其他节点的失效消息时调用
+     * @throws SocketException 端口无法监听
+     */
+    public CacheInvalidationBus(int port, List<String> peers, Consumer<Invalidation> listener) throws SocketException {
+        this.socket = new DatagramSocket(port);
+        this.peers = parsePeers(peers);
+        this.listener = listener;
+        this.receiveThread = new Thread(this::receiveLoop, THREAD_NAME);
+        this.receiveThread.setDaemon(true);
+        this.receiveThread.start();
+        this.peers.forEach(Peer::resolve);
+        this.resolveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, RESOLVE_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 对等节点可能晚于本节点启动或者地址发生变化
+        this.resolveExecutor.scheduleWithFixedDelay(() -> this.peers.forEach(Peer::resolve),
+                RESOLVE_INTERVAL_SECONDS, RESOLVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        logger.info("cache invalidation bus listen on udp port:{}, peers:{}", socket.getLocalPort(), peers);
+    }
+
+    /**
+     * 开启集群缓存失效广播，需要在服务启动时调用
+     *
+     * @param port  本节点监听的 UDP 端口，小于等于0表示不启用
+     * @param peers 对等节点，逗号分隔的 host:port
+     */
+    public static synchronized void configure(int port, String peers) {
+        if (shared != null) {
+            shared.close();
+            shared = null;
+        }
+        if (port <= 0) {
+            return;
+        }
+        List<String> peerList = new ArrayList<>();
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    peerList.add(peer.trim());
+                }
+            }
+        }
+        try {
+            shared = new CacheInvalidationBus(port, peerList, CacheInvalidationBus::applyToCacheManager);
+        } catch (SocketException e) {
+            logger.error("cache invalidation bus start failed, port:{}", port, e);
+        }
+    }
+
+    /**
+     * 广播一条失效消息，没有开启广播时不做任何事
+     *
+     * @param type  失效类型
+     * @param scope 元信息索引范围
+     * @param key   对象key
+     */
+    public static void publish(Type type, String scope, String key) {
+        CacheInvalidationBus bus = shared;
+        if (bus != null) {
+            bus.send(new Invalidation(type, scope, key));
+        }
+    }
+
+    /**
+     * 发送失效消息给所有对等节点
+     *
+     * @param invalidation 失效消息
+     */
+    public void send(Invalidation invalidation) {
+        if (closed || peers.isEmpty()) {
+            return;
+        }
+        byte[] data;
+        try {
+            data = encode(invalidation);
+        } catch (IOException e) {
+            logger.warn("cache invalidation encode error, key:{}", invalidation.key, e);
+            return;
+        }
+        if (data.length > MAX_PACKET_SIZE) {
+            logger.warn("cache invalidation too large, key:{}", invalidation.key);
+            return;
+        }
+        for (Peer peer : peers) {
+            // 使用已解析的地址，未解析的节点等待后台线程重新解析
+            InetSocketAddress address = peer.address;
+            if (address == null) {
+                logger.debug("cache invalidation peer unresolved:{}:{}", peer.host, peer.port);
+                continue;
+            }
+            try {
+                socket.send(new DatagramPacket(data, data.length, address));
+            } catch (IOException e) {
+                logger.debug("cache invalidation send to {} error:{}", address, e.getMessage());
+                // 地址可能已经变化，在后台重新解析
+                resolveLater(peer);
+            }
+        }
+    }
+
+    /**
+     * 本节点监听的端口
+     *
+     * @return
+     */
+    public int localPort() {
+        return socket.getLocalPort();
+    }
+
+    public void close() {
+        closed = true;
+        resolveExecutor.shutdownNow();
+        socket.close();
+    }
+
+    private void resolveLater(Peer peer) {
+        try {
+            resolveExecutor.execute(peer::resolve);
+        } catch (RejectedExecutionException e) {
+            logger.debug("cache invalidation bus closed, skip resolve {}:{}", peer.host, peer.port);
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+        while (!closed) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("cache invalidation receive error:{}", e.getMessage());
+                }
+                continue;
+            }
+            try {
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    logger.debug("cache invalidation unknown packet from {}", packet.getSocketAddress());
+                    continue;
+                }
+                if (in.readLong() == nodeId) {
+                    // 自己发出的消息
+                    continue;
+                }
+                Type type = Type.values()[in.readByte()];
+                Invalidation invalidation = new Invalidation(type, in.readUTF(), in.readUTF());
+                logger.debug("cache invalidation received from {}: {}", packet.getSocketAddress(), invalidation);
+                listener.accept(invalidation);
+            } catch (Exception e) {
+                logger.warn("cache invalidation bad packet from {}:{}", packet.getSocketAddress(), e.getMessage());
+            }
+        }
+    }
+
+    private byte[] encode(Invalidation invalidation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + invalidation.key.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(nodeId);
+        out.writeByte(invalidation.type.ordinal());
+        out.writeUTF(invalidation.scope);
+        out.writeUTF(invalidation.key);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 在本节点的缓存上执行其他节点的失效，不会再次广播
+     */
+    private static void applyToCacheManager(Invalidation invalidation) {
+        MetadataIndex index = CacheManager.getInstance().findMetadataIndex(invalidation.scope);
+        if (index == null) {
+            return;
+        }
+        switch (invalidation.type) {
+            case ATTRIBUTES:
+                index.removeAttributes(invalidation.key);
+                break;
+            case LISTING:
+                index.removeListing(invalidation.key);
+                break;
+            case TREE:
+                index.invalidateTree(invalidation.key);
+                break;
+            case ABSENT:
+                index.clearAbsent(invalidation.key);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static List<Peer> parsePeers(List<String> peers) {
+        List<Peer> result = new ArrayList<>();
+        for (String peer : peers) {
+            int separator = peer.lastIndexOf(':');
+            if (separator <= 0 || separator == peer.length() - 1) {
+                throw new IllegalArgumentException("cache invalidation peer must be host:port, but:" + peer);
+            }
+            result.add(new Peer(peer.substring(0, separator), Integer.parseInt(peer.substring(separator + 1))));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * 失效类型，与 {@link MetadataIndex} 的失效方法对应
+     */
+    public enum Type {
+        // 文件或目录属性
+        ATTRIBUTES,
+        // 目录列表
+        LISTING,
+        // 目录及其子树
+        TREE,
+        // key被创建，清除不存在记录
+        ABSENT
+    }
+
+    /**
+     * 一条失效消息
+     */
+    public static final class Invalidation {
+        private final Type type;
+        private final String scope;
+        private final String key;
+
+        public Invalidation(Type type, String scope, String key) {
+            this.type = type;
+            this.scope = scope;
+            this.key = key == null ? "" : key;
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        public String scope() {
+            return scope;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + scope + " " + key;
+        }
+    }
+
+    private static final class Peer {
+        private final String host;
+        private final int port;
+        // 最近一次解析成功的地址，未解析成功时为null
+        private volatile InetSocketAddress address;
+
+        private Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * 解析地址（会阻塞在 DNS 查询上，只在启动时和后台线程中调用），解析失败时保留上一次的地址
+         */
+        private void resolve() {
+            InetSocketAddress resolved = new InetSocketAddress(host, port);
+            if (resolved.isUnresolved()) {
+                logger.debug("cache invalidation peer unresolved:{}:{}", host, port);
+                return;
+            }
+            address = resolved;
+        }
+    }
+}
@@ -1,26 +1,65 @@
 package com.gengzi.sftp.cache;
 
 
-import com.github.benmanes.caffeine.cache.Cache;
-
-import java.util.HashMap;
-import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 缓存管理器
- * 单例模式，统一管理所有缓存实例
+ * 单例模式，统一管理所有元信息索引（每个存储桶一棵前缀树）
+ * <p>
+ * 所有索引共享一个堆内存预算（按 {@link MetadataWeigher} 估算的字节数），
+ * 超过预算时由后台线程按子树最近访问时间从最冷的子树开始淘汰，直到降到预算的90%。
+ * 写入缓存的请求线程只负责触发，不遍历索引
  */
 public class CacheManager {
 
+    private static final Logger logger = LoggerFactory.getLogger(CacheManager.class);
+
+    // 默认属性和目录列表60秒过期
+    public static final long DEFAULT_ATTRIBUTES_TTL_MILLIS = 60_000L;
+    public static final long DEFAULT_LISTING_TTL_MILLIS = 60_000L;
+    // 默认不存在的key记录5秒过期，key可能随时被其他客户端创建
+    public static final long DEFAULT_ABSENT_TTL_MILLIS = 5_000L;
+    // 默认写入45秒后被读取的条目在后台刷新
+    public static final long DEFAULT_REFRESH_AFTER_MILLIS = 45_000L;
+    // 默认堆内存预算 64mb
+    public static final long DEFAULT_METADATA_MAX_BYTES = 64L * 1024 * 1024;
+    // 淘汰时对节点最近访问时间的抽样数
+    private static final int EVICTION_SAMPLES = 1024;
 
     // 单例实例
     private static final CacheManager INSTANCE = new CacheManager();
-    // 缓存容器：存储所有缓存实例
-    private final Map<String, Cache<String, Object>> caches = new HashMap<>();
-
-    // 私有构造器，初始化所有缓存
+    // 索引容器：存储桶 -> 前缀树
+    private final ConcurrentHashMap<String, MetadataIndex> metadataIndexes = new ConcurrentHashMap<>();
+    private final AtomicLong metadataWeight = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    // 是否已经提交了淘汰任务
+    private final AtomicBoolean evictScheduled = new AtomicBoolean();
+    private final ExecutorService evictExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sftptos3-metadata-evict-thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long attributesTtlMillis = DEFAULT_ATTRIBUTES_TTL_MILLIS;
+    private volatile long listingTtlMillis = DEFAULT_LISTING_TTL_MILLIS;
+    private volatile long metadataMaxBytes = DEFAULT_METADATA_MAX_BYTES;
+    private volatile long absentTtlMillis = DEFAULT_ABSENT_TTL_MILLIS;
+    private volatile long refreshAfterMillis = DEFAULT_REFRESH_AFTER_MILLIS;
+    private volatile MetadataSnapshot snapshot;
+
+    // 私有构造器
     private CacheManager() {
-        initCaches();
     }
 
     // 获取单例实例
@@ -28,44 +67,179 @@ public class CacheManager {
         return INSTANCE;
     }
 
-    // 初始化所有缓存
-    private void initCaches() {
-        caches.put(CacheMode.USER_PATH_FILE_ATTRIBUTES_CACHE.cacheMode, CaffeineCacheConfig.getUserPathFileAttributesCache());
-        caches.put(CacheMode.DIRECTORY_CONTENTS_NAMES_CACHE.cacheMode, CaffeineCacheConfig.getDirectoryContentsNamesCache());
+    /**
+     * 设置元信息缓存的堆内存预算和过期时间，需要在服务启动时调用
+     *
+     * @param maxBytes            堆内存预算（字节）
+     * @param attributesTtlMillis 文件属性过期时间
+     * @param listingTtlMillis    目录列表过期时间
+     * @param absentTtlMillis     不存在的key记录过期时间
+     * @param refreshAfterMillis  属性和目录列表写入后多久被读取时在后台刷新，小于等于0表示不刷新
+     */
+    public static void configure(long maxBytes, long attributesTtlMillis, long listingTtlMillis, long absentTtlMillis,
+                                 long refreshAfterMillis) {
+        logger.info("metadata cache max bytes:{}, attributes ttl:{}ms, listing ttl:{}ms, absent ttl:{}ms, refresh after:{}ms",
+                maxBytes, attributesTtlMillis, listingTtlMillis, absentTtlMillis, refreshAfterMillis);
+        CacheManager manager = INSTANCE;
+        manager.metadataMaxBytes = Math.max(0L, maxBytes);
+        manager.attributesTtlMillis = attributesTtlMillis;
+        manager.listingTtlMillis = listingTtlMillis;
+        manager.absentTtlMillis = absentTtlMillis;
+        manager.refreshAfterMillis = refreshAfterMillis;
+        if (manager.metadataWeight.get() > manager.metadataMaxBytes) {
+            manager.scheduleEviction();
+        }
     }
 
-    // 获取指定缓存
-    public Cache<String, Object> getCache(String cacheName) {
-        Cache<String, Object> cache = caches.get(cacheName);
-        if (cache == null) {
-            throw new IllegalArgumentException("未找到缓存配置: " + cacheName);
+    /**
+     * 获取存储桶对应的元信息索引
+     *
+     * @param scope 索引范围
+     * @return
+     */
+    public MetadataIndex getMetadataIndex(String scope) {
+        MetadataIndex index = metadataIndexes.computeIfAbsent(scope, s -> new MetadataIndex(s, this));
+        MetadataSnapshot metadataSnapshot = snapshot;
+        if (metadataSnapshot != null) {
+            // 第一次使用时从快照恢复
+            metadataSnapshot.restore(index);
         }
-        return cache;
+        return index;
+    }
+
+    /**
+     * 获取已经存在的元信息索引
+     *
+     * @param scope 索引范围
+     * @return 不存在时返回 null
+     */
+    public MetadataIndex findMetadataIndex(String scope) {
+        return metadataIndexes.get(scope);
     }
 
+    /**
+     * 当前所有索引估算占用的堆内存（字节）
+     *
+     * @return
+     */
+    public long metadataWeight() {
+        return metadataWeight.get();
+    }
+
+    public long metadataMaxBytes() {
+        return metadataMaxBytes;
+    }
 
-    // 获取用户缓存（简化API）
-    public Cache<String, Object> getUserPathFileAttributesCache() {
-        return getCache(CacheMode.USER_PATH_FILE_ATTRIBUTES_CACHE.cacheMode);
+    /**
+     * 单个条目的上限，超过预算的十分之一的条目不缓存，避免一个大目录挤掉其他所有缓存
+     *
+     * @return
+     */
+    long maxEntryBytes() {
+        return metadataMaxBytes / 10;
     }
 
-    public Cache<String, Object> getDirectoryContentsNamesCache() {
-        return getCache(CacheMode.DIRECTORY_CONTENTS_NAMES_CACHE.cacheMode);
+    Collection<MetadataIndex> metadataIndexes() {
+        return metadataIndexes.values();
     }
 
-    enum CacheMode {
-        USER_PATH_FILE_ATTRIBUTES_CACHE("s3sftp.userPathFileAttributes"),
-        DIRECTORY_CONTENTS_NAMES_CACHE("s3sftp.directoryContentsNamesCache");
+    void setSnapshot(MetadataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
 
+    /**
+     * 属性和目录列表中较长的过期时间
+     *
+     * @return
+     */
+    long maxTtlMillis() {
+        return Math.max(attributesTtlMillis, listingTtlMillis);
+    }
 
-        String cacheMode;
+    long refreshAfterMillis() {
+        return refreshAfterMillis;
+    }
 
-        CacheMode(String cacheMode) {
-            this.cacheMode = cacheMode;
+    long attributesTtlMillis() {
+        return attributesTtlMillis;
+    }
+
+    long listingTtlMillis() {
+        return listingTtlMillis;
+    }
+
+    long absentTtlMillis() {
+        return absentTtlMillis;
+    }
+
+    void addMetadataWeight(long delta) {
+        long weight = metadataWeight.addAndGet(delta);
+        if (delta > 0 && weight > metadataMaxBytes) {
+            scheduleEviction();
         }
+    }
 
-        public String getCacheMode() {
-            return cacheMode;
+    /**
+     * 提交后台淘汰任务，已经提交且还未开始执行时不重复提交
+     */
+    private void scheduleEviction() {
+        if (evictScheduled.compareAndSet(false, true)) {
+            evictExecutor.execute(() -> {
+                evictScheduled.set(false);
+                evictColdSubtrees();
+            });
+        }
+    }
+
+    /**
+     * 淘汰最久没有访问的子树，同一时间只有一个线程执行淘汰
+     * <p>
+     * 不对全部节点排序：先遍历一次对节点的最近访问时间做蓄水池抽样，按需要释放的比例从样本中取淘汰的时间界限，
+     * 再自上而下遍历一次，最近访问时间不晚于界限的子树整体淘汰（父节点不早于子节点，子树内都更冷，不再深入）。
+     * 按节点数估算的比例与实际权重有偏差，释放不够时再来一轮
+     */
+    private void evictColdSubtrees() {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = metadataMaxBytes / 10 * 9;
+            long weight;
+            while ((weight = metadataWeight.get()) > target) {
+                long[] samples = new long[EVICTION_SAMPLES];
+                long[] seen = new long[1];
+                for (MetadataIndex index : metadataIndexes.values()) {
+                    index.forEachEvictionCandidate(node -> {
+                        long n = seen[0]++;
+                        if (n < EVICTION_SAMPLES) {
+                            samples[(int) n] = node.lastAccess();
+                        } else {
+                            long slot = ThreadLocalRandom.current().nextLong(n + 1);
+                            if (slot < EVICTION_SAMPLES) {
+                                samples[(int) slot] = node.lastAccess();
+                            }
+                        }
+                    });
+                }
+                int sampled = (int) Math.min(seen[0], EVICTION_SAMPLES);
+                if (sampled == 0) {
+                    return;
+                }
+                Arrays.sort(samples, 0, sampled);
+                double fraction = (double) (weight - target) / weight;
+                long cutoff = samples[Math.min(sampled - 1, (int) Math.ceil(fraction * sampled))];
+                long released = 0;
+                for (MetadataIndex index : metadataIndexes.values()) {
+                    released += index.evictNotAccessedSince(cutoff);
+                }
+                logger.debug("metadata cache evicted {} bytes not accessed since {}, weight {} -> {}",
+                        released, cutoff, weight, metadataWeight.get());
+                if (released == 0) {
+                    return;
+                }
+            }
+        } finally {
+            evictLock.unlock();
         }
     }
 
@@ -2,9 +2,7 @@ package com.gengzi.sftp.cache;
 
 
 import com.gengzi.sftp.nio.S3SftpFileSystem;
-import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
 import com.gengzi.sftp.nio.constans.Constants;
-import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,7 +11,6 @@ import java.util.stream.Collectors;
 
 public class DirectoryContentsNamesCacheUtil {
     private static final Logger logger = LoggerFactory.getLogger(UserPathFileAttributesCacheUtil.class);
-    private static final CacheManager cacheManager = CacheManager.getInstance();
 
 
     /**
@@ -25,11 +22,13 @@ public class DirectoryContentsNamesCacheUtil {
      */
     public static List<String> getCacheValue(S3SftpFileSystem sftpFileSystem, String path) {
         try {
-            String cacheKey = getCacheKey(sftpFileSystem, path);
-            List<String> dirs = (List<String>) cacheManager.getDirectoryContentsNamesCache().getIfPresent(cacheKey);
+            if (!UserPathFileAttributesCacheUtil.inUserRoot(sftpFileSystem, path)) {
+                return null;
+            }
+            List<String> dirs = UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).getListing(path);
             if (logger.isTraceEnabled()) {
                 String directoriesStr = (dirs != null) ? dirs.stream().collect(Collectors.joining("\n")) : "null";
-                logger.trace("DirectoryContentsNamesCache getCacheValue cacheKey:{}, directories:{}", cacheKey, directoriesStr);
+                logger.trace("DirectoryContentsNamesCache getCacheValue path:{}, directories:{}", path, directoriesStr);
             }
             return dirs;
         } catch (Exception e) {
@@ -38,20 +37,46 @@ public class DirectoryContentsNamesCacheUtil {
         return null;
     }
 
-    private static String getCacheKey(S3SftpFileSystem sftpFileSystem, String path) {
-        S3SftpNioSpiConfiguration configuration = sftpFileSystem.configuration();
-        String cacheKey = configuration.getDirectoryContentsNamesCacheKey(path);
-        logger.debug("Generated cache key for path '{}': {}", path, cacheKey);
-        return cacheKey;
+    /**
+     * 获取目录列表以及列出时得到的子项属性
+     *
+     * @param sftpFileSystem
+     * @param path           目录
+     * @return 没有缓存时返回 null
+     */
+    public static DirectoryListing getCacheListing(S3SftpFileSystem sftpFileSystem, String path) {
+        try {
+            if (!UserPathFileAttributesCacheUtil.inUserRoot(sftpFileSystem, path)) {
+                return null;
+            }
+            return UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).getDirectoryListing(path);
+        } catch (Exception e) {
+            logger.error("DirectoryContentsNamesCache getCacheListing error !!! exception:{}", e.getMessage(), e);
+        }
+        return null;
     }
 
     public static void putCacheValue(S3SftpFileSystem sftpFileSystem, String path, List<String> directories) {
+        putCacheValue(sftpFileSystem, path, directories == null ? null : new DirectoryListing(directories, null));
+    }
+
+    /**
+     * 缓存目录列表，同时保存列出时得到的子项属性
+     *
+     * @param sftpFileSystem
+     * @param path           目录
+     * @param listing        名称和子项属性
+     */
+    public static void putCacheValue(S3SftpFileSystem sftpFileSystem, String path, DirectoryListing listing) {
         try {
-            String cacheKey = getCacheKey(sftpFileSystem, path);
-            cacheManager.getDirectoryContentsNamesCache().put(cacheKey, directories);
+            if (!UserPathFileAttributesCacheUtil.inUserRoot(sftpFileSystem, path)) {
+                return;
+            }
+            UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).putListing(path, listing);
             if (logger.isDebugEnabled()) {
+                List<String> directories = listing == null ? null : listing.names();
                 String directoriesStr = (directories != null) ? directories.stream().collect(Collectors.joining("\n")) : "null";
-                logger.debug("DirectoryContentsNamesCache putCacheValue cacheKey:{}, directories:{}", cacheKey, directoriesStr);
+                logger.debug("DirectoryContentsNamesCache putCacheValue path:{}, directories:{}", path, directoriesStr);
             }
         } catch (Exception e) {
             logger.error("DirectoryContentsNamesCache putCacheValue error !!! exception:{}", e.getMessage(), e);
@@ -59,6 +84,39 @@ public class DirectoryContentsNamesCacheUtil {
 
     }
 
+    /**
+     * 目录列表缓存需要刷新时返回 true，只有一个调用者会得到 true，由它在后台刷新
+     *
+     * @param sftpFileSystem
+     * @param path           目录
+     * @return
+     */
+    public static boolean claimRefresh(S3SftpFileSystem sftpFileSystem, String path) {
+        try {
+            return UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).claimListingRefresh(path);
+        } catch (Exception e) {
+            logger.error("DirectoryContentsNamesCache claimRefresh error !!! exception:{}", e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * 写入后台刷新得到的目录列表，刷新期间缓存被失效时放弃
+     *
+     * @param sftpFileSystem
+     * @param path           目录
+     * @param listing        刷新得到的名称和子项属性
+     * @return 是否写入
+     */
+    public static boolean putRefreshedValue(S3SftpFileSystem sftpFileSystem, String path, DirectoryListing listing) {
+        try {
+            return UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).putRefreshedListing(path, listing);
+        } catch (Exception e) {
+            logger.error("DirectoryContentsNamesCache putRefreshedValue error !!! exception:{}", e.getMessage(), e);
+        }
+        return false;
+    }
+
     public static void removeCacheValue(S3SftpFileSystem sftpFileSystem, String path) {
         try {
             // 处理下path，如果是目录需要获取父目录，如果是文件，则获取文件所在目录
@@ -72,24 +130,34 @@ public class DirectoryContentsNamesCacheUtil {
                     removePathKey = path.substring(0, path.lastIndexOf(Constants.PATH_SEPARATOR) + 1);
                 }
             }
-            String cacheKey = getCacheKey(sftpFileSystem, removePathKey);
-            cacheManager.getDirectoryContentsNamesCache().invalidate(cacheKey);
-            logger.debug("DirectoryContentsNamesCache removeCacheValue cacheKey:{}, original path:{}, processed path:{}", cacheKey, path, removePathKey);
+            MetadataIndex metadataIndex = UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem);
+            metadataIndex.removeListing(removePathKey);
+            CacheInvalidationBus.publish(CacheInvalidationBus.Type.LISTING, metadataIndex.scope(), removePathKey);
+            logger.debug("DirectoryContentsNamesCache removeCacheValue original path:{}, processed path:{}", path, removePathKey);
         } catch (Exception e) {
             logger.error("DirectoryContentsNamesCache removeCacheValue error !!! exception:{}", e.getMessage(), e);
         }
+    }
 
+    /**
+     * 删除或重命名目录时，使目录下所有文件和子目录的属性、列表缓存失效，同时使父目录的列表失效
+     *
+     * @param sftpFileSystem
+     * @param dirPath        目录
+     */
+    public static void removeCacheTree(S3SftpFileSystem sftpFileSystem, String dirPath) {
+        try {
+            MetadataIndex metadataIndex = UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem);
+            metadataIndex.invalidateTree(dirPath);
+            CacheInvalidationBus.publish(CacheInvalidationBus.Type.TREE, metadataIndex.scope(), dirPath);
+            logger.debug("DirectoryContentsNamesCache removeCacheTree path:{}", dirPath);
+        } catch (Exception e) {
+            logger.error("DirectoryContentsNamesCache removeCacheTree error !!! exception:{}", e.getMessage(), e);
+        }
     }
 
-    public static String getCacheStats() {
-        CacheStats stats = cacheManager.getDirectoryContentsNamesCache().stats();
-        return String.format(
-                "DirectoryContentsNamesCache 缓存统计 - 命中率: %.2f%%, 加载次数: %d, 命中次数: %d, 未命中次数: %d",
-                stats.hitRate() * 100,
-                stats.loadCount(),
-                stats.hitCount(),
-                stats.missCount()
-        );
+    public static String getCacheStats(S3SftpFileSystem sftpFileSystem) {
+        return UserPathFileAttributesCacheUtil.getMetadataIndex(sftpFileSystem).getListingStats();
     }
 
 }
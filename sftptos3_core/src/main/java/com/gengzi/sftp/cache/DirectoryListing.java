@@ -0,0 +1,75 @@
+package com.gengzi.sftp.cache;
+
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 缓存的目录列表
+ * <p>
+ * 子项名称，以及列出目录时得到的子项属性；从缓存的列表打开目录时，目录项仍然携带属性，
+ * SSHD 读取属性时不需要再逐个查询。从快照恢复的列表没有子项属性
+ */
+public final class DirectoryListing {
+
+    private final List<String> names;
+    private final Map<String, ObjectHeadResponse> attributes;
+
+    /**
+     * @param names      子项名称
+     * @param attributes 子项名称对应的属性，可以为 null
+     */
+    public DirectoryListing(List<String> names, Map<String, ObjectHeadResponse> attributes) {
+        this.names = names;
+        this.attributes = attributes == null ? Collections.emptyMap() : attributes;
+    }
+
+    /**
+     * 由一次完整的列表结果创建
+     *
+     * @param listObjects 列表结果
+     * @return
+     */
+    public static DirectoryListing of(ListObjectsResponse listObjects) {
+        Map<String, ObjectHeadResponse> attributes = new HashMap<>();
+        collectAttributes(listObjects, attributes);
+        return new DirectoryListing(listObjects.getObjectsNames(), attributes);
+    }
+
+    /**
+     * 收集一页列表结果中文件和子目录的属性
+     *
+     * @param page       列表结果
+     * @param attributes 收集到的属性
+     */
+    public static void collectAttributes(ListObjectsResponse page, Map<String, ObjectHeadResponse> attributes) {
+        if (page.getObjects() != null) {
+            attributes.putAll(page.getObjects());
+        }
+        if (page.getPrefixes() != null) {
+            attributes.putAll(page.getPrefixes());
+        }
+    }
+
+    public List<String> names() {
+        return names;
+    }
+
+    /**
+     * 子项的属性
+     *
+     * @param name 子项名称
+     * @return 没有记录时返回 null
+     */
+    public ObjectHeadResponse attributes(String name) {
+        return attributes.get(name);
+    }
+
+    Map<String, ObjectHeadResponse> attributes() {
+        return attributes;
+    }
+}
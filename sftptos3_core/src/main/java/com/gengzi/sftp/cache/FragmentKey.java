@@ -0,0 +1,89 @@
+package com.gengzi.sftp.cache;
+
+import java.util.Objects;
+
+/**
+ * 共享分片缓存的key
+ * 同一对象的同一版本（ETag）、相同分片大小下的分片索引唯一确定一段数据
+ */
+public final class FragmentKey {
+
+    private final String endpoint;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final int fragmentSize;
+    private final int index;
+    private final int hash;
+
+    public FragmentKey(String endpoint, String bucket, String key, String eTag, int fragmentSize, int index) {
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.fragmentSize = fragmentSize;
+        this.index = index;
+        this.hash = Objects.hash(endpoint, bucket, key, eTag, fragmentSize, index);
+    }
+
+    /**
+     * 同一对象的其他分片
+     *
+     * @param index 分片索引
+     * @return
+     */
+    public FragmentKey withIndex(int index) {
+        return new FragmentKey(endpoint, bucket, key, eTag, fragmentSize, index);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String geteTag() {
+        return eTag;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FragmentKey)) {
+            return false;
+        }
+        FragmentKey that = (FragmentKey) o;
+        return fragmentSize == that.fragmentSize
+                && index == that.index
+                && key.equals(that.key)
+                && eTag.equals(that.eTag)
+                && bucket.equals(that.bucket)
+                && endpoint.equals(that.endpoint);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint + "/" + bucket + "/" + key + "@" + eTag + "#" + index;
+    }
+}
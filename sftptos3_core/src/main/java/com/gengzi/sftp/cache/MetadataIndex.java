@@ -0,0 +1,792 @@
+package com.gengzi.sftp.cache;
+
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 元信息前缀树索引
+ * <p>
+ * 一个存储桶一棵树，按路径分段组织，每个节点对应一个文件或目录，节点上保存该路径的属性和目录列表。
+ * 查找为 O(深度)，按路径分段查找子节点时直接比较key中的区间，不为每一段创建字符串；删除或重命名目录时整棵子树一起失效；
+ * 缓存的总量超过上限时由 {@link CacheManager} 按子树最近访问时间淘汰最冷的子树
+ */
+public final class MetadataIndex {
+
+    private static final char PATH_SEPARATOR_CHAR = '/';
+    // 写入快照的条目类型，不存在的key记录过期时间很短，不写入
+    private static final Slot[] SNAPSHOT_SLOTS = {Slot.ATTRIBUTES, Slot.DIRECTORY_ATTRIBUTES, Slot.LISTING};
+    // 查找子节点时复用的分段，每个线程一个
+    private static final ThreadLocal<Segment> PROBE = ThreadLocal.withInitial(Segment::new);
+
+    private final String scope;
+    private final CacheManager cacheManager;
+    private final Node root;
+    private final LongAdder attributesHitCount = new LongAdder();
+    private final LongAdder attributesMissCount = new LongAdder();
+    private final LongAdder listingHitCount = new LongAdder();
+    private final LongAdder listingMissCount = new LongAdder();
+    private final LongAdder absentHitCount = new LongAdder();
+
+    MetadataIndex(String scope, CacheManager cacheManager) {
+        this.scope = scope;
+        this.cacheManager = cacheManager;
+        this.root = new Node(null, new Segment(""), 0);
+    }
+
+    public String scope() {
+        return scope;
+    }
+
+    /**
+     * 获取文件或目录的属性
+     *
+     * @param key 对象key，以 / 结尾和不以 / 结尾的属性分开保存
+     * @return 不存在或已过期时返回 null
+     */
+    public ObjectHeadResponse getAttributes(String key) {
+        Node node = find(key, false);
+        Entry<ObjectHeadResponse> entry = null;
+        if (node != null) {
+            entry = live(node, hasTrailingSeparator(key) ? Slot.DIRECTORY_ATTRIBUTES : Slot.ATTRIBUTES);
+        }
+        if (entry == null) {
+            attributesMissCount.increment();
+            return null;
+        }
+        attributesHitCount.increment();
+        touch(node);
+        return entry.value;
+    }
+
+    public void putAttributes(String key, ObjectHeadResponse value) {
+        if (value == null) {
+            return;
+        }
+        long bytes = MetadataWeigher.attributesBytes(value);
+        if (bytes > cacheManager.maxEntryBytes()) {
+            removeAttributes(key);
+            return;
+        }
+        Node node = find(key, true);
+        set(node, hasTrailingSeparator(key) ? Slot.DIRECTORY_ATTRIBUTES : Slot.ATTRIBUTES, new Entry<>(value, bytes));
+        // 已经确认存在，不再是不存在的key
+        set(node, Slot.ABSENT, null);
+    }
+
+    public void removeAttributes(String key) {
+        Node node = find(key, false);
+        if (node != null) {
+            set(node, hasTrailingSeparator(key) ? Slot.DIRECTORY_ATTRIBUTES : Slot.ATTRIBUTES, null);
+            prune(node);
+        }
+    }
+
+    /**
+     * 获取目录下的文件和子目录名称
+     *
+     * @param dirKey 目录key，是否以 / 结尾都表示同一个目录
+     * @return 不存在或已过期时返回 null
+     */
+    public List<String> getListing(String dirKey) {
+        DirectoryListing listing = getDirectoryListing(dirKey);
+        return listing == null ? null : listing.names();
+    }
+
+    /**
+     * 获取目录下的文件和子目录名称，以及列出时得到的子项属性
+     *
+     * @param dirKey 目录key，是否以 / 结尾都表示同一个目录
+     * @return 不存在或已过期时返回 null
+     */
+    public DirectoryListing getDirectoryListing(String dirKey) {
+        Node node = find(dirKey, false);
+        Entry<DirectoryListing> entry = node == null ? null : live(node, Slot.LISTING);
+        if (entry == null) {
+            listingMissCount.increment();
+            return null;
+        }
+        listingHitCount.increment();
+        touch(node);
+        return entry.value;
+    }
+
+    public void putListing(String dirKey, List<String> names) {
+        putListing(dirKey, names == null ? null : new DirectoryListing(names, null));
+    }
+
+    public void putListing(String dirKey, DirectoryListing listing) {
+        if (listing == null || listing.names() == null) {
+            return;
+        }
+        long bytes = MetadataWeigher.listingBytes(listing);
+        if (bytes > cacheManager.maxEntryBytes()) {
+            removeListing(dirKey);
+            return;
+        }
+        Node node = find(dirKey, true);
+        set(node, Slot.LISTING, new Entry<>(listing, bytes));
+    }
+
+    /**
+     * 目录列表写入超过刷新时间后，第一个调用者获得刷新权（返回 true），由调用者在后台重新列出目录，
+     * 新列表写入之前其他读取者继续使用旧列表
+     *
+     * @param dirKey 目录key
+     * @return 是否需要由调用者刷新
+     */
+    public boolean claimListingRefresh(String dirKey) {
+        return claimRefresh(find(dirKey, false), Slot.LISTING);
+    }
+
+    /**
+     * 属性写入超过刷新时间后，第一个调用者获得刷新权
+     *
+     * @param key 对象key
+     * @return 是否需要由调用者刷新
+     */
+    public boolean claimAttributesRefresh(String key) {
+        return claimRefresh(find(key, false), hasTrailingSeparator(key) ? Slot.DIRECTORY_ATTRIBUTES : Slot.ATTRIBUTES);
+    }
+
+    /**
+     * 写入后台刷新得到的目录列表，刷新期间条目被失效或被重新写入时放弃（避免旧的刷新结果覆盖新的变更）
+     *
+     * @param dirKey  目录key
+     * @param listing 刷新得到的名称和子项属性
+     * @return 是否写入
+     */
+    public boolean putRefreshedListing(String dirKey, DirectoryListing listing) {
+        long bytes = MetadataWeigher.listingBytes(listing);
+        Node node = find(dirKey, false);
+        if (node == null || listing == null || listing.names() == null || bytes > cacheManager.maxEntryBytes()) {
+            return false;
+        }
+        return replaceClaimed(node, Slot.LISTING, new Entry<>(listing, bytes));
+    }
+
+    /**
+     * 写入后台刷新得到的属性，刷新期间条目被失效或被重新写入时放弃
+     *
+     * @param key   对象key
+     * @param value 刷新得到的属性
+     * @return 是否写入
+     */
+    public boolean putRefreshedAttributes(String key, ObjectHeadResponse value) {
+        long bytes = MetadataWeigher.attributesBytes(value);
+        Node node = find(key, false);
+        if (node == null || value == null || bytes > cacheManager.maxEntryBytes()) {
+            return false;
+        }
+        return replaceClaimed(node, hasTrailingSeparator(key) ? Slot.DIRECTORY_ATTRIBUTES : Slot.ATTRIBUTES,
+                new Entry<>(value, bytes));
+    }
+
+    public void removeListing(String dirKey) {
+        Node node = find(dirKey, false);
+        if (node != null) {
+            set(node, Slot.LISTING, null);
+            prune(node);
+        }
+    }
+
+    /**
+     * 判断key是否已知不存在
+     *
+     * @param key         对象key
+     * @param noDirectory 是否还要求该路径也不是目录（没有以 key/ 为前缀的对象）
+     * @return 已知不存在且未过期时返回 true
+     */
+    public boolean isAbsent(String key, boolean noDirectory) {
+        Node node = find(key, false);
+        Entry<Boolean> entry = node == null ? null : live(node, Slot.ABSENT);
+        if (entry == null || (noDirectory && !entry.value)) {
+            return false;
+        }
+        absentHitCount.increment();
+        return true;
+    }
+
+    /**
+     * 记录不存在的key，过期时间比属性缓存短
+     * 以 / 结尾的key只代表目录，不能说明同名文件不存在，不记录
+     *
+     * @param key         对象key
+     * @param noDirectory 该路径是否也不是目录
+     */
+    public void markAbsent(String key, boolean noDirectory) {
+        if (key == null || key.isEmpty() || hasTrailingSeparator(key)) {
+            return;
+        }
+        Node node = find(key, true);
+        Entry<Boolean> previous = live(node, Slot.ABSENT);
+        if (previous != null && previous.value && !noDirectory) {
+            // 已有更强的记录（文件和目录都不存在）
+            return;
+        }
+        set(node, Slot.ABSENT, new Entry<>(noDirectory, MetadataWeigher.absentBytes()));
+    }
+
+    /**
+     * key被创建时清除不存在记录，同时清除所有祖先的记录（祖先路径因此成为目录）
+     *
+     * @param key 对象key
+     */
+    public void clearAbsent(String key) {
+        Node node = root;
+        int length = key == null ? 0 : key.length();
+        int start = 0;
+        while (start < length && node != null) {
+            int end = key.indexOf(PATH_SEPARATOR_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                node = node.children.get(PROBE.get().set(key, start, end));
+                if (node != null && node.absent != null) {
+                    set(node, Slot.ABSENT, null);
+                    prune(node);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * 使目录及其下所有文件、子目录的缓存失效（删除或重命名目录时使用），同时使父目录的列表失效
+     *
+     * @param dirKey 目录key
+     */
+    public void invalidateTree(String dirKey) {
+        Node node = find(dirKey, false);
+        if (node != null && node != root) {
+            detach(node);
+            Node parent = node.parent;
+            set(parent, Slot.LISTING, null);
+            prune(parent);
+        } else if (node == root) {
+            for (Node child : root.children.values()) {
+                detach(child);
+            }
+            set(root, Slot.LISTING, null);
+        }
+    }
+
+    public String getAttributesStats() {
+        return stats("UserPathFileAttributesCache", attributesHitCount.sum(), attributesMissCount.sum());
+    }
+
+    public String getListingStats() {
+        return stats("DirectoryContentsNamesCache", listingHitCount.sum(), listingMissCount.sum());
+    }
+
+    public String getAbsentStats() {
+        return String.format("AbsentKeyCache 缓存统计 - 命中次数: %d", absentHitCount.sum());
+    }
+
+    /**
+     * 遍历可以淘汰的子树（不包括根节点），用于对最近访问时间抽样
+     *
+     * @param visitor 候选节点的访问者
+     */
+    void forEachEvictionCandidate(Consumer<Node> visitor) {
+        List<Node> stack = new ArrayList<>(root.children.values());
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            visitor.accept(node);
+            stack.addAll(node.children.values());
+        }
+    }
+
+    /**
+     * 自上而下淘汰最近访问时间不晚于 cutoff 的子树，父节点的访问时间不早于子节点，淘汰的子树不再深入
+     *
+     * @param cutoff 时间界限
+     * @return 释放的权重
+     */
+    long evictNotAccessedSince(long cutoff) {
+        long released = 0;
+        List<Node> stack = new ArrayList<>(root.children.values());
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (node.lastAccess <= cutoff) {
+                released += evict(node);
+            } else {
+                stack.addAll(node.children.values());
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 淘汰一棵子树
+     *
+     * @param node 子树根节点
+     * @return 释放的权重，节点已经被淘汰时返回0
+     */
+    long evict(Node node) {
+        if (node.detached) {
+            return 0;
+        }
+        long released = detach(node);
+        prune(node.parent);
+        return released;
+    }
+
+    /**
+     * 按深度优先顺序遍历所有未过期的属性和目录列表（不包括不存在的key记录），用于写入快照
+     *
+     * @param visitor 访问者
+     * @throws IOException 访问者抛出的异常
+     */
+    void forEachEntry(EntryVisitor visitor) throws IOException {
+        List<Node> stack = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        stack.add(root);
+        paths.add("");
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            String path = paths.remove(paths.size() - 1);
+            for (Slot slot : SNAPSHOT_SLOTS) {
+                Entry<?> entry = node.get(slot);
+                if (entry != null && System.currentTimeMillis() - entry.writtenAt <= ttlMillis(slot)) {
+                    // 目录列表只写入名称，子项属性由子节点自己的条目写入
+                    Object value = slot == Slot.LISTING ? ((DirectoryListing) entry.value).names() : entry.value;
+                    visitor.visit(path, slot, entry.writtenAt, value);
+                }
+            }
+            for (Node child : node.children.values()) {
+                stack.add(child);
+                paths.add(path.isEmpty() ? child.name : path + PATH_SEPARATOR_CHAR + child.name);
+            }
+        }
+    }
+
+    /**
+     * 恢复快照中的条目，保留原来的写入时间，已过期或已经有值时忽略
+     *
+     * @param path      节点路径
+     * @param slot      条目类型
+     * @param writtenAt 原来的写入时间
+     * @param value     属性或目录列表的名称
+     * @return 是否恢复
+     */
+    @SuppressWarnings("unchecked")
+    boolean restore(String path, Slot slot, long writtenAt, Object value) {
+        if (System.currentTimeMillis() - writtenAt > ttlMillis(slot)) {
+            return false;
+        }
+        if (slot == Slot.LISTING) {
+            value = new DirectoryListing((List<String>) value, null);
+        }
+        long bytes = slot == Slot.LISTING
+                ? MetadataWeigher.listingBytes((DirectoryListing) value)
+                : MetadataWeigher.attributesBytes((ObjectHeadResponse) value);
+        if (bytes > cacheManager.maxEntryBytes()) {
+            return false;
+        }
+        Node node = find(path, true);
+        synchronized (node) {
+            if (node.detached || node.get(slot) != null) {
+                return false;
+            }
+            node.set(slot, new Entry<>(value, bytes, writtenAt));
+        }
+        cacheManager.addMetadataWeight(bytes);
+        if (isOrphan(node)) {
+            detach(node);
+        }
+        return true;
+    }
+
+    private static String stats(String name, long hit, long miss) {
+        long total = hit + miss;
+        return String.format(
+                "%s 缓存统计 - 命中率: %.2f%%, 命中次数: %d, 未命中次数: %d",
+                name,
+                total == 0 ? 0.0 : hit * 100.0 / total,
+                hit,
+                miss
+        );
+    }
+
+    /**
+     * 按路径分段查找节点
+     *
+     * @param key    对象key，开头和结尾的 / 以及连续的 / 会被忽略
+     * @param create 节点不存在时是否创建
+     * @return
+     */
+    private Node find(String key, boolean create) {
+        Node node = root;
+        int length = key == null ? 0 : key.length();
+        int start = 0;
+        while (start < length) {
+            int end = key.indexOf(PATH_SEPARATOR_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                Node child = node.children.get(PROBE.get().set(key, start, end));
+                if (child == null || child.detached) {
+                    if (!create) {
+                        return null;
+                    }
+                    // 只有创建节点时才生成名称，作为子节点表中保存的key（不能使用复用的分段）
+                    String name = key.substring(start, end);
+                    Node parent = node;
+                    Node[] created = new Node[1];
+                    child = node.children.compute(new Segment(name), (k, existing) -> {
+                        if (existing != null && !existing.detached) {
+                            return existing;
+                        }
+                        created[0] = new Node(parent, k, parent.depth + 1);
+                        return created[0];
+                    });
+                    if (child == created[0]) {
+                        // 节点本身也计入缓存大小，节点被摘除时释放
+                        cacheManager.addMetadataWeight(MetadataWeigher.nodeBytes(name));
+                    }
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private <V> Entry<V> live(Node node, Slot slot) {
+        @SuppressWarnings("unchecked")
+        Entry<V> entry = (Entry<V>) node.get(slot);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.writtenAt > ttlMillis(slot)) {
+            // 过期的条目读取时删除
+            boolean removed = false;
+            synchronized (node) {
+                if (!node.detached && node.get(slot) == entry) {
+                    node.set(slot, null);
+                    removed = true;
+                }
+            }
+            if (removed) {
+                cacheManager.addMetadataWeight(-entry.weight);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean claimRefresh(Node node, Slot slot) {
+        long refreshAfter = cacheManager.refreshAfterMillis();
+        if (node == null || refreshAfter <= 0) {
+            return false;
+        }
+        Entry<?> entry = node.get(slot);
+        if (entry == null || System.currentTimeMillis() - entry.writtenAt < refreshAfter) {
+            return false;
+        }
+        // 每个条目只刷新一次，刷新失败时条目正常过期
+        return Entry.REFRESHING.compareAndSet(entry, 0, 1);
+    }
+
+    /**
+     * 只有当前条目仍然是被领取刷新的条目时才替换
+     */
+    private boolean replaceClaimed(Node node, Slot slot, Entry<?> entry) {
+        long delta;
+        synchronized (node) {
+            Entry<?> previous = node.get(slot);
+            if (node.detached || previous == null || previous.refreshing == 0) {
+                return false;
+            }
+            node.set(slot, entry);
+            delta = entry.weight - previous.weight;
+        }
+        if (delta != 0) {
+            cacheManager.addMetadataWeight(delta);
+        }
+        return true;
+    }
+
+    private long ttlMillis(Slot slot) {
+        switch (slot) {
+            case LISTING:
+                return cacheManager.listingTtlMillis();
+            case ABSENT:
+                return cacheManager.absentTtlMillis();
+            default:
+                return cacheManager.attributesTtlMillis();
+        }
+    }
+
+    private void set(Node node, Slot slot, Entry<?> entry) {
+        long delta;
+        synchronized (node) {
+            if (node.detached) {
+                return;
+            }
+            Entry<?> previous = node.get(slot);
+            node.set(slot, entry);
+            delta = (entry == null ? 0 : entry.weight) - (previous == null ? 0 : previous.weight);
+        }
+        if (delta != 0) {
+            cacheManager.addMetadataWeight(delta);
+        }
+        if (entry != null) {
+            touch(node);
+            // 写入期间祖先节点被淘汰时，该节点已经不可达，释放刚写入的条目
+            if (isOrphan(node)) {
+                detach(node);
+            }
+        }
+    }
+
+    private boolean isOrphan(Node node) {
+        for (Node n = node.parent; n != null; n = n.parent) {
+            if (n.detached) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 更新节点及其祖先的最近访问时间，父节点的访问时间不早于任何子节点
+     */
+    private static void touch(Node node) {
+        long now = System.currentTimeMillis();
+        for (Node n = node; n != null; n = n.parent) {
+            if (n.lastAccess >= now) {
+                break;
+            }
+            n.lastAccess = now;
+        }
+    }
+
+    /**
+     * 从树中摘除子树并释放其中所有条目的权重
+     */
+    private long detach(Node node) {
+        if (node.parent != null) {
+            node.parent.children.remove(node.segment, node);
+        }
+        long released = 0;
+        List<Node> stack = new ArrayList<>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            synchronized (n) {
+                if (n.detached) {
+                    continue;
+                }
+                n.detached = true;
+                released += n.weight() + MetadataWeigher.nodeBytes(n.name);
+                n.attributes = null;
+                n.directoryAttributes = null;
+                n.listing = null;
+                n.absent = null;
+            }
+            stack.addAll(n.children.values());
+        }
+        if (released != 0) {
+            cacheManager.addMetadataWeight(-released);
+        }
+        return released;
+    }
+
+    /**
+     * 删除没有条目也没有子节点的空节点
+     */
+    private void prune(Node node) {
+        while (node != null && node != root) {
+            Node parent = node.parent;
+            synchronized (node) {
+                if (node.detached || node.weight() != 0 || !node.children.isEmpty()) {
+                    return;
+                }
+                node.detached = true;
+            }
+            parent.children.remove(node.segment, node);
+            cacheManager.addMetadataWeight(-MetadataWeigher.nodeBytes(node.name));
+            node = parent;
+        }
+    }
+
+    private static boolean hasTrailingSeparator(String key) {
+        return key != null && !key.isEmpty() && key.charAt(key.length() - 1) == PATH_SEPARATOR_CHAR;
+    }
+
+    /**
+     * 快照遍历的访问者
+     */
+    interface EntryVisitor {
+        void visit(String path, Slot slot, long writtenAt, Object value) throws IOException;
+    }
+
+    enum Slot {
+        // 不以 / 结尾的key的属性
+        ATTRIBUTES,
+        // 以 / 结尾的key的属性
+        DIRECTORY_ATTRIBUTES,
+        // 目录列表
+        LISTING,
+        // 不存在的key
+        ABSENT
+    }
+
+    /**
+     * 前缀树节点，路径中的一段
+     */
+    static final class Node {
+        private final Node parent;
+        private final String name;
+        // 在父节点子节点表中的key
+        private final Segment segment;
+        private final int depth;
+        private final ConcurrentHashMap<Segment, Node> children = new ConcurrentHashMap<>(4);
+        private volatile Entry<ObjectHeadResponse> attributes;
+        private volatile Entry<ObjectHeadResponse> directoryAttributes;
+        private volatile Entry<DirectoryListing> listing;
+        private volatile Entry<Boolean> absent;
+        // 子树的最近访问时间
+        private volatile long lastAccess;
+        private volatile boolean detached;
+
+        private Node(Node parent, Segment segment, int depth) {
+            this.parent = parent;
+            this.name = segment.source;
+            this.segment = segment;
+            this.depth = depth;
+        }
+
+        long lastAccess() {
+            return lastAccess;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        private Entry<?> get(Slot slot) {
+            switch (slot) {
+                case ATTRIBUTES:
+                    return attributes;
+                case DIRECTORY_ATTRIBUTES:
+                    return directoryAttributes;
+                case ABSENT:
+                    return absent;
+                default:
+                    return listing;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void set(Slot slot, Entry<?> entry) {
+            switch (slot) {
+                case ATTRIBUTES:
+                    attributes = (Entry<ObjectHeadResponse>) entry;
+                    break;
+                case DIRECTORY_ATTRIBUTES:
+                    directoryAttributes = (Entry<ObjectHeadResponse>) entry;
+                    break;
+                case ABSENT:
+                    absent = (Entry<Boolean>) entry;
+                    break;
+                default:
+                    listing = (Entry<DirectoryListing>) entry;
+            }
+        }
+
+        private long weight() {
+            Entry<?> a = attributes;
+            Entry<?> d = directoryAttributes;
+            Entry<?> l = listing;
+            Entry<?> n = absent;
+            return (a == null ? 0 : a.weight) + (d == null ? 0 : d.weight) + (l == null ? 0 : l.weight)
+                    + (n == null ? 0 : n.weight);
+        }
+    }
+
+    /**
+     * 子节点表的key，字符串中的一个区间，hashCode 与区间内容的 String.hashCode 相同。
+     * 子节点表中保存的是覆盖整个名称的分段，查找时使用线程复用的分段指向key中的一段
+     */
+    static final class Segment {
+        private String source;
+        private int offset;
+        private int length;
+        private int hash;
+
+        private Segment() {
+        }
+
+        private Segment(String name) {
+            set(name, 0, name.length());
+        }
+
+        private Segment set(String source, int start, int end) {
+            this.source = source;
+            this.offset = start;
+            this.length = end - start;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + source.charAt(i);
+            }
+            this.hash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Segment)) {
+                return false;
+            }
+            Segment other = (Segment) o;
+            return hash == other.hash && length == other.length
+                    && source.regionMatches(offset, other.source, other.offset, length);
+        }
+
+        @Override
+        public String toString() {
+            return source.substring(offset, offset + length);
+        }
+    }
+
+    private static final class Entry<V> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Entry> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "refreshing");
+
+        private final V value;
+        private final long weight;
+        private final long writtenAt;
+        // 是否已经有调用者在刷新
+        private volatile int refreshing;
+
+        private Entry(V value, long weight) {
+            this(value, weight, System.currentTimeMillis());
+        }
+
+        private Entry(V value, long weight, long writtenAt) {
+            this.value = value;
+            this.weight = weight;
+            this.writtenAt = writtenAt;
+        }
+    }
+}
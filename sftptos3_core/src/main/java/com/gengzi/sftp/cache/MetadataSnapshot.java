@@ -0,0 +1,300 @@
+package com.gengzi.sftp.cache;
+
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 元信息缓存的本地快照
+ * <p>
+ * 定期和停机时把未过期的属性和目录列表写入本地文件，重启后节点不需要重新向 s3 发起大量 LIST/HEAD 请求。
+ * 启动时只读取文件内容，每个存储桶的数据在该存储桶的索引第一次使用时才解码恢复；
+ * 条目保留原来的写入时间，恢复时按过期时间校验，已经过期的条目不会恢复。
+ * <p>
+ * 文件格式（DataOutputStream，key 使用前缀压缩）：
+ * <pre>
+ * int 魔数, byte 版本, long 写入时间, int 存储桶数量
+ * 每个存储桶：UTF 索引范围, int 数据长度, 数据
+ * 数据：重复 [byte 条目类型, 前缀压缩的路径, long 写入时间, 值]，以条目类型0结束
+ * </pre>
+ */
+public final class MetadataSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataSnapshot.class);
+
+    private static final int MAGIC = 0x53334d53;
+    private static final byte VERSION = 1;
+    private static final byte END = 0;
+    private static final String THREAD_NAME = "sftptos3-metadata-snapshot-thread";
+
+    private static volatile MetadataSnapshot shared;
+
+    private final Path file;
+    private final CacheManager cacheManager;
+    // 还没有恢复的存储桶数据：索引范围 -> 编码后的条目
+    private final ConcurrentHashMap<String, byte[]> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private MetadataSnapshot(Path file, CacheManager cacheManager, long intervalMillis) {
+        this.file = file;
+        this.cacheManager = cacheManager;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::writeQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 开启元信息快照，需要在服务启动时调用
+     *
+     * @param file           快照文件路径，为空表示不启用
+     * @param intervalMillis 定期写入的间隔，小于等于0表示只在停机时写入
+     */
+    public static synchronized void configure(String file, long intervalMillis) {
+        if (shared != null || file == null || file.trim().isEmpty()) {
+            return;
+        }
+        MetadataSnapshot snapshot = new MetadataSnapshot(Paths.get(file.trim()), CacheManager.getInstance(), intervalMillis);
+        snapshot.read();
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshot::writeQuietly, THREAD_NAME + "-shutdown"));
+        shared = snapshot;
+        CacheManager.getInstance().setSnapshot(snapshot);
+        logger.info("metadata snapshot file:{}, interval:{}ms, pending scopes:{}", file, intervalMillis, snapshot.pending.size());
+    }
+
+    /**
+     * 索引第一次使用时恢复该存储桶的数据，每个存储桶只恢复一次
+     *
+     * @param index 元信息索引
+     */
+    void restore(MetadataIndex index) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        byte[] data = pending.remove(index.scope());
+        if (data == null) {
+            return;
+        }
+        int restored = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            String previousPath = "";
+            while (true) {
+                byte type = in.readByte();
+                if (type == END) {
+                    break;
+                }
+                MetadataIndex.Slot slot = MetadataIndex.Slot.values()[type - 1];
+                String path = readPrefixed(in, previousPath);
+                previousPath = path;
+                long writtenAt = in.readLong();
+                Object value = slot == MetadataIndex.Slot.LISTING ? readListing(in) : readAttributes(in);
+                if (index.restore(path, slot, writtenAt, value)) {
+                    restored++;
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("metadata snapshot restore scope:{} error:{}", index.scope(), e.getMessage());
+        }
+        logger.info("metadata snapshot restored {} entries of scope:{}", restored, index.scope());
+    }
+
+    /**
+     * 写入快照，先写临时文件再替换
+     *
+     * @throws IOException
+     */
+    public synchronized void write() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            List<String> scopes = new ArrayList<>();
+            List<byte[]> sections = new ArrayList<>();
+            for (MetadataIndex index : cacheManager.metadataIndexes()) {
+                scopes.add(index.scope());
+                sections.add(encode(index));
+            }
+            // 还没有使用过的存储桶原样写回，下次启动仍然可以恢复
+            for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                if (!scopes.contains(entry.getKey())) {
+                    scopes.add(entry.getKey());
+                    sections.add(entry.getValue());
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(scopes.size());
+                for (int i = 0; i < scopes.size(); i++) {
+                    out.writeUTF(scopes.get(i));
+                    out.writeInt(sections.get(i).length);
+                    out.write(sections.get(i));
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("metadata snapshot written, scopes:{}, bytes:{}", scopes.size(), Files.size(file));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (Exception e) {
+            logger.warn("metadata snapshot write error, file:{}", file, e);
+        }
+    }
+
+    /**
+     * 读取快照文件，只按存储桶拆分，不解码条目
+     */
+    private void read() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                logger.warn("metadata snapshot file:{} has unknown format, ignored", file);
+                return;
+            }
+            long writtenAt = in.readLong();
+            if (System.currentTimeMillis() - writtenAt > cacheManager.maxTtlMillis()) {
+                // 所有条目都已经过期
+                logger.info("metadata snapshot file:{} is expired, ignored", file);
+                return;
+            }
+            int scopes = in.readInt();
+            for (int i = 0; i < scopes; i++) {
+                String scope = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                pending.put(scope, data);
+            }
+        } catch (EOFException e) {
+            logger.warn("metadata snapshot file:{} is truncated, ignored", file);
+            pending.clear();
+        } catch (IOException e) {
+            logger.warn("metadata snapshot file:{} read error, ignored", file, e);
+            pending.clear();
+        }
+        // 超过最长过期时间后快照中的数据都已经过期，不再保留
+        if (!pending.isEmpty()) {
+            scheduler.schedule(pending::clear, cacheManager.maxTtlMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static byte[] encode(MetadataIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        String[] previousPath = {""};
+        index.forEachEntry((path, slot, writtenAt, value) -> {
+            out.writeByte(slot.ordinal() + 1);
+            writePrefixed(out, previousPath[0], path);
+            previousPath[0] = path;
+            out.writeLong(writtenAt);
+            if (slot == MetadataIndex.Slot.LISTING) {
+                @SuppressWarnings("unchecked")
+                List<String> names = (List<String>) value;
+                writeListing(out, names);
+            } else {
+                writeAttributes(out, (ObjectHeadResponse) value);
+            }
+        });
+        out.writeByte(END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeAttributes(DataOutputStream out, ObjectHeadResponse value) throws IOException {
+        // 目录属性中的列表内容不写入，读取属性时不使用
+        FileTime lastModifiedTime = value.getLastModifiedTime();
+        Object eTag = value.geteTag();
+        int flags = (value.isDirectory() ? 1 : 0) | (value.isRegularFile() ? 2 : 0)
+                | (lastModifiedTime != null ? 4 : 0) | (value.getSize() != null ? 8 : 0) | (eTag != null ? 16 : 0);
+        out.writeByte(flags);
+        if (lastModifiedTime != null) {
+            out.writeLong(lastModifiedTime.toMillis());
+        }
+        if (value.getSize() != null) {
+            out.writeLong(value.getSize());
+        }
+        if (eTag != null) {
+            out.writeUTF(eTag.toString());
+        }
+    }
+
+    private static ObjectHeadResponse readAttributes(DataInputStream in) throws IOException {
+        int flags = in.readByte();
+        FileTime lastModifiedTime = (flags & 4) != 0 ? FileTime.fromMillis(in.readLong()) : null;
+        Long size = (flags & 8) != 0 ? in.readLong() : null;
+        String eTag = (flags & 16) != 0 ? in.readUTF() : null;
+        return new ObjectHeadResponse(lastModifiedTime, size, eTag, (flags & 1) != 0, (flags & 2) != 0);
+    }
+
+    private static void writeListing(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        String previous = "";
+        for (String name : names) {
+            writePrefixed(out, previous, name);
+            previous = name;
+        }
+    }
+
+    private static List<String> readListing(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> names = new ArrayList<>(size);
+        String previous = "";
+        for (int i = 0; i < size; i++) {
+            previous = readPrefixed(in, previous);
+            names.add(previous);
+        }
+        return names;
+    }
+
+    /**
+     * 前缀压缩：只写与上一个字符串相同前缀的长度和剩余部分
+     */
+    private static void writePrefixed(DataOutputStream out, String previous, String value) throws IOException {
+        int max = Math.min(previous.length(), Math.min(value.length(), 0xFFFF));
+        int shared = 0;
+        while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+            shared++;
+        }
+        out.writeShort(shared);
+        out.writeUTF(value.substring(shared));
+    }
+
+    private static String readPrefixed(DataInputStream in, String previous) throws IOException {
+        int shared = in.readUnsignedShort();
+        return previous.substring(0, shared) + in.readUTF();
+    }
+}
@@ -0,0 +1,98 @@
+package com.gengzi.sftp.cache;
+
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 估算元信息缓存条目占用的堆内存（字节）
+ * <p>
+ * 按 64 位 JVM 开启压缩指针估算，字符串按每个字符2字节计算（偏大），只用于控制缓存总量，不追求精确
+ */
+final class MetadataWeigher {
+
+    // 缓存条目本身（对象头 + value引用 + weight + writtenAt + refreshing）
+    static final long ENTRY_BYTES = 40;
+    // 前缀树节点（节点对象 + 子节点 ConcurrentHashMap），不含名称
+    static final long NODE_BYTES = 160;
+    // ObjectHeadResponse 对象本身 + FileTime + Long
+    private static final long OBJECT_HEAD_BYTES = 40 + 32 + 16;
+    // ListObjectsResponse 对象本身
+    private static final long LIST_OBJECTS_BYTES = 32;
+    // HashMap 对象本身，以及每个映射（Node + 数组槽位）
+    private static final long MAP_BYTES = 48;
+    private static final long MAP_ENTRY_BYTES = 40;
+    // ArrayList 对象本身，以及每个元素引用
+    private static final long LIST_BYTES = 40;
+    private static final long LIST_ELEMENT_BYTES = 4;
+    // String 对象本身 + 字符数组头
+    private static final long STRING_BYTES = 40;
+
+    private MetadataWeigher() {
+    }
+
+    static long nodeBytes(String name) {
+        return NODE_BYTES + MAP_ENTRY_BYTES + stringBytes(name);
+    }
+
+    static long attributesBytes(ObjectHeadResponse value) {
+        if (value == null) {
+            return 0;
+        }
+        long bytes = OBJECT_HEAD_BYTES;
+        Object eTag = value.geteTag();
+        if (eTag instanceof String) {
+            bytes += stringBytes((String) eTag);
+        }
+        ListObjectsResponse listObjects = value.getListObjects();
+        if (listObjects != null) {
+            bytes += LIST_OBJECTS_BYTES + stringBytes(listObjects.getNextContinuationToken())
+                    + mapBytes(listObjects.getObjects()) + mapBytes(listObjects.getPrefixes());
+        }
+        return ENTRY_BYTES + bytes;
+    }
+
+    static long listingBytes(DirectoryListing listing) {
+        if (listing == null) {
+            return 0;
+        }
+        // 子项属性表的key与名称是同一批字符串，这里重复计算，偏大
+        return listingBytes(listing.names()) + mapBytes(listing.attributes());
+    }
+
+    static long listingBytes(List<String> names) {
+        if (names == null) {
+            return 0;
+        }
+        long bytes = LIST_BYTES + LIST_ELEMENT_BYTES * names.size();
+        for (String name : names) {
+            bytes += stringBytes(name);
+        }
+        return ENTRY_BYTES + bytes;
+    }
+
+    static long absentBytes() {
+        return ENTRY_BYTES;
+    }
+
+    private static long mapBytes(Map<String, ObjectHeadResponse> map) {
+        if (map == null) {
+            return 0;
+        }
+        long bytes = MAP_BYTES;
+        for (Map.Entry<String, ObjectHeadResponse> entry : map.entrySet()) {
+            bytes += MAP_ENTRY_BYTES + stringBytes(entry.getKey());
+            if (entry.getValue() != null) {
+                // 子项没有自己的缓存条目
+                bytes += attributesBytes(entry.getValue()) - ENTRY_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : STRING_BYTES + 2L * value.length();
+    }
+}
@@ -0,0 +1,262 @@
+package com.gengzi.sftp.cache;
+
+import com.gengzi.sftp.util.PooledByteBuffer;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跨会话共享的文件分片缓存
+ * <p>
+ * 所有读通道共享，按字节数限制容量（W-TinyLFU 淘汰）。同一分片的并发请求只会发起一次下载，
+ * 请求中的 future 同样在缓存中，后来的读取者直接等待同一个 future。
+ * 返回给调用方的缓冲区已经增加了引用，调用方使用结束后需要 release
+ */
+public final class SharedFragmentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedFragmentCache.class);
+
+    // 默认缓存 256mb
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // 缓冲区刚被淘汰时重新获取的最大次数
+    private static final int MAX_RETAIN_ATTEMPTS = 3;
+
+    private static volatile SharedFragmentCache shared = new SharedFragmentCache(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private final AsyncCache<FragmentKey, PooledByteBuffer> cache;
+    // 每个对象版本当前打开的读通道数量，用于判断对象是否正在被多个会话读取
+    private final ConcurrentHashMap<FragmentKey, Integer> openReaders = new ConcurrentHashMap<>();
+
+    public SharedFragmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(Math.max(0L, maxBytes))
+                .weigher((FragmentKey key, PooledByteBuffer value) -> value.remaining())
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                // 同步执行移除监听，淘汰后立即释放缓存持有的引用
+                .executor(Runnable::run)
+                .removalListener((FragmentKey key, PooledByteBuffer value, RemovalCause cause) -> {
+                    if (value != null) {
+                        value.release();
+                    }
+                })
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * 全局共享缓存
+     *
+     * @return
+     */
+    public static SharedFragmentCache shared() {
+        return shared;
+    }
+
+    /**
+     * 设置全局共享缓存的容量，需要在服务启动时调用，0表示不启用
+     *
+     * @param maxBytes 最大字节数
+     */
+    public static void configure(long maxBytes) {
+        logger.info("shared fragment cache max bytes:{}", maxBytes);
+        shared = new SharedFragmentCache(maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * 获取一个分片
+     *
+     * @param key    分片key
+     * @param loader 缓存中没有时的加载方式
+     * @return 已增加引用的缓冲区
+     */
+    public CompletableFuture<PooledByteBuffer> get(FragmentKey key, FragmentLoader loader) {
+        return retained(key, loader, load(key, loader), 1);
+    }
+
+    /**
+     * 获取连续的多个分片，缓存中不存在的连续分片合并为一次加载
+     *
+     * @param keys   同一对象的分片key
+     * @param loader 加载方式
+     * @return key 对应的已增加引用的缓冲区
+     */
+    public Map<FragmentKey, CompletableFuture<PooledByteBuffer>> getAll(List<FragmentKey> keys, FragmentLoader loader) {
+        CompletableFuture<Map<FragmentKey, PooledByteBuffer>> all = cache.getAll(keys, (missingKeys, executor) -> loadRuns(missingKeys, loader));
+        Map<FragmentKey, CompletableFuture<PooledByteBuffer>> result = new LinkedHashMap<>();
+        for (FragmentKey key : keys) {
+            CompletableFuture<PooledByteBuffer> one = all.thenCompose(map -> {
+                PooledByteBuffer buffer = map.get(key);
+                return buffer != null ? CompletableFuture.completedFuture(buffer) : load(key, loader);
+            });
+            result.put(key, retained(key, loader, one, 1));
+        }
+        return result;
+    }
+
+    /**
+     * 删除某个对象所有版本的分片，对象被覆盖或删除后调用，旧版本的分片不必等到过期才释放
+     *
+     * @param endpoint 存储地址
+     * @param bucket   桶
+     * @param key      对象key
+     */
+    public void invalidateObject(String endpoint, String bucket, String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        cache.synchronous().asMap().keySet().removeIf(k -> k.getKey().equals(key)
+                && k.getBucket().equals(bucket)
+                && Objects.equals(k.getEndpoint(), endpoint));
+    }
+
+    /**
+     * 删除某个目录下所有对象的分片，目录被删除或覆盖后调用
+     *
+     * @param endpoint 存储地址
+     * @param bucket   桶
+     * @param dirKey   目录key，以 / 结尾
+     */
+    public void invalidatePrefix(String endpoint, String bucket, String dirKey) {
+        if (!isEnabled()) {
+            return;
+        }
+        cache.synchronous().asMap().keySet().removeIf(k -> k.getKey().startsWith(dirKey)
+                && k.getBucket().equals(bucket)
+                && Objects.equals(k.getEndpoint(), endpoint));
+    }
+
+    /**
+     * 登记一个打开的读通道
+     *
+     * @param objectKey 对象版本（索引为0的分片key）
+     * @return 登记后该对象版本打开的读通道数量
+     */
+    public int openReader(FragmentKey objectKey) {
+        return openReaders.merge(objectKey, 1, Integer::sum);
+    }
+
+    /**
+     * 注销一个打开的读通道
+     *
+     * @param objectKey 对象版本（索引为0的分片key）
+     */
+    public void closeReader(FragmentKey objectKey) {
+        openReaders.computeIfPresent(objectKey, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public CacheStats stats() {
+        return cache.synchronous().stats();
+    }
+
+    private CompletableFuture<PooledByteBuffer> load(FragmentKey key, FragmentLoader loader) {
+        return cache.get(key, (k, executor) -> loader.load(k.getIndex(), 1).thenApply(list -> {
+            if (list.isEmpty()) {
+                throw new IllegalStateException("empty fragment " + k);
+            }
+            return list.get(0);
+        }));
+    }
+
+    /**
+     * 缓冲区可能在完成后、增加引用前被淘汰并归还，这时重新获取
+     */
+    private CompletableFuture<PooledByteBuffer> retained(FragmentKey key, FragmentLoader loader,
+                                                         CompletableFuture<PooledByteBuffer> future, int attempt) {
+        return future.thenCompose(buffer -> {
+            if (buffer.tryRetain()) {
+                return CompletableFuture.completedFuture(buffer);
+            }
+            if (attempt >= MAX_RETAIN_ATTEMPTS) {
+                return CompletableFuture.failedFuture(new IllegalStateException("fragment evicted repeatedly " + key));
+            }
+            logger.debug("fragment {} released before retain, reload", key);
+            return retained(key, loader, load(key, loader), attempt + 1);
+        });
+    }
+
+    /**
+     * 将缺失的分片按连续区间分组，每个区间一次请求
+     */
+    private CompletableFuture<Map<FragmentKey, PooledByteBuffer>> loadRuns(Set<? extends FragmentKey> missingKeys, FragmentLoader loader) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        FragmentKey anyKey = null;
+        for (FragmentKey key : missingKeys) {
+            indexes.add(key.getIndex());
+            anyKey = key;
+        }
+        if (anyKey == null) {
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }
+        final FragmentKey template = anyKey;
+        List<CompletableFuture<Map<FragmentKey, PooledByteBuffer>>> runs = new ArrayList<>();
+        Integer runStart = null;
+        int previous = -2;
+        for (Integer index : indexes) {
+            if (runStart != null && index != previous + 1) {
+                runs.add(loadRun(template, runStart, previous - runStart + 1, loader));
+                runStart = null;
+            }
+            if (runStart == null) {
+                runStart = index;
+            }
+            previous = index;
+        }
+        runs.add(loadRun(template, runStart, previous - runStart + 1, loader));
+        return CompletableFuture.allOf(runs.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<FragmentKey, PooledByteBuffer> map = new HashMap<>();
+            runs.forEach(run -> map.putAll(run.join()));
+            return map;
+        });
+    }
+
+    private CompletableFuture<Map<FragmentKey, PooledByteBuffer>> loadRun(FragmentKey template, int firstIndex, int count, FragmentLoader loader) {
+        return loader.load(firstIndex, count).thenApply(list -> {
+            Map<FragmentKey, PooledByteBuffer> map = new HashMap<>();
+            for (int i = 0; i < list.size(); i++) {
+                if (i < count) {
+                    map.put(template.withIndex(firstIndex + i), list.get(i));
+                } else {
+                    list.get(i).release();
+                }
+            }
+            return map;
+        });
+    }
+
+    /**
+     * 分片加载方式
+     */
+    @FunctionalInterface
+    public interface FragmentLoader {
+
+        /**
+         * 从 firstIndex 开始加载 count 个连续分片
+         *
+         * @param firstIndex 第一个分片索引
+         * @param count      分片数量
+         * @return 按顺序的分片
+         */
+        CompletableFuture<List<PooledByteBuffer>> load(int firstIndex, int count);
+    }
+}
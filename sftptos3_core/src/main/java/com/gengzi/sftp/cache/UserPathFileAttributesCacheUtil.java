@@ -2,10 +2,8 @@ package com.gengzi.sftp.cache;
 
 
 import com.gengzi.sftp.nio.S3SftpFileSystem;
-import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
 import com.gengzi.sftp.nio.S3SftpPath;
 import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
-import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,11 +22,14 @@ public class UserPathFileAttributesCacheUtil {
      */
     public static ObjectHeadResponse getCacheValue(S3SftpPath s3SftpPath) {
         try {
-            String cacheKey = getCacheKey(s3SftpPath);
-            ObjectHeadResponse objectHeadResponse = (ObjectHeadResponse) cacheManager.getUserPathFileAttributesCache().getIfPresent(cacheKey);
+            String key = s3SftpPath.getKey();
+            if (!inUserRoot(s3SftpPath.getFileSystem(), key)) {
+                return null;
+            }
+            ObjectHeadResponse objectHeadResponse = getMetadataIndex(s3SftpPath.getFileSystem()).getAttributes(key);
             if (logger.isTraceEnabled()) {
                 String valueStr = (objectHeadResponse == null) ? "null" : objectHeadResponse.toString();
-                logger.trace("UserPathFileAttributesCache getCacheValue cacheKey:{}, value:{}", cacheKey, valueStr);
+                logger.trace("UserPathFileAttributesCache getCacheValue key:{}, value:{}", key, valueStr);
             }
             return objectHeadResponse;
         } catch (Exception e) {
@@ -38,25 +39,48 @@ public class UserPathFileAttributesCacheUtil {
     }
 
 
-    private static String getCacheKey(S3SftpPath s3SftpPath) {
-        S3SftpNioSpiConfiguration configuration = s3SftpPath.getFileSystem().configuration();
-        String cacheKey = configuration.getUserPathFileAttributesCacheKey(s3SftpPath.getKey());
-        return cacheKey;
+    static MetadataIndex getMetadataIndex(S3SftpFileSystem s3SftpFileSystem) {
+        return cacheManager.getMetadataIndex(s3SftpFileSystem.metadataIndexScope());
     }
 
-    private static String getCacheKey(S3SftpFileSystem s3SftpFileSystem, String s3SftpPath) {
-        S3SftpNioSpiConfiguration configuration = s3SftpFileSystem.configuration();
-        String cacheKey = configuration.getUserPathFileAttributesCacheKey(s3SftpPath);
-        return cacheKey;
+    /**
+     * 元信息缓存由同一存储桶的所有用户共享，读取和写入时只允许访问当前用户根目录下的key
+     *
+     * @param s3SftpFileSystem
+     * @param key              对象key
+     * @return
+     */
+    static boolean inUserRoot(S3SftpFileSystem s3SftpFileSystem, String key) {
+        String root = s3SftpFileSystem.userRootKey();
+        if (root.isEmpty()) {
+            return true;
+        }
+        int keyStart = 0;
+        while (keyStart < key.length() && key.charAt(keyStart) == '/') {
+            keyStart++;
+        }
+        int rootLength = root.length();
+        if (!key.regionMatches(keyStart, root, 0, rootLength)) {
+            return false;
+        }
+        // 根目录本身或者根目录下的路径
+        int next = keyStart + rootLength;
+        return next == key.length() || key.charAt(next) == '/';
     }
 
     public static void putCacheValue(S3SftpPath s3SftpPath, ObjectHeadResponse value) {
+        putCacheValue(s3SftpPath.getFileSystem(), s3SftpPath.getKey(), value);
+    }
+
+    public static void putCacheValue(S3SftpFileSystem s3SftpFileSystem, String s3SftpPath, ObjectHeadResponse value) {
         try {
-            String cacheKey = getCacheKey(s3SftpPath);
-            cacheManager.getUserPathFileAttributesCache().put(cacheKey, value);
+            if (!inUserRoot(s3SftpFileSystem, s3SftpPath)) {
+                return;
+            }
+            getMetadataIndex(s3SftpFileSystem).putAttributes(s3SftpPath, value);
             if (logger.isDebugEnabled()) {
                 String valueStr = (value == null) ? "null" : value.toString();
-                logger.debug("UserPathFileAttributesCache putCacheValue cacheKey:{}, value:{}", cacheKey, valueStr);
+                logger.debug("UserPathFileAttributesCache putCacheValue key:{}, value:{}", s3SftpPath, valueStr);
             }
         } catch (Exception e) {
             logger.error("UserPathFileAttributesCache putCacheValue error !!! exception:{}", e.getMessage(), e);
@@ -64,40 +88,52 @@ public class UserPathFileAttributesCacheUtil {
 
     }
 
-    public static void putCacheValue(S3SftpFileSystem s3SftpFileSystem, String s3SftpPath, ObjectHeadResponse value) {
+    /**
+     * 属性缓存需要刷新时返回 true，只有一个调用者会得到 true，由它在后台刷新
+     *
+     * @param s3SftpPath
+     * @return
+     */
+    public static boolean claimRefresh(S3SftpPath s3SftpPath) {
         try {
-            String cacheKey = getCacheKey(s3SftpFileSystem, s3SftpPath);
-            cacheManager.getUserPathFileAttributesCache().put(cacheKey, value);
-            if (logger.isDebugEnabled()) {
-                String valueStr = (value == null) ? "null" : value.toString();
-                logger.debug("UserPathFileAttributesCache putCacheValue cacheKey:{}, value:{}", cacheKey, valueStr);
-            }
+            return getMetadataIndex(s3SftpPath.getFileSystem()).claimAttributesRefresh(s3SftpPath.getKey());
         } catch (Exception e) {
-            logger.error("UserPathFileAttributesCache putCacheValue error !!! exception:{}", e.getMessage(), e);
+            logger.error("UserPathFileAttributesCache claimRefresh error !!! exception:{}", e.getMessage(), e);
         }
+        return false;
+    }
 
+    /**
+     * 写入后台刷新得到的属性，刷新期间缓存被失效时放弃
+     *
+     * @param s3SftpPath
+     * @param value
+     * @return 是否写入
+     */
+    public static boolean putRefreshedValue(S3SftpPath s3SftpPath, ObjectHeadResponse value) {
+        try {
+            return getMetadataIndex(s3SftpPath.getFileSystem()).putRefreshedAttributes(s3SftpPath.getKey(), value);
+        } catch (Exception e) {
+            logger.error("UserPathFileAttributesCache putRefreshedValue error !!! exception:{}", e.getMessage(), e);
+        }
+        return false;
     }
 
     public static void removeCacheValue(S3SftpPath s3SftpPath) {
         try {
-            String cacheKey = getCacheKey(s3SftpPath);
-            cacheManager.getUserPathFileAttributesCache().invalidate(cacheKey);
-            logger.debug("UserPathFileAttributesCache removeCacheValue cacheKey:{}", cacheKey);
+            String key = s3SftpPath.getKey();
+            MetadataIndex metadataIndex = getMetadataIndex(s3SftpPath.getFileSystem());
+            metadataIndex.removeAttributes(key);
+            CacheInvalidationBus.publish(CacheInvalidationBus.Type.ATTRIBUTES, metadataIndex.scope(), key);
+            logger.debug("UserPathFileAttributesCache removeCacheValue key:{}", key);
         } catch (Exception e) {
             logger.error("UserPathFileAttributesCache removeCacheValue error !!!exception:{}", e.getMessage(), e);
         }
 
     }
 
-    public static String getCacheStats() {
-        CacheStats stats = cacheManager.getUserPathFileAttributesCache().stats();
-        return String.format(
-                "UserPathFileAttributesCache 缓存统计 - 命中率: %.2f%%, 加载次数: %d, 命中次数: %d, 未命中次数: %d",
-                stats.hitRate() * 100,
-                stats.loadCount(),
-                stats.hitCount(),
-                stats.missCount()
-        );
+    public static String getCacheStats(S3SftpFileSystem s3SftpFileSystem) {
+        return getMetadataIndex(s3SftpFileSystem).getAttributesStats();
     }
 
 
@@ -1,13 +1,98 @@
 package com.gengzi.sftp.config;
 
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
 
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * s3 客户端共享的 Netty EventLoopGroup（IO 线程池）
+ * <p>
+ * IO 线程只负责收发数据，线程数默认为 cpu 核数的2倍（与 aws sdk 默认一致）；
+ * Linux 上可以开启 epoll 原生传输，不可用时退回 NIO
+ */
 public class NettyEventGroup {
 
-    // 自定义 Netty EventLoopGroup（IO 线程池）
-    public static final NioEventLoopGroup CUSTOMEVENTLOOPGROUP = new NioEventLoopGroup(100,
-            r -> {
-                return new Thread(r, "sftptos3-netty-io-thread");
+    private static final Logger logger = LoggerFactory.getLogger(NettyEventGroup.class);
+
+    private static final String THREAD_NAME_PREFIX = "sftptos3-netty-io-thread-";
+
+    private static int threads;
+    private static boolean nativeTransport;
+    private static SdkEventLoopGroup customEventLoopGroup;
+
+    /**
+     * 设置 IO 线程池，需要在服务启动时（创建第一个 s3 客户端前）调用
+     *
+     * @param threads         线程数，小于等于0时按 cpu 核数计算
+     * @param nativeTransport 是否使用 epoll 原生传输
+     */
+    public static synchronized void configure(int threads, boolean nativeTransport) {
+        if (customEventLoopGroup != null) {
+            logger.warn("netty event loop group already created, configure ignored");
+            return;
+        }
+        NettyEventGroup.threads = threads;
+        NettyEventGroup.nativeTransport = nativeTransport;
+    }
+
+    /**
+     * 默认线程数，cpu 核数的2倍
+     *
+     * @return
+     */
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    /**
+     * 获取共享的 EventLoopGroup，第一次使用时按配置创建
+     *
+     * @return
+     */
+    public static synchronized SdkEventLoopGroup customEventLoopGroup() {
+        if (customEventLoopGroup == null) {
+            customEventLoopGroup = create(threads > 0 ? threads : defaultThreads(), nativeTransport);
+        }
+        return customEventLoopGroup;
+    }
+
+    /**
+     * 创建一个 EventLoopGroup
+     *
+     * @param threads         线程数
+     * @param nativeTransport 是否使用 epoll 原生传输
+     * @return
+     */
+    public static SdkEventLoopGroup create(int threads, boolean nativeTransport) {
+        ThreadFactory threadFactory = threadFactory();
+        if (nativeTransport) {
+            if (Epoll.isAvailable()) {
+                logger.info("create netty epoll event loop group, threads:{}", threads);
+                EventLoopGroup group = new EpollEventLoopGroup(threads, threadFactory);
+                return SdkEventLoopGroup.create(group, EpollSocketChannel::new);
             }
-    );
+            logger.warn("netty epoll transport unavailable, fallback to nio: {}", String.valueOf(Epoll.unavailabilityCause()));
+        }
+        logger.info("create netty nio event loop group, threads:{}", threads);
+        EventLoopGroup group = new NioEventLoopGroup(threads, threadFactory);
+        return SdkEventLoopGroup.create(group, NioSocketChannel::new);
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
@@ -1,10 +1,17 @@
 package com.gengzi.sftp.config;
 
 
+import com.gengzi.sftp.cache.CacheInvalidationBus;
+import com.gengzi.sftp.cache.CacheManager;
+import com.gengzi.sftp.cache.MetadataSnapshot;
+import com.gengzi.sftp.cache.SharedFragmentCache;
 import com.gengzi.sftp.factory.DynamicVirtualFileSystemFactory;
 import com.gengzi.sftp.listener.SftpSessionListener;
 import com.gengzi.sftp.listener.SftptoS3SftpEventListener;
+import com.gengzi.sftp.s3.client.S3ClientRegistry;
 import com.gengzi.sftp.sshd.AuditSftpSubsystemFactory;
+import com.gengzi.sftp.sshd.S3SftpSubsystemFactory;
+import com.gengzi.sftp.util.DirectBufferPool;
 import org.apache.sshd.common.keyprovider.ClassLoadableResourceKeyPairProvider;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.session.SessionFactory;
@@ -35,6 +42,36 @@ public class SftpServerConfig {
     private int sftpPort;
     @Value("${sftp.server.customerOptAuditRecord}")
     private boolean customerOptAuditRecord;
+    @Value("${sftp.server.downloadFileDirectBufferPoolMaxBytes:268435456}")
+    private long downloadFileDirectBufferPoolMaxBytes;
+    @Value("${sftp.server.uploadFileDirectBufferPoolMaxBytes:134217728}")
+    private long uploadFileDirectBufferPoolMaxBytes;
+    @Value("${sftp.server.downloadFileSharedCacheMaxBytes:268435456}")
+    private long downloadFileSharedCacheMaxBytes;
+    @Value("${sftp.server.s3ClientIdleTimeoutMillis:300000}")
+    private long s3ClientIdleTimeoutMillis;
+    @Value("${sftp.server.s3ClientIoThreads:0}")
+    private int s3ClientIoThreads;
+    @Value("${sftp.server.s3ClientNativeTransport:false}")
+    private boolean s3ClientNativeTransport;
+    @Value("${sftp.server.metadataCacheMaxBytes:67108864}")
+    private long metadataCacheMaxBytes;
+    @Value("${sftp.server.metadataAttributesTtlMillis:60000}")
+    private long metadataAttributesTtlMillis;
+    @Value("${sftp.server.metadataListingTtlMillis:60000}")
+    private long metadataListingTtlMillis;
+    @Value("${sftp.server.metadataAbsentTtlMillis:5000}")
+    private long metadataAbsentTtlMillis;
+    @Value("${sftp.server.metadataRefreshAfterMillis:45000}")
+    private long metadataRefreshAfterMillis;
+    @Value("${sftp.server.metadataSnapshotFile:}")
+    private String metadataSnapshotFile;
+    @Value("${sftp.server.metadataSnapshotIntervalMillis:60000}")
+    private long metadataSnapshotIntervalMillis;
+    @Value("${sftp.server.cacheInvalidationPort:0}")
+    private int cacheInvalidationPort;
+    @Value("${sftp.server.cacheInvalidationPeers:}")
+    private String cacheInvalidationPeers;
     @Autowired
     private SftpUserPasswordAuthenticator passwordAuthenticator;
     @Autowired
@@ -46,6 +83,23 @@ public class SftpServerConfig {
 
     @Bean
     public SshServer sftpServer() throws IOException {
+        // 下载使用的堆外缓冲区池
+        DirectBufferPool.configure(downloadFileDirectBufferPoolMaxBytes);
+        // 流式上传使用的堆外缓冲区池，与下载分开计算预算
+        DirectBufferPool.configureUpload(uploadFileDirectBufferPoolMaxBytes);
+        // 跨会话共享的分片缓存
+        SharedFragmentCache.configure(downloadFileSharedCacheMaxBytes);
+        // 同一存储的会话共享s3客户端，空闲超时后关闭
+        S3ClientRegistry.configure(s3ClientIdleTimeoutMillis);
+        // s3客户端共享的Netty IO线程池
+        NettyEventGroup.configure(s3ClientIoThreads, s3ClientNativeTransport);
+        // 元信息缓存的堆内存预算和过期时间
+        CacheManager.configure(metadataCacheMaxBytes, metadataAttributesTtlMillis, metadataListingTtlMillis,
+                metadataAbsentTtlMillis, metadataRefreshAfterMillis);
+        // 元信息缓存的本地快照，重启后恢复
+        MetadataSnapshot.configure(metadataSnapshotFile, metadataSnapshotIntervalMillis);
+        // 集群节点之间的缓存失效广播
+        CacheInvalidationBus.configure(cacheInvalidationPort, cacheInvalidationPeers);
         SshServer server = SshServer.setUpDefaultServer();
         // 监听所有请求，默认支持
         // server.setHost("0.0.0.0");
@@ -59,7 +113,8 @@ public class SftpServerConfig {
         if (customerOptAuditRecord) {
             factory = new AuditSftpSubsystemFactory();
         } else {
-            factory = new SftpSubsystemFactory();
+            // 支持递归删除目录等扩展命令
+            factory = new S3SftpSubsystemFactory();
         }
         // 设置不支持属性打印日志
         factory.setUnsupportedAttributePolicy(UnsupportedAttributePolicy.Warn);
@@ -34,6 +34,12 @@ public class UserServerSession {
     @Value("${sftp.server.downloadFileUserDirectBuffer}")
     private Boolean downloadFileUserDirectBuffer;
 
+    @Value("${sftp.server.downloadFileSequentialStream:true}")
+    private Boolean downloadFileSequentialStream;
+
+    @Value("${sftp.server.uploadFileStreaming:true}")
+    private Boolean uploadFileStreaming;
+
     public static String s3SftpSchemeUri(String accessKey, String accessSecret, String endpoint, String bucket) {
         String endpointFormat = endpoint;
         if (endpoint.startsWith("http://") || endpoint.startsWith("https://")) {
@@ -45,6 +51,8 @@ public class UserServerSession {
 
     public boolean addUserInfoToServerSession(User userByUsername, ServerSession serverSession) {
         serverSession.setAttribute(Constans.DOWNLOADFILEUSERDIRECTBUFFER, downloadFileUserDirectBuffer);
+        serverSession.setAttribute(Constans.DOWNLOADFILESEQUENTIALSTREAM, downloadFileSequentialStream);
+        serverSession.setAttribute(Constans.UPLOADFILESTREAMING, uploadFileStreaming);
         Long attributeId = serverSession.getAttribute(Constans.SERVERSESSION_DB_IDKEY);
         String accessStorageType = userByUsername.getAccessStorageType();
         String accessStorageInfo = userByUsername.getAccessStorageInfo();
@@ -17,6 +17,10 @@ public class Constans {
             new AttributeRepository.AttributeKey<>();
     public static final AttributeRepository.AttributeKey<Boolean> DOWNLOADFILEUSERDIRECTBUFFER =
             new AttributeRepository.AttributeKey<>();
+    public static final AttributeRepository.AttributeKey<Boolean> DOWNLOADFILESEQUENTIALSTREAM =
+            new AttributeRepository.AttributeKey<>();
+    public static final AttributeRepository.AttributeKey<Boolean> UPLOADFILESTREAMING =
+            new AttributeRepository.AttributeKey<>();
     public static final AttributeRepository.AttributeKey<AuthType> AUTHTYPE =
             new AttributeRepository.AttributeKey<>();
 
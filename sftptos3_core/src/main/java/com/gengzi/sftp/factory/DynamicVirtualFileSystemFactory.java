@@ -55,6 +55,8 @@ public class DynamicVirtualFileSystemFactory implements FileSystemFactory {
         ServerSessionUserInfoContext serverSessionUserInfoContext =
                 sessionContext.getAttribute(Constans.SERVERSESSIONUSERINFOCONTEXT);
         Boolean downloadFileUserDirectBuffer = sessionContext.getAttribute(Constans.DOWNLOADFILEUSERDIRECTBUFFER);
+        Boolean downloadFileSequentialStream = sessionContext.getAttribute(Constans.DOWNLOADFILESEQUENTIALSTREAM);
+        Boolean uploadFileStreaming = sessionContext.getAttribute(Constans.UPLOADFILESTREAMING);
 
         if (StorageType.LOCAL.type().equals(serverSessionUserInfoContext.getAccessStorageType())) {
             virtualFileSystemFactory.setDefaultHomeDir(Path.of(serverSessionUserInfoContext.getUserRootPath()));
@@ -72,6 +74,12 @@ public class DynamicVirtualFileSystemFactory implements FileSystemFactory {
             env.put(S3SftpNioSpiConfiguration.SESSION_CONTEXT, sessionContext);
             env.put(S3SftpNioSpiConfiguration.REGION, serverSessionUserInfoContext.getS3Region());
             env.put(S3SftpNioSpiConfiguration.DOWNLOAD_FILE_USE_DIRECT_BUFFER, downloadFileUserDirectBuffer);
+            if (downloadFileSequentialStream != null) {
+                env.put(S3SftpNioSpiConfiguration.DOWNLOAD_FILE_SEQUENTIAL_STREAM, downloadFileSequentialStream);
+            }
+            if (uploadFileStreaming != null) {
+                env.put(S3SftpNioSpiConfiguration.UPLOAD_FILE_STREAMING, uploadFileStreaming);
+            }
             URI s3Urix = URI.create(serverSessionUserInfoContext.getS3SftpSchemeUri());
             S3SftpFileSystemProvider s3FileSystemProvider = new S3SftpFileSystemProvider();
             FileSystem fileSystem = s3FileSystemProvider.newFileSystem(s3Urix, env);
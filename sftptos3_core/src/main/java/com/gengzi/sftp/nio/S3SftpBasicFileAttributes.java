@@ -1,7 +1,9 @@
 package com.gengzi.sftp.nio;
 
 
+import com.gengzi.sftp.cache.AbsentKeyCacheUtil;
 import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.DirectoryListing;
 import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
 import com.gengzi.sftp.nio.constans.Constants;
 import com.gengzi.sftp.s3.client.S3SftpClient;
@@ -13,6 +15,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
@@ -74,13 +77,33 @@ public class S3SftpBasicFileAttributes implements BasicFileAttributes {
     }
 
     public static S3SftpBasicFileAttributes get(S3SftpPath path) throws IOException {
+        // 目录项直接使用列表中的元信息，不查询缓存和 s3
+        ObjectHeadResponse listedAttributes = path.listedAttributes();
+        if (listedAttributes != null) {
+            return getS3SftpBasicFileAttributes(listedAttributes);
+        }
         String key = path.getKey();
         ObjectHeadResponse cacheValue = UserPathFileAttributesCacheUtil.getCacheValue(path);
         if (cacheValue != null) {
+            // 热点属性在后台刷新，本次仍然使用缓存的值；
+            // 以 / 结尾的目录key查询属性需要完整列出目录，而调用方只关心是否为目录，不刷新，按过期时间失效
+            if (!key.endsWith(Constants.PATH_SEPARATOR) && UserPathFileAttributesCacheUtil.claimRefresh(path)) {
+                S3SftpMetadataRefresher.refreshAttributes(path);
+            }
             return getS3SftpBasicFileAttributes(cacheValue);
         } else {
+            // 短时间内已经确认文件和目录都不存在
+            if (AbsentKeyCacheUtil.isAbsent(path, true)) {
+                throw new NoSuchFileException("no such file,path:" + key);
+            }
             S3SftpClient client = path.getFileSystem().client();
-            ObjectHeadResponse objectHeadResponse = client.headFileOrDirObject(path.bucketName(), key);
+            ObjectHeadResponse objectHeadResponse;
+            try {
+                objectHeadResponse = client.headFileOrDirObject(path.bucketName(), key);
+            } catch (NoSuchFileException e) {
+                AbsentKeyCacheUtil.putAbsent(path, true);
+                throw e;
+            }
             // 处理空字节对象目录
             objectHeadResponse = execZeroObject(key,objectHeadResponse);
             putChache(path, objectHeadResponse);
@@ -187,9 +210,12 @@ public class S3SftpBasicFileAttributes implements BasicFileAttributes {
         // 处理目录，如果当前路径是一个目录
         String pathKey = path.getKey();
         if (objectHeadResponse != null && objectHeadResponse.isDirectory() && objectHeadResponse.getListObjects() != null) {
-            DirectoryContentsNamesCacheUtil.putCacheValue(path.getFileSystem(), path.getKey(), objectHeadResponse.getListObjects().getObjectsNames());
-
             ListObjectsResponse listObjects = objectHeadResponse.getListObjects();
+            // 只有部分内容时不能作为目录列表缓存，子项的属性仍然可以缓存
+            if (!listObjects.isTruncated()) {
+                DirectoryContentsNamesCacheUtil.putCacheValue(path.getFileSystem(), path.getKey(), DirectoryListing.of(listObjects));
+            }
+
             if (listObjects.getPrefixes() != null && !listObjects.getPrefixes().isEmpty()) {
                 for (Map.Entry<String, ObjectHeadResponse> entry : listObjects.getPrefixes().entrySet()) {
                     String key = entry.getKey();
@@ -1,6 +1,7 @@
 package com.gengzi.sftp.nio;
 
 import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.DirectoryListing;
 import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
 import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
 import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
@@ -8,18 +9,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
 
+/**
+ * 目录流
+ * <p>
+ * 没有目录列表缓存时按页列出目录内容（每页最多1000个），第一页返回后就可以开始迭代，
+ * 迭代当前页的同时在后台获取下一页，内存中最多保存两页的内容。
+ * 两种方式产生的目录项都携带列出时得到的属性
+ */
 public class S3SftpDirectoryStream implements DirectoryStream {
+    // 目录列表缓存最多保存的名称数量，超过后不缓存该目录的列表，避免超大目录占用内存
+    static final int MAX_CACHED_NAMES = 10000;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     private String bucketName;
@@ -32,32 +48,26 @@ public class S3SftpDirectoryStream implements DirectoryStream {
 
     private Iterator<Path> dirs;
 
+    private volatile boolean closed;
+
 
-    public S3SftpDirectoryStream(S3SftpFileSystem fileSystem, String bucketName, String path, DirectoryStream.Filter<? super Path> filter) {
+    public S3SftpDirectoryStream(S3SftpFileSystem fileSystem, String bucketName, String path, DirectoryStream.Filter<? super Path> filter) throws IOException {
         this.path = path;
         this.bucketName = bucketName;
         this.fileSystem = fileSystem;
         this.filter = filter;
 
-        List<String> cacheValue = DirectoryContentsNamesCacheUtil.getCacheValue(fileSystem, path);
+        DirectoryListing cacheValue = DirectoryContentsNamesCacheUtil.getCacheListing(fileSystem, path);
         if (cacheValue != null) {
+            // 热点目录在后台重新列出，本次仍然使用缓存的列表
+            if (DirectoryContentsNamesCacheUtil.claimRefresh(fileSystem, path)) {
+                S3SftpMetadataRefresher.refreshListing(fileSystem, bucketName, path);
+            }
             filterFileNams(fileSystem, path, filter, cacheValue);
         } else {
-            CompletableFuture<ListObjectsResponse> listObjects = fileSystem.client().getCurrentKeyDirAllListObjects(bucketName, path);
-            try {
-                ListObjectsResponse listObjectsResponse = listObjects.get(fileSystem.configuration().timeout(), fileSystem.configuration().timeoutUnit());
-                // 设置缓存
-                putCacheValue(fileSystem, path, listObjectsResponse);
-                filterFileNams(fileSystem, path, filter, listObjectsResponse.getObjectsNames());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
-            } catch (TimeoutException e) {
-                logger.error("getCurrentKeyDirAllFileNames time out");
-                throw new RuntimeException(e);
-            }
+            // 等待第一页返回，目录不存在等错误在打开目录时抛出
+            ListObjectsResponse firstPage = awaitPage(fileSystem.client().getCurrentKeyDirListObjectsPage(bucketName, path, null));
+            dirs = new PagedIterator(firstPage);
         }
 
     }
@@ -66,21 +76,49 @@ public class S3SftpDirectoryStream implements DirectoryStream {
         return ((S3SftpPath) p).getKey().equals(finalDirName);
     }
 
-    private void putCacheValue(S3SftpFileSystem fileSystem, String path, ListObjectsResponse listObjectsResponse) {
-        // 如果响应为空，直接返回避免后续处理
-        if (listObjectsResponse == null) {
-            return;
+    /**
+     * 等待一页列表结果
+     *
+     * @param page 列表请求
+     * @return
+     * @throws IOException 请求失败、超时或等待时被中断
+     */
+    private ListObjectsResponse awaitPage(CompletableFuture<ListObjectsResponse> page) throws IOException {
+        try {
+            return page.get(fileSystem.configuration().timeout(), fileSystem.configuration().timeoutUnit());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            page.cancel(true);
+            throw new InterruptedIOException("list directory " + path + " interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("list directory " + path + " failed: " + cause.getMessage(), cause);
+        } catch (TimeoutException e) {
+            logger.error("getCurrentKeyDirListObjectsPage time out");
+            page.cancel(true);
+            throw new IOException("list directory " + path + " timed out", e);
         }
-        DirectoryContentsNamesCacheUtil.putCacheValue(fileSystem, path, listObjectsResponse.getObjectsNames());
+    }
+
+    /**
+     * 缓存一页中文件和子目录的属性
+     *
+     * @param page      当前页
+     * @param firstPage 是否为第一页
+     */
+    private void putCacheValue(ListObjectsResponse page, boolean firstPage) {
         // 提取对象和前缀集合（减少重复调用）
-        Map<String, ObjectHeadResponse> objects = listObjectsResponse.getObjects();
-        Map<String, ObjectHeadResponse> prefixes = listObjectsResponse.getPrefixes();
+        Map<String, ObjectHeadResponse> objects = page.getObjects();
+        Map<String, ObjectHeadResponse> prefixes = page.getPrefixes();
 
-        // 检查前缀为空且对象集合只有一个元素
+        // 只有一页时，检查前缀为空且对象集合只有一个元素
         boolean isPrefixesEmpty = prefixes == null || prefixes.isEmpty();
         boolean isSingleObject = objects != null && objects.size() == 1;
 
-        if (isPrefixesEmpty && isSingleObject && objects.containsKey(path)) {
+        if (firstPage && !page.isTruncated() && isPrefixesEmpty && isSingleObject && objects.containsKey(path)) {
             ObjectHeadResponse objectHeadResponse = objects.get(path);
             // 验证对象不为空且大小为0
             if (objectHeadResponse != null && objectHeadResponse.getSize() == 0L) {
@@ -121,9 +159,10 @@ public class S3SftpDirectoryStream implements DirectoryStream {
         );
     }
 
-    private void filterFileNams(S3SftpFileSystem fileSystem, String path, Filter<? super Path> filter, List<String> fileNames) {
-        dirs = fileNames.stream()
-                .map(fileName -> fileSystem.getPath(fileName))
+    private void filterFileNams(S3SftpFileSystem fileSystem, String path, Filter<? super Path> filter, DirectoryListing listing) {
+        // 与按页列出时一样，目录项携带缓存列表中的子项属性
+        dirs = listing.names().stream()
+                .map(fileName -> (Path) S3SftpPath.getListedPath(fileSystem, fileName, listing.attributes(fileName)))
                 .filter(s3Sftppath -> !isEqualToParent(path, s3Sftppath))
                 .filter(s3Sftppath -> tryAccept(filter, s3Sftppath))
                 .iterator();
@@ -168,6 +207,106 @@ public class S3SftpDirectoryStream implements DirectoryStream {
      */
     @Override
     public void close() throws IOException {
+        closed = true;
+        if (dirs instanceof PagedIterator) {
+            ((PagedIterator) dirs).cancel();
+        }
+    }
+
+    /**
+     * 按页迭代目录内容，迭代当前页时预取下一页
+     */
+    private class PagedIterator implements Iterator<Path> {
+
+        private ListObjectsResponse page;
+        private Iterator<String> names;
+        private CompletableFuture<ListObjectsResponse> nextPage;
+        // 用于设置目录列表缓存的名称，超过 MAX_CACHED_NAMES 后为 null
+        private List<String> cachedNames = new ArrayList<>();
+        // 与 cachedNames 一起缓存的子项属性
+        private Map<String, ObjectHeadResponse> cachedAttributes = new HashMap<>();
+        private Path next;
 
+        PagedIterator(ListObjectsResponse firstPage) {
+            onPage(firstPage, true);
+        }
+
+        private void onPage(ListObjectsResponse page, boolean firstPage) {
+            // 先发起下一页的请求，再处理当前页
+            if (page.isTruncated() && page.getNextContinuationToken() != null) {
+                nextPage = fileSystem.client().getCurrentKeyDirListObjectsPage(bucketName, path, page.getNextContinuationToken());
+            } else {
+                nextPage = null;
+            }
+            putCacheValue(page, firstPage);
+            List<String> pageNames = page.getObjectsNames();
+            if (cachedNames != null) {
+                if (cachedNames.size() + pageNames.size() > MAX_CACHED_NAMES) {
+                    logger.debug("directory {} has more than {} entries, skip contents names cache", path, MAX_CACHED_NAMES);
+                    cachedNames = null;
+                    cachedAttributes = null;
+                } else {
+                    cachedNames.addAll(pageNames);
+                    DirectoryListing.collectAttributes(page, cachedAttributes);
+                    if (nextPage == null) {
+                        // 设置缓存
+                        DirectoryContentsNamesCacheUtil.putCacheValue(fileSystem, path, new DirectoryListing(cachedNames, cachedAttributes));
+                    }
+                }
+            }
+            this.page = page;
+            names = pageNames.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (closed) {
+                    return false;
+                }
+                if (names.hasNext()) {
+                    // 目录项携带列表中的元信息，SSHD 读取属性时不需要再逐个查询
+                    String name = names.next();
+                    ObjectHeadResponse listedAttributes = page.getObjects().get(name);
+                    if (listedAttributes == null) {
+                        listedAttributes = page.getPrefixes().get(name);
+                    }
+                    Path candidate = S3SftpPath.getListedPath(fileSystem, name, listedAttributes);
+                    if (!isEqualToParent(path, candidate) && tryAccept(filter, candidate)) {
+                        next = candidate;
+                    }
+                } else if (nextPage != null) {
+                    ListObjectsResponse loaded;
+                    try {
+                        loaded = awaitPage(nextPage);
+                    } catch (IOException e) {
+                        // 迭代过程中的错误按 DirectoryStream 的约定抛出
+                        nextPage = null;
+                        throw new DirectoryIteratorException(e);
+                    }
+                    onPage(loaded, false);
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+        }
+
+        private void cancel() {
+            CompletableFuture<ListObjectsResponse> page = nextPage;
+            if (page != null) {
+                page.cancel(true);
+            }
+        }
     }
 }
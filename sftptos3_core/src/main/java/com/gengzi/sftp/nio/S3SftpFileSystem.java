@@ -29,6 +29,15 @@ public class S3SftpFileSystem extends FileSystem {
     private final S3SftpNioSpiConfiguration s3SftpNioSpiConfiguration;
     private final String bucketName;
     private final S3SftpClient s3Client;
+    // 以下在创建文件系统时计算一次，查询缓存时直接使用
+    // 用户根目录（路径形式）
+    private final String userRoot;
+    // 去掉首尾 / 的用户根目录，用于判断key是否在用户根目录下
+    private final String userRootKey;
+    // 元信息索引范围，驻留后同一存储桶的文件系统共享同一个字符串实例
+    private final String metadataIndexScope;
+    // 用户根目录对应的路径，路径不可变，可以共享
+    private final S3SftpPath rootPath;
     private boolean open = true;
 
     // 定义一个集合存储所有的channel
@@ -49,6 +58,58 @@ public class S3SftpFileSystem extends FileSystem {
         this.bucketName = config.getBucketName();
         // 根据配置创建s3client
         this.s3Client = S3ClientFactory.getS3Client(config.clientName().name(), config);
+        this.userRoot = S3SftpPosixLikePathRepresentation.of(config.userRootPath()).toString();
+        this.userRootKey = trimSeparators(config.userRootPath());
+        this.metadataIndexScope = config.getMetadataIndexScope().intern();
+        this.rootPath = S3SftpPath.getPath(this, userRoot);
+    }
+
+    private static String trimSeparators(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * 用户根目录
+     *
+     * @return
+     */
+    public String userRoot() {
+        return userRoot;
+    }
+
+    /**
+     * 用户根目录对应的路径
+     *
+     * @return
+     */
+    S3SftpPath rootPath() {
+        return rootPath;
+    }
+
+    /**
+     * 去掉首尾 / 的用户根目录，整个存储桶时为空字符串
+     *
+     * @return
+     */
+    public String userRootKey() {
+        return userRootKey;
+    }
+
+    /**
+     * 元信息索引范围
+     *
+     * @return
+     */
+    public String metadataIndexScope() {
+        return metadataIndexScope;
     }
 
     public S3SftpClient client() {
@@ -79,7 +140,8 @@ public class S3SftpFileSystem extends FileSystem {
             }
         }
         provider().closeFileSystem(this);
-
+        // 释放s3客户端资源（closeFileSystem 会再次调用 close，client.close 可重复调用）
+        s3Client.close();
     }
 
     @Override
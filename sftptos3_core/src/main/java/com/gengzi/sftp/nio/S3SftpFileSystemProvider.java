@@ -1,15 +1,15 @@
 package com.gengzi.sftp.nio;
 
+import com.gengzi.sftp.cache.AbsentKeyCacheUtil;
 import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.SharedFragmentCache;
 import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
 import com.gengzi.sftp.nio.constans.Constants;
 import com.gengzi.sftp.s3.client.S3SftpClient;
-import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
 import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import software.amazon.awssdk.transfer.s3.model.CompletedCopy;
 
 import java.io.IOException;
 import java.net.URI;
@@ -25,7 +25,7 @@ import java.util.concurrent.*;
 import java.util.function.Function;
 
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * s3sftp文件系统提供者
@@ -63,17 +63,6 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
         }
     }
 
-    private static List<String> getContainedObjectBatches(
-            S3SftpClient s3Client,
-            String bucketName,
-            String prefix,
-            long timeOut,
-            TimeUnit unit
-    ) throws InterruptedException, ExecutionException, TimeoutException {
-        CompletableFuture<ListObjectsResponse> currentKeyDirAllFileNames = s3Client.getCurrentKeyDirAllListObjects(bucketName, prefix);
-        return currentKeyDirAllFileNames.get(timeOut, unit).getObjectsNames();
-    }
-
     @Override
     public String getScheme() {
         return SCHEME;
@@ -191,6 +180,7 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
             S3SftpFileSystem fileSystem = s3Directory.getFileSystem();
             fileSystem.client().putObjectToCreateDirectory(s3Directory.bucketName(), directoryKey)
                     .get(fileSystem.configuration().timeout(), fileSystem.configuration().timeoutUnit());
+            AbsentKeyCacheUtil.removeAbsent(fileSystem, directoryKey);
         } catch (TimeoutException e) {
             throw new RuntimeException(e);
         } catch (InterruptedException e) {
@@ -236,9 +226,32 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
                 throw new DirectoryNotEmptyException("dir is not empty");
             }
         }
-        // 移除缓存
+        // 移除缓存，目录需要连同子树一起失效
         UserPathFileAttributesCacheUtil.removeCacheValue(deletePath.toRealPath(LinkOption.NOFOLLOW_LINKS));
         DirectoryContentsNamesCacheUtil.removeCacheValue(deletePath.getFileSystem(), deletePathKey);
+        if (directory) {
+            DirectoryContentsNamesCacheUtil.removeCacheTree(deletePath.getFileSystem(), deletePathKey);
+        } else {
+            SharedFragmentCache.shared().invalidateObject(configuration.getEndpoint(), bucketName, deletePathKey);
+        }
+    }
+
+    /**
+     * 递归删除文件或目录（包括非空目录）
+     * 目录下的对象按每批1000个批量删除，不需要逐级列出和逐个删除
+     *
+     * @param path 要删除的文件或目录
+     * @return 删除的对象数量
+     * @throws IOException
+     */
+    public long deleteTree(Path path) throws IOException {
+        S3SftpPath deletePath = checkPath(path);
+        S3SftpBasicFileAttributes s3SftpBasicFileAttributes = S3SftpBasicFileAttributes.getNoCache(deletePath);
+        if (!s3SftpBasicFileAttributes.isDirectory()) {
+            delete(deletePath);
+            return 1;
+        }
+        return S3SftpRecursiveDeleter.delete(deletePath);
     }
 
     /**
@@ -258,46 +271,59 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
 
         var s3SourcePath = checkPath(source);
         var s3TargetPath = checkPath(target);
-        // 判断源path是否为path
+        // 源路径是目录时复制整个目录
         S3SftpBasicFileAttributes s3SftpBasicFileAttributes = S3SftpBasicFileAttributes.get(s3SourcePath);
-        if(s3SftpBasicFileAttributes.isDirectory()){
-            logger.error("Invalid command,because source path:{} is dir",s3SourcePath.toString());
-            throw new FileSystemException("Invalid command,because source path is dir");
+        if (s3SftpBasicFileAttributes.isDirectory()) {
+            S3SftpTreeCopier.copy(s3SourcePath, s3TargetPath, options);
+            return;
         }
+        copyFile(s3SourcePath, s3TargetPath, s3SftpBasicFileAttributes, options);
+    }
+
+    /**
+     * 复制单个文件
+     *
+     * @param s3SourcePath              源文件
+     * @param s3TargetPath              目标路径
+     * @param s3SftpBasicFileAttributes 已经获取的源文件属性
+     * @param options                   复制选项
+     * @throws IOException
+     */
+    private void copyFile(S3SftpPath s3SourcePath, S3SftpPath s3TargetPath,
+                          S3SftpBasicFileAttributes s3SftpBasicFileAttributes, CopyOption... options) throws IOException {
         // 移除缓存
         DirectoryContentsNamesCacheUtil.removeCacheValue(s3TargetPath.getFileSystem(), s3TargetPath.getKey());
 
         final var s3Client = s3SourcePath.getFileSystem().client();
         final var sourceBucket = s3SourcePath.bucketName();
+        final var configuration = s3SourcePath.getFileSystem().configuration();
 
-        final var timeOut = 1L;
-        final var unit = MINUTES;
+        // 已知源对象大小，复制时不再查询，超时时间按对象大小放大
+        final long sourceSize = s3SftpBasicFileAttributes.size();
 
         var fileExistsAndCannotReplace = cannotReplaceAndFileExistsCheck(options, s3Client);
 
         try {
-            var sourcePrefix = s3SourcePath.toRealPath(NOFOLLOW_LINKS).getKey();
+            var sourceKey = s3SourcePath.toRealPath(NOFOLLOW_LINKS).getKey();
 
-            List<String> sourceKeys;
             String prefixWithSeparator;
-            if (s3SourcePath.isDirectory()) {
-                sourceKeys = getContainedObjectBatches(s3Client, sourceBucket, sourcePrefix, timeOut, unit);
-                prefixWithSeparator = sourcePrefix;
+            // 处理根目录文件的情况
+            int lastSeparatorIndex = sourceKey.lastIndexOf(PATH_SEPARATOR);
+            if (lastSeparatorIndex == -1) {
+                // 根目录下的文件，前缀为空字符串加路径分隔符
+                prefixWithSeparator = PATH_SEPARATOR;
             } else {
-                sourceKeys = List.of(sourcePrefix);
-                // 处理根目录文件的情况
-                int lastSeparatorIndex = sourcePrefix.lastIndexOf(PATH_SEPARATOR);
-                if (lastSeparatorIndex == -1) {
-                    // 根目录下的文件，前缀为空字符串加路径分隔符
-                    prefixWithSeparator = PATH_SEPARATOR;
-                } else {
-                    // 非根目录文件，使用原逻辑
-                    prefixWithSeparator = sourcePrefix.substring(0, lastSeparatorIndex) + PATH_SEPARATOR;
-                }
+                // 非根目录文件，使用原逻辑
+                prefixWithSeparator = sourceKey.substring(0, lastSeparatorIndex) + PATH_SEPARATOR;
             }
 
-            for (var key : sourceKeys) {
-                copyKey(s3Client, key, prefixWithSeparator, sourceBucket, s3TargetPath, fileExistsAndCannotReplace).get(timeOut, unit);
+            CompletableFuture<?> copy = copyKey(s3Client, sourceKey, prefixWithSeparator, sourceBucket, s3TargetPath, sourceSize, fileExistsAndCannotReplace);
+            try {
+                copy.get(configuration.copyTimeoutMillis(sourceSize), MILLISECONDS);
+            } catch (TimeoutException | InterruptedException e) {
+                // 取消复制（分片复制同时取消分片上传），移动时不会在源对象删除前留下后台继续的复制
+                copy.cancel(true);
+                throw e;
             }
 
         } catch (TimeoutException e) {
@@ -322,12 +348,17 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
         };
     }
 
-    private CompletableFuture<CompletedCopy> copyKey(
+    /**
+     * @param sourceSize 源对象大小，小于0表示未知
+     * @return 复制请求本身的future，取消时取消复制
+     */
+    private CompletableFuture<?> copyKey(
             S3SftpClient s3Client,
             String sourceObjectIdentifierKey,
             String sourcePrefix,
             String sourceBucket,
             S3SftpPath targetPath,
+            long sourceSize,
             Function<S3SftpPath, Boolean> fileExistsAndCannotReplaceFn
     ) throws FileAlreadyExistsException {
         final var sanitizedIdKey = sourceObjectIdentifierKey.replaceFirst(sourcePrefix, "");
@@ -341,13 +372,33 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
             throw new FileAlreadyExistsException("File already exists at the target key");
         }
 
-        return s3Client.copyObject(sourceBucket, sourceObjectIdentifierKey, targetPath.bucketName(), targetPath.getKey());
+        S3SftpPath copyTargetPath = targetPath;
+        CompletableFuture<?> copy = s3Client.copyObject(sourceBucket, sourceObjectIdentifierKey, targetPath.bucketName(), targetPath.getKey(), sourceSize);
+        copy.whenComplete((completedCopy, throwable) -> {
+            AbsentKeyCacheUtil.removeAbsent(copyTargetPath.getFileSystem(), copyTargetPath.getKey());
+            SharedFragmentCache.shared().invalidateObject(copyTargetPath.getFileSystem().configuration().getEndpoint(),
+                    copyTargetPath.bucketName(), copyTargetPath.getKey());
+        });
+        return copy;
     }
 
     @Override
     public void move(Path source, Path target, CopyOption... options) throws IOException {
-        this.copy(source, target, options);
+        if (source.equals(target)) {
+            return;
+        }
+        // 目录整体复制后批量删除源对象；源属性只获取一次，复制文件时直接使用
+        S3SftpPath s3SourcePath = checkPath(source);
+        S3SftpPath s3TargetPath = checkPath(target);
+        S3SftpBasicFileAttributes s3SftpBasicFileAttributes = S3SftpBasicFileAttributes.get(s3SourcePath);
+        if (s3SftpBasicFileAttributes.isDirectory()) {
+            S3SftpTreeCopier.move(s3SourcePath, s3TargetPath, options);
+            return;
+        }
+        copyFile(s3SourcePath, s3TargetPath, s3SftpBasicFileAttributes, options);
         this.delete(source);
+        // 源路径及其子树的缓存全部失效
+        DirectoryContentsNamesCacheUtil.removeCacheTree(s3SourcePath.getFileSystem(), s3SourcePath.toRealPath(NOFOLLOW_LINKS).getKey());
     }
 
     @Override
@@ -457,10 +508,15 @@ public class S3SftpFileSystemProvider extends FileSystemProvider {
      * @param s3SftpPath 文件
      */
     public Boolean exists(S3SftpClient s3Client, S3SftpPath s3SftpPath) {
-        // TODO 增加缓存，耗时操作  ？？？
+        // 短时间内已经确认不存在的key不再请求
+        if (AbsentKeyCacheUtil.isAbsent(s3SftpPath, false)) {
+            return false;
+        }
         try {
             ObjectHeadResponse objectHeadResponse = s3Client.headObject(s3SftpPath.bucketName(), s3SftpPath.getKey());
             if (objectHeadResponse == null) {
+                // 只能说明没有该对象，不能说明没有同名目录
+                AbsentKeyCacheUtil.putAbsent(s3SftpPath, false);
                 return false;
             }
             return true;
@@ -0,0 +1,113 @@
+package com.gengzi.sftp.nio;
+
+import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.DirectoryListing;
+import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 热点元信息的后台刷新
+ * <p>
+ * 缓存的目录列表和属性写入超过刷新时间后再被读取时，由第一个读取者提交后台刷新，
+ * 刷新期间所有读取者继续使用旧值，热点目录不会在过期时出现同步的全量列表请求。
+ * 刷新是尽力而为的，任务过多时直接丢弃，条目按过期时间正常失效
+ */
+final class S3SftpMetadataRefresher {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpMetadataRefresher.class);
+
+    private static final String THREAD_NAME_PREFIX = "sftptos3-metadata-refresh-thread-";
+    // 同步的属性查询使用的线程数和排队上限
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUED = 1000;
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    private S3SftpMetadataRefresher() {
+    }
+
+    /**
+     * 后台重新列出目录，更新目录列表和子项的属性
+     *
+     * @param fileSystem
+     * @param bucketName
+     * @param path       目录key
+     */
+    static void refreshListing(S3SftpFileSystem fileSystem, String bucketName, String path) {
+        logger.debug("refresh directory listing:{}", path);
+        CompletableFuture<ListObjectsResponse> listing = fileSystem.client().getCurrentKeyDirAllListObjects(bucketName, path);
+        listing.whenComplete((listObjects, throwable) -> {
+            if (throwable != null) {
+                logger.debug("refresh directory listing:{} error:{}", path, throwable.getMessage());
+                return;
+            }
+            DirectoryListing refreshed = DirectoryListing.of(listObjects);
+            if (refreshed.names().size() > S3SftpDirectoryStream.MAX_CACHED_NAMES
+                    || !DirectoryContentsNamesCacheUtil.putRefreshedValue(fileSystem, path, refreshed)) {
+                // 刷新期间目录发生了变更（列表已被失效），丢弃这次刷新结果
+                return;
+            }
+            putEntries(fileSystem, path, listObjects.getObjects());
+            putEntries(fileSystem, path, listObjects.getPrefixes());
+        });
+    }
+
+    /**
+     * 后台重新查询文件或目录的属性
+     *
+     * @param path
+     */
+    static void refreshAttributes(S3SftpPath path) {
+        logger.debug("refresh attributes:{}", path);
+        executor.execute(() -> {
+            String key = path.getKey();
+            try {
+                ObjectHeadResponse objectHeadResponse = path.getFileSystem().client().headFileOrDirObject(path.bucketName(), key);
+                // 只刷新属性本身，目录下子项的缓存由目录列表刷新
+                UserPathFileAttributesCacheUtil.putRefreshedValue(path,
+                        S3SftpBasicFileAttributes.execZeroObject(key, objectHeadResponse));
+            } catch (NoSuchFileException e) {
+                // 已经被其他客户端删除
+                UserPathFileAttributesCacheUtil.removeCacheValue(path);
+            } catch (Exception e) {
+                logger.debug("refresh attributes:{} error:{}", path, e.getMessage());
+            }
+        });
+    }
+
+    private static void putEntries(S3SftpFileSystem fileSystem, String path, Map<String, ObjectHeadResponse> entries) {
+        if (entries == null) {
+            return;
+        }
+        entries.forEach((key, value) -> {
+            if (!key.equals(path)) {
+                UserPathFileAttributesCacheUtil.putCacheValue(fileSystem, key, value);
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED),
+                r -> {
+                    Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+}
@@ -0,0 +1,293 @@
+package com.gengzi.sftp.nio;
+
+import com.gengzi.sftp.s3.client.S3SftpClient;
+import com.gengzi.sftp.util.DirectBufferPool;
+import com.gengzi.sftp.util.PooledByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 流式分片上传
+ * <p>
+ * 顺序写入的数据先写入池化的分片缓冲区（上传专用的缓冲区池，不占用下载的预算，预算不足时等待其他分片上传完成），
+ * 缓冲区写满后立即以分片上传的方式异步上传，
+ * 同时上传的分片数量不超过 maxConcurrentParts（超过时写入阻塞，形成背压）。
+ * 分片数量有上限（10000），每上传 1000 个分片分片大小加倍（最大 MAX_GROWN_PART_SIZE，且不超过缓冲区池的最大级别），
+ * 默认8mb分片时可以上传约 860gb 的文件。
+ * 关闭时上传最后一个分片并完成分片上传；数据不足一个分片时直接使用一次 PUT 上传
+ */
+class S3SftpMultipartUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpMultipartUploader.class);
+
+    // s3 分片上传除最后一个分片外，分片最小 5mb
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    // s3 分片上传最多 10000 个分片
+    private static final int MAX_PART_NUMBER = 10000;
+    // 每上传该数量的分片，分片大小加倍
+    private static final int PARTS_PER_SIZE_STEP = 1000;
+    // 分片大小增长的上限 128mb，限制单个上传占用的内存
+    static final int MAX_GROWN_PART_SIZE = 128 * 1024 * 1024;
+
+    private final S3SftpClient s3SftpClient;
+    private final String bucketName;
+    private final String key;
+    private final int partSize;
+    // 分片大小上限，分片都能从上传缓冲区池分配
+    private final int maxPartSize;
+    private final DirectBufferPool bufferPool;
+    private final Semaphore inFlightParts;
+    private final int maxConcurrentParts;
+    private final Long timeout;
+    private final TimeUnit timeUnit;
+    private final SortedMap<Integer, String> partETags = new ConcurrentSkipListMap<>();
+    private final List<CompletableFuture<?>> partFutures = new ArrayList<>();
+    private PooledByteBuffer currentPart;
+    private String uploadId;
+    private int nextPartNumber = 1;
+    // 已写入的字节数，即下一次顺序写入的位置
+    private long position;
+    private volatile Throwable failure;
+    private boolean finished;
+    private boolean aborted;
+
+    /**
+     * @param s3SftpClient       s3客户端
+     * @param bucketName         桶
+     * @param key                对象key
+     * @param partSize           初始分片大小
+     * @param maxConcurrentParts 同时上传的最大分片数
+     * @param timeout            等待s3操作的超时时间
+     * @param timeUnit           超时时间单位
+     */
+    S3SftpMultipartUploader(S3SftpClient s3SftpClient, String bucketName, String key, int partSize,
+                            int maxConcurrentParts, Long timeout, TimeUnit timeUnit) {
+        this.s3SftpClient = s3SftpClient;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.bufferPool = DirectBufferPool.uploadShared();
+        this.maxPartSize = Math.max(MIN_PART_SIZE, Math.min(MAX_GROWN_PART_SIZE, bufferPool.maxClassSize()));
+        this.partSize = Math.min(maxPartSize, Math.max(MIN_PART_SIZE, partSize));
+        this.maxConcurrentParts = Math.max(1, maxConcurrentParts);
+        this.inFlightParts = new Semaphore(this.maxConcurrentParts);
+        this.timeout = timeout;
+        this.timeUnit = timeUnit;
+    }
+
+    /**
+     * 下一次顺序写入的位置
+     *
+     * @return
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * 是否已经开始上传分片，开始后不能再退回本地临时文件
+     *
+     * @return
+     */
+    boolean isStarted() {
+        return uploadId != null;
+    }
+
+    /**
+     * 已写入但还未上传的数据（未开始分片上传时退回本地临时文件使用）
+     *
+     * @return
+     */
+    ByteBuffer bufferedData() {
+        if (currentPart == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer data = currentPart.buffer().duplicate();
+        data.flip();
+        return data;
+    }
+
+    /**
+     * 顺序写入数据
+     *
+     * @param src
+     * @return 写入的字节数
+     * @throws IOException 之前的分片上传失败
+     */
+    int write(ByteBuffer src) throws IOException {
+        checkFailure();
+        if (finished) {
+            throw new IOException("multipart upload of " + key + " already finished");
+        }
+        int written = 0;
+        while (src.hasRemaining()) {
+            if (currentPart == null) {
+                currentPart = acquirePart(partSize(nextPartNumber));
+            }
+            ByteBuffer target = currentPart.buffer();
+            int n = Math.min(target.remaining(), src.remaining());
+            int originalLimit = src.limit();
+            src.limit(src.position() + n);
+            target.put(src);
+            src.limit(originalLimit);
+            written += n;
+            position += n;
+            if (!target.hasRemaining()) {
+                uploadCurrentPart();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 上传剩余数据并完成上传
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            checkFailure();
+            if (uploadId == null) {
+                // 数据不足一个分片，直接上传
+                ByteBuffer data = bufferedData();
+                logger.debug("upload {} with single put, length:{}", key, data.remaining());
+                await(s3SftpClient.putObject(bucketName, key, data));
+                return;
+            }
+            if (currentPart != null && currentPart.buffer().position() > 0) {
+                uploadCurrentPart();
+            }
+            await(CompletableFuture.allOf(partFutures.toArray(new CompletableFuture[0])));
+            checkFailure();
+            logger.debug("complete multipart upload {} uploadId:{} parts:{}", key, uploadId, partETags.size());
+            await(s3SftpClient.completeMultipartUpload(bucketName, key, uploadId, partETags));
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } finally {
+            releaseCurrentPart();
+        }
+    }
+
+    /**
+     * 取消上传，删除已上传的分片
+     */
+    void abort() {
+        finished = true;
+        releaseCurrentPart();
+        if (uploadId == null || aborted) {
+            return;
+        }
+        aborted = true;
+        logger.warn("abort multipart upload {} uploadId:{}", key, uploadId);
+        try {
+            await(s3SftpClient.abortMultipartUpload(bucketName, key, uploadId));
+        } catch (IOException e) {
+            logger.error("abort multipart upload {} uploadId:{} error", key, uploadId, e);
+        }
+    }
+
+    /**
+     * 分片的大小，每 PARTS_PER_SIZE_STEP 个分片加倍，不超过 maxPartSize
+     *
+     * @param partNumber 分片序号，从1开始
+     * @return
+     */
+    int partSize(int partNumber) {
+        int steps = Math.min(30, (partNumber - 1) / PARTS_PER_SIZE_STEP);
+        long grown = (long) partSize << steps;
+        return (int) Math.min(grown, maxPartSize);
+    }
+
+    /**
+     * 从上传缓冲区池获取分片缓冲区，预算不足时等待其他分片上传完成归还
+     */
+    private PooledByteBuffer acquirePart(int size) throws IOException {
+        try {
+            PooledByteBuffer part = bufferPool.acquire(size, timeout, timeUnit);
+            if (part == null) {
+                throw new IOException("waiting for upload buffer of " + key + " timeout");
+            }
+            return part;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not write to path:" + key, e);
+        }
+    }
+
+    private void uploadCurrentPart() throws IOException {
+        if (nextPartNumber > MAX_PART_NUMBER) {
+            throw new IOException("multipart upload of " + key + " exceeds " + MAX_PART_NUMBER + " parts");
+        }
+        if (uploadId == null) {
+            uploadId = (String) await(s3SftpClient.createMultipartUpload(bucketName, key));
+            logger.debug("create multipart upload {} uploadId:{}", key, uploadId);
+        }
+        try {
+            // 并发上传数量达到上限时等待
+            if (!inFlightParts.tryAcquire(timeout, timeUnit)) {
+                throw new IOException("waiting for part upload of " + key + " timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not write to path:" + key, e);
+        }
+        PooledByteBuffer part = currentPart;
+        currentPart = null;
+        ByteBuffer content = part.buffer();
+        content.flip();
+        int partNumber = nextPartNumber++;
+        CompletableFuture<?> future = ((CompletableFuture<?>) s3SftpClient.uploadPart(bucketName, key, uploadId, partNumber, content))
+                .whenComplete((eTag, throwable) -> {
+                    part.release();
+                    inFlightParts.release();
+                    if (throwable != null) {
+                        logger.error("upload part {} of {} error", partNumber, key, throwable);
+                        failure = throwable;
+                    } else {
+                        partETags.put(partNumber, (String) eTag);
+                    }
+                });
+        partFutures.add(future);
+        checkFailure();
+    }
+
+    private void releaseCurrentPart() {
+        if (currentPart != null) {
+            currentPart.release();
+            currentPart = null;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Could not write to path:" + key, failure);
+        }
+    }
+
+    private Object await(CompletableFuture<?> future) throws IOException {
+        try {
+            return future.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not write to path:" + key, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Could not write to path:" + key, e);
+        }
+    }
+}
@@ -35,6 +35,57 @@ public class S3SftpNioSpiConfiguration extends HashMap<String, Object> {
     public static final String DOWNLOAD_FILE_USE_DIRECT_BUFFER = "s3sftp.downloadFileUseDirectBuffer";
     public static final Boolean DOWNLOAD_FILE_USE_DIRECT_BUFFER_VAL = false;
 
+    // 下载文件时是否使用顺序流读取（每个句柄只发起一次范围请求，发生seek后退回分片读取）
+    public static final String DOWNLOAD_FILE_SEQUENTIAL_STREAM = "s3sftp.downloadFileSequentialStream";
+    public static final Boolean DOWNLOAD_FILE_SEQUENTIAL_STREAM_VAL = true;
+
+    // 是否启用自适应预读（顺序读取且吞吐持续上升时扩大预读窗口，随机读取或内存紧张时缩小）
+    public static final String READ_AHEAD_ADAPTIVE = "s3sftp.readAheadAdaptive";
+    public static final Boolean READ_AHEAD_ADAPTIVE_VAL = true;
+    // 自适应预读窗口的最大字节数 默认16mb
+    public static final String READ_AHEAD_MAX_BYTES = "s3sftp.readAheadMaxBytes";
+    public static final int READ_AHEAD_MAX_BYTES_VAL = 16 * 1024 * 1024;
+
+    // 上传文件时是否使用流式分片上传（顺序写入的数据直接分片上传，不经过本地临时文件）
+    public static final String UPLOAD_FILE_STREAMING = "s3sftp.uploadFileStreaming";
+    public static final Boolean UPLOAD_FILE_STREAMING_VAL = true;
+    // 流式上传的分片大小 默认8mb（最小5mb）
+    public static final String UPLOAD_PART_SIZE = "s3sftp.uploadPartSize";
+    public static final int UPLOAD_PART_SIZE_VAL = 8 * 1024 * 1024;
+    // 流式上传时每个文件同时上传的最大分片数
+    public static final String UPLOAD_MAX_CONCURRENT_PARTS = "s3sftp.uploadMaxConcurrentParts";
+    public static final int UPLOAD_MAX_CONCURRENT_PARTS_VAL = 4;
+
+    // 流式上传时乱序写入重排缓冲区的内存上限，超出后暂存到本地临时文件 默认32mb
+    public static final String UPLOAD_REORDER_BUFFER_BYTES = "s3sftp.uploadReorderBufferBytes";
+    public static final long UPLOAD_REORDER_BUFFER_BYTES_VAL = 32L * 1024 * 1024;
+
+    // 传输管理器（复制、本地文件上传下载）自动分片的分片大小 默认8mb
+    public static final String TRANSFER_PART_SIZE = "s3sftp.transferPartSize";
+    public static final long TRANSFER_PART_SIZE_VAL = 8L * 1024 * 1024;
+    // 传输管理器超过该大小才分片传输 默认16mb
+    public static final String TRANSFER_THRESHOLD = "s3sftp.transferThreshold";
+    public static final long TRANSFER_THRESHOLD_VAL = 16L * 1024 * 1024;
+    // 传输管理器的线程数
+    public static final String TRANSFER_CONCURRENCY = "s3sftp.transferConcurrency";
+    public static final int TRANSFER_CONCURRENCY_VAL = 8;
+
+    // 递归删除目录时同时进行的批量删除请求数（每批最多1000个key）
+    public static final String DELETE_MAX_CONCURRENT_BATCHES = "s3sftp.deleteMaxConcurrentBatches";
+    public static final int DELETE_MAX_CONCURRENT_BATCHES_VAL = 4;
+    // 复制或移动目录时同时进行的对象复制数
+    public static final String COPY_MAX_CONCURRENT_OBJECTS = "s3sftp.copyMaxConcurrentObjects";
+    public static final int COPY_MAX_CONCURRENT_OBJECTS_VAL = 16;
+    // 超过该大小的对象使用分片复制（UploadPartCopy）默认64mb，分片大小按对象大小计算
+    public static final String COPY_MULTIPART_THRESHOLD = "s3sftp.copyMultipartThreshold";
+    public static final long COPY_MULTIPART_THRESHOLD_VAL = 64L * 1024 * 1024;
+    // 分片复制时每个对象同时复制的最大分片数
+    public static final String COPY_MAX_CONCURRENT_PARTS = "s3sftp.copyMaxConcurrentParts";
+    public static final int COPY_MAX_CONCURRENT_PARTS_VAL = 8;
+    // 复制或移动目录的进度记录所在目录，失败后再次执行同样的操作时从记录处继续
+    public static final String TREE_COPY_STATE_DIR = "s3sftp.treeCopyStateDir";
+    public static final String TREE_COPY_STATE_DIR_VAL = System.getProperty("java.io.tmpdir") + "/sftptos3-tree-copy";
+
     // 默认超时时间
     public static final String TIME_OUT = "s3sftp.timeout";
     public static final String TIME_OUT_UNIT = "s3sftp.timeoutUnit";
@@ -48,8 +99,6 @@ public class S3SftpNioSpiConfiguration extends HashMap<String, Object> {
     // sessionContext
     public static final String SESSION_CONTEXT = "s3sftp.sessionContext";
     private static final Pattern ENDPOINT_REGEXP = Pattern.compile("(\\w[\\w\\-\\.]*)?(:(\\d+))?");
-    private static final String USER_PATH_FILE_ATTRIBUTES_CACHE_KEY_PREFIX = "s3sftp.attribute.k.";
-    private static final String DIRECTORY_CONTENTS_NAMES_CACHE_KEY_PREFIX = "s3sftp.directory.k.";
     public static Long TIME_OUT_VAL = 5 * 60L;
     public static TimeUnit TIME_OUT_UNIT_VAL = TimeUnit.SECONDS;
     // 桶
@@ -72,6 +121,21 @@ public class S3SftpNioSpiConfiguration extends HashMap<String, Object> {
         put(FILE_MAXFRAGMENTSIZE, FILE_MAXFRAGMENTSIZE_VAL);
         put(FILE_MAXNUMBERFRAGMENTS, FILE_MAXNUMBERFRAGMENTS_VAL);
         put(DOWNLOAD_FILE_USE_DIRECT_BUFFER, DOWNLOAD_FILE_USE_DIRECT_BUFFER_VAL);
+        put(DOWNLOAD_FILE_SEQUENTIAL_STREAM, DOWNLOAD_FILE_SEQUENTIAL_STREAM_VAL);
+        put(READ_AHEAD_ADAPTIVE, READ_AHEAD_ADAPTIVE_VAL);
+        put(READ_AHEAD_MAX_BYTES, READ_AHEAD_MAX_BYTES_VAL);
+        put(UPLOAD_FILE_STREAMING, UPLOAD_FILE_STREAMING_VAL);
+        put(UPLOAD_PART_SIZE, UPLOAD_PART_SIZE_VAL);
+        put(UPLOAD_MAX_CONCURRENT_PARTS, UPLOAD_MAX_CONCURRENT_PARTS_VAL);
+        put(UPLOAD_REORDER_BUFFER_BYTES, UPLOAD_REORDER_BUFFER_BYTES_VAL);
+        put(TRANSFER_PART_SIZE, TRANSFER_PART_SIZE_VAL);
+        put(TRANSFER_THRESHOLD, TRANSFER_THRESHOLD_VAL);
+        put(TRANSFER_CONCURRENCY, TRANSFER_CONCURRENCY_VAL);
+        put(DELETE_MAX_CONCURRENT_BATCHES, DELETE_MAX_CONCURRENT_BATCHES_VAL);
+        put(COPY_MAX_CONCURRENT_OBJECTS, COPY_MAX_CONCURRENT_OBJECTS_VAL);
+        put(TREE_COPY_STATE_DIR, TREE_COPY_STATE_DIR_VAL);
+        put(COPY_MULTIPART_THRESHOLD, COPY_MULTIPART_THRESHOLD_VAL);
+        put(COPY_MAX_CONCURRENT_PARTS, COPY_MAX_CONCURRENT_PARTS_VAL);
 
 
         // 覆盖默认配置
@@ -164,23 +228,14 @@ public class S3SftpNioSpiConfiguration extends HashMap<String, Object> {
     }
 
     /**
-     * 返回UserPathFileAttributesCacheKey
+     * 元信息索引的范围，同一存储桶的所有用户共享一棵前缀树
      * 拼装规则
-     * username:endpoint/bucketName/pathkey
+     * endpoint/bucketName
      *
      * @return
      */
-    public String getUserPathFileAttributesCacheKey(String pathKey) {
-        String username = sessionContext().getUsername();
-        String cacheKeyPrefixFormat = USER_PATH_FILE_ATTRIBUTES_CACHE_KEY_PREFIX + "%s:%s/%s/%s";
-        return String.format(cacheKeyPrefixFormat, username, getEndpoint(), bucketName, pathKey);
-    }
-
-
-    public String getDirectoryContentsNamesCacheKey(String pathKey) {
-        String username = sessionContext().getUsername();
-        String cacheKeyPrefixFormat = DIRECTORY_CONTENTS_NAMES_CACHE_KEY_PREFIX + "%s:%s/%s/%s";
-        return String.format(cacheKeyPrefixFormat, username, getEndpoint(), bucketName, pathKey);
+    public String getMetadataIndexScope() {
+        return getEndpoint() + Constants.PATH_SEPARATOR + bucketName;
     }
 
 
@@ -202,4 +257,81 @@ public class S3SftpNioSpiConfiguration extends HashMap<String, Object> {
         return (boolean) get(DOWNLOAD_FILE_USE_DIRECT_BUFFER);
     }
 
+    public boolean getDownloadFileSequentialStream() {
+        return (boolean) get(DOWNLOAD_FILE_SEQUENTIAL_STREAM);
+    }
+
+    public boolean getReadAheadAdaptive() {
+        return (boolean) get(READ_AHEAD_ADAPTIVE);
+    }
+
+    public int getReadAheadMaxBytes() {
+        return (int) get(READ_AHEAD_MAX_BYTES);
+    }
+
+    public boolean getUploadFileStreaming() {
+        return (boolean) get(UPLOAD_FILE_STREAMING);
+    }
+
+    public int getUploadPartSize() {
+        return (int) get(UPLOAD_PART_SIZE);
+    }
+
+    public int getUploadMaxConcurrentParts() {
+        return (int) get(UPLOAD_MAX_CONCURRENT_PARTS);
+    }
+
+    public long getUploadReorderBufferBytes() {
+        return (long) get(UPLOAD_REORDER_BUFFER_BYTES);
+    }
+
+    public long getTransferPartSize() {
+        return (long) get(TRANSFER_PART_SIZE);
+    }
+
+    public long getTransferThreshold() {
+        return (long) get(TRANSFER_THRESHOLD);
+    }
+
+    public int getDeleteMaxConcurrentBatches() {
+        return (int) get(DELETE_MAX_CONCURRENT_BATCHES);
+    }
+
+    public int getCopyMaxConcurrentObjects() {
+        return (int) get(COPY_MAX_CONCURRENT_OBJECTS);
+    }
+
+    public long getCopyMultipartThreshold() {
+        return (long) get(COPY_MULTIPART_THRESHOLD);
+    }
+
+    public int getCopyMaxConcurrentParts() {
+        return (int) get(COPY_MAX_CONCURRENT_PARTS);
+    }
+
+    /**
+     * 复制一个对象的超时时间
+     * <p>
+     * timeout 是单个请求的超时，对象按 copyMultipartThreshold 分段、每轮并发 copyMaxConcurrentParts 段，
+     * 按需要的轮数放大，再加一轮给查询、创建和合并分片上传
+     *
+     * @param objectSize 对象大小，小于0表示未知
+     * @return 超时时间（毫秒）
+     */
+    public long copyTimeoutMillis(long objectSize) {
+        long threshold = Math.max(1, getCopyMultipartThreshold());
+        long segments = Math.max(1, (Math.max(0, objectSize) + threshold - 1) / threshold);
+        int concurrentParts = Math.max(1, getCopyMaxConcurrentParts());
+        long rounds = (segments + concurrentParts - 1) / concurrentParts;
+        return timeoutUnit().toMillis(timeout()) * (rounds + 1);
+    }
+
+    public String getTreeCopyStateDir() {
+        return (String) get(TREE_COPY_STATE_DIR);
+    }
+
+    public int getTransferConcurrency() {
+        return (int) get(TRANSFER_CONCURRENCY);
+    }
+
 }
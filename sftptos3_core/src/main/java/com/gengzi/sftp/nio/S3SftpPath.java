@@ -1,5 +1,6 @@
 package com.gengzi.sftp.nio;
 
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
 import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
@@ -8,7 +9,6 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Objects;
 
 import static com.gengzi.sftp.nio.S3SftpFileSystemProvider.checkPath;
@@ -20,10 +20,22 @@ public class S3SftpPath implements Path {
 
     private final S3SftpFileSystem fileSystem;
     private final S3SftpPosixLikePathRepresentation pathRepresentation;
+    // 列出目录时随列表返回的元信息，读取目录项属性时直接使用，不参与 equals
+    private final ObjectHeadResponse listedAttributes;
+    // getKey 的结果，第一次调用时计算（并发计算的结果相同，不需要同步）
+    private String key;
+    // normalize 和 toRealPath 的结果，同样第一次调用时计算
+    private S3SftpPath normalized;
+    private S3SftpPath realPath;
 
     public S3SftpPath(S3SftpFileSystem fileSystem, S3SftpPosixLikePathRepresentation pathRepresentation) {
+        this(fileSystem, pathRepresentation, null);
+    }
+
+    S3SftpPath(S3SftpFileSystem fileSystem, S3SftpPosixLikePathRepresentation pathRepresentation, ObjectHeadResponse listedAttributes) {
         this.fileSystem = fileSystem;
         this.pathRepresentation = pathRepresentation;
+        this.listedAttributes = listedAttributes;
     }
 
 
@@ -39,6 +51,39 @@ public class S3SftpPath implements Path {
         return new S3SftpPath(s3SftpFileSystem, S3SftpPosixLikePathRepresentation.of(first, more));
     }
 
+    /**
+     * 获取一个目录项，携带列出目录时返回的元信息
+     *
+     * @param s3SftpFileSystem
+     * @param name             目录项路径
+     * @param listedAttributes 列表中的元信息
+     * @return
+     */
+    static S3SftpPath getListedPath(S3SftpFileSystem s3SftpFileSystem, String name, ObjectHeadResponse listedAttributes) {
+        return new S3SftpPath(s3SftpFileSystem, S3SftpPosixLikePathRepresentation.of(name), listedAttributes);
+    }
+
+    /**
+     * 派生的路径不继承列表中的元信息（可能已经过期），需要时返回去掉元信息的副本
+     *
+     * @return
+     */
+    private S3SftpPath withoutListedAttributes() {
+        if (listedAttributes == null) {
+            return this;
+        }
+        return new S3SftpPath(fileSystem, pathRepresentation);
+    }
+
+    /**
+     * 列出目录时返回的元信息，不是目录项时为 null
+     *
+     * @return
+     */
+    public ObjectHeadResponse listedAttributes() {
+        return listedAttributes;
+    }
+
     @NotNull
     @Override
     public S3SftpFileSystem getFileSystem() {
@@ -58,21 +103,20 @@ public class S3SftpPath implements Path {
      */
     @Override
     public S3SftpPath getRoot() {
-        return getPath(this.fileSystem, this.fileSystem.configuration().userRootPath());
+        return this.fileSystem.rootPath();
     }
 
     @Override
     public Path getFileName() {
-        final var elements = pathRepresentation.elements();
-        var size = elements.size();
+        var size = pathRepresentation.elementCount();
         if (size == 0) {
             return null;
         }
 
         if (pathRepresentation.hasTrailingSeparator()) {
-            return from(elements.get(size - 1) + PATH_SEPARATOR);
+            return from(pathRepresentation.element(size - 1) + PATH_SEPARATOR);
         } else {
-            return from(elements.get(size - 1));
+            return from(pathRepresentation.element(size - 1));
         }
     }
 
@@ -83,7 +127,7 @@ public class S3SftpPath implements Path {
      */
     @Override
     public Path getParent() {
-        var size = pathRepresentation.elements().size();
+        var size = pathRepresentation.elementCount();
         if (this.equals(getRoot()) || size < 1) {
             return null;
         }
@@ -95,14 +139,13 @@ public class S3SftpPath implements Path {
 
     @Override
     public int getNameCount() {
-        return pathRepresentation.elements().size();
+        return pathRepresentation.elementCount();
     }
 
     @NotNull
     @Override
     public Path getName(int index) {
-        final var elements = pathRepresentation.elements();
-        if (index < 0 || index >= elements.size()) {
+        if (index < 0 || index >= pathRepresentation.elementCount()) {
             throw new IllegalArgumentException("index must be >= 0 and <= the number of path elements");
         }
         return subpath(index, index + 1);
@@ -111,7 +154,7 @@ public class S3SftpPath implements Path {
     @NotNull
     @Override
     public Path subpath(int beginIndex, int endIndex) {
-        final var size = pathRepresentation.elements().size();
+        final var size = pathRepresentation.elementCount();
         if (beginIndex < 0) {
             throw new IllegalArgumentException("begin index may not be < 0");
         }
@@ -125,7 +168,7 @@ public class S3SftpPath implements Path {
             throw new IllegalArgumentException("end index may not be <= the begin index");
         }
 
-        var path = String.join(PATH_SEPARATOR, pathRepresentation.elements().subList(beginIndex, endIndex));
+        var path = pathRepresentation.join(beginIndex, endIndex);
         if (endIndex == size && !pathRepresentation.hasTrailingSeparator()) {
             return from(path);
         } else {
@@ -162,49 +205,65 @@ public class S3SftpPath implements Path {
 
     /**
      * 规范化路径：移除 .（当前目录）和 ..（父目录）等冗余组件
-     *
-     *
-     *
+     * 结果只计算一次；已经是规范形式时返回自身（目录项返回不携带列表元信息的副本）
      *
      * @return
      */
     @NotNull
     @Override
-    public Path normalize() {
+    public S3SftpPath normalize() {
+        S3SftpPath result = normalized;
+        if (result == null) {
+            result = computeNormalized();
+            normalized = result;
+        }
+        return result;
+    }
+
+    private S3SftpPath computeNormalized() {
         // 如果是根目录，返回this
         if (pathRepresentation.isRoot()) {
-            return this;
+            return withoutListedAttributes();
         }
         // 判断是否目录
         boolean directory = pathRepresentation.isDirectory();
 
-        final var elements = pathRepresentation.elements();
-        final var realElements = new LinkedList<String>();
-
-        if (this.isAbsolute()) {
-            realElements.add(PATH_SEPARATOR);
-        }
-
-        for (var element : elements) {
+        // 保留下来的元素下标，.. 移除前一个元素，超出根目录的 .. 忽略
+        final var size = pathRepresentation.elementCount();
+        final var kept = new int[size];
+        var keptCount = 0;
+        for (var i = 0; i < size; i++) {
+            var element = pathRepresentation.element(i);
             if (".".equals(element)) {
                 continue;
             }
             if ("..".equals(element)) {
-                if (!realElements.isEmpty()) {
-                    realElements.removeLast();
+                if (keptCount > 0) {
+                    keptCount--;
                 }
                 continue;
             }
+            kept[keptCount++] = i;
+        }
 
-            if (directory) {
-                realElements.addLast(element + "/");
-            } else {
-                realElements.addLast(element);
+        var normalizedPath = new StringBuilder(pathRepresentation.toString().length());
+        if (this.isAbsolute()) {
+            normalizedPath.append(PATH_SEPARATOR);
+        }
+        for (var i = 0; i < keptCount; i++) {
+            if (i > 0) {
+                normalizedPath.append(PATH_SEPARATOR);
             }
+            normalizedPath.append(pathRepresentation.element(kept[i]));
         }
-        return S3SftpPath.getPath(fileSystem, String.join(PATH_SEPARATOR, realElements));
-
-
+        if (directory && keptCount > 0) {
+            normalizedPath.append(PATH_SEPARATOR);
+        }
+        var normalizedString = normalizedPath.toString();
+        if (normalizedString.equals(pathRepresentation.toString())) {
+            return withoutListedAttributes();
+        }
+        return S3SftpPath.getPath(fileSystem, normalizedString);
     }
 
     @NotNull
@@ -393,7 +452,7 @@ public class S3SftpPath implements Path {
     @Override
     public S3SftpPath toAbsolutePath() {
         if (isAbsolute()) {
-            return this;
+            return withoutListedAttributes();
         }
         return new S3SftpPath(fileSystem, S3SftpPosixLikePathRepresentation.of(PATH_SEPARATOR, pathRepresentation.toString()));
     }
@@ -401,11 +460,17 @@ public class S3SftpPath implements Path {
     @NotNull
     @Override
     public S3SftpPath toRealPath(@NotNull LinkOption... options) {
-        S3SftpPath path = this;
-        if (!isAbsolute()) {
-            return toAbsolutePath();
+        S3SftpPath result = realPath;
+        if (result == null) {
+            if (!isAbsolute()) {
+                result = toAbsolutePath();
+            } else {
+                // 绝对路径规范化后仍然是绝对路径
+                result = normalize();
+            }
+            realPath = result;
         }
-        return S3SftpPath.getPath(fileSystem, PATH_SEPARATOR, path.normalize().toString());
+        return result;
     }
 
     @NotNull
@@ -505,18 +570,29 @@ public class S3SftpPath implements Path {
      * @return
      */
     public String getKey() {
+        String cachedKey = key;
+        if (cachedKey == null) {
+            cachedKey = computeKey();
+            key = cachedKey;
+        }
+        return cachedKey;
+    }
 
-        String rootStr = getRoot().toString();
+    private String computeKey() {
+        String rootStr = fileSystem.userRoot();
         if (isEmpty()) {
             return rootStr;
         }
         var s = toRealPath(NOFOLLOW_LINKS).toString();
-        if (s.startsWith(PATH_SEPARATOR + bucketName())) {
-            s = s.replaceFirst(PATH_SEPARATOR + bucketName(), "");
+        String bucketPrefix = PATH_SEPARATOR + bucketName();
+        if (s.startsWith(bucketPrefix)) {
+            s = s.substring(bucketPrefix.length());
         }
-        while (s.startsWith(PATH_SEPARATOR)) {
-            s = s.substring(1);
+        int start = 0;
+        while (s.startsWith(PATH_SEPARATOR, start)) {
+            start++;
         }
+        s = s.substring(start);
         // 判断如果是 / 就认为是根目录
         if (s.equals(PATH_SEPARATOR)) {
             return rootStr;
@@ -560,4 +636,9 @@ public class S3SftpPath implements Path {
                 && Objects.equals(((S3SftpPath) obj).toRealPath(NOFOLLOW_LINKS).pathRepresentation,
                 this.toRealPath(NOFOLLOW_LINKS).pathRepresentation);
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * bucketName().hashCode() + toRealPath(NOFOLLOW_LINKS).pathRepresentation.hashCode();
+    }
 }
@@ -2,27 +2,86 @@ package com.gengzi.sftp.nio;
 
 import com.gengzi.sftp.nio.constans.Constants;
 
-import java.util.*;
-import java.util.stream.Collectors;
-
-
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+/**
+ * 不可变的路径表示
+ * <p>
+ * 只保存一个路径字符串和各个路径元素的起止位置（int[]），元素在需要时才截取；
+ * 判断元素个数、截取子路径不需要重新拆分字符串
+ */
 public class S3SftpPosixLikePathRepresentation {
 
     static final S3SftpPosixLikePathRepresentation ROOT = new S3SftpPosixLikePathRepresentation(Constants.PATH_SEPARATOR);
     static final S3SftpPosixLikePathRepresentation EMPTY_PATH = new S3SftpPosixLikePathRepresentation("");
     private static final char PATH_SEPARATOR_CHAR = Constants.PATH_SEPARATOR.charAt(0);
 
-    private String path;
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private final String path;
+    // 每个元素占两个位置：起始下标和结束下标（不含）
+    private final int[] offsets;
+    // 元素之间都只有一个分隔符，且没有被忽略的空白元素，此时子路径可以直接截取
+    private final boolean contiguous;
+    private List<String> elements;
 
     S3SftpPosixLikePathRepresentation(String path) {
         if (path == null) {
             throw new IllegalArgumentException("path may not be null");
         }
         this.path = path;
+        if (isRootString(path)) {
+            this.offsets = NO_OFFSETS;
+            this.contiguous = true;
+            return;
+        }
+        int[] found = new int[8];
+        int count = 0;
+        boolean gapless = true;
+        int length = path.length();
+        int start = 0;
+        int previousEnd = -1;
+        while (start <= length) {
+            int end = path.indexOf(PATH_SEPARATOR_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (isBlank(path, start, end)) {
+                // 与 split 之后过滤空白元素一致
+                if (end > start) {
+                    gapless = false;
+                }
+            } else {
+                if (previousEnd >= 0 && start != previousEnd + 1) {
+                    gapless = false;
+                }
+                if (count * 2 == found.length) {
+                    int[] grown = new int[found.length * 2];
+                    System.arraycopy(found, 0, grown, 0, found.length);
+                    found = grown;
+                }
+                found[count * 2] = start;
+                found[count * 2 + 1] = end;
+                count++;
+                previousEnd = end;
+            }
+            start = end + 1;
+        }
+        if (count * 2 == found.length) {
+            this.offsets = found;
+        } else {
+            this.offsets = new int[count * 2];
+            System.arraycopy(found, 0, this.offsets, 0, count * 2);
+        }
+        this.contiguous = gapless;
     }
 
     S3SftpPosixLikePathRepresentation(char[] path) {
-        new S3SftpPosixLikePathRepresentation(new String(path));
+        this(new String(path));
     }
 
     /**
@@ -52,46 +111,67 @@ public class S3SftpPosixLikePathRepresentation {
             return EMPTY_PATH;
         }
 
-        var allParts = new LinkedList<String>();
-        allParts.add(first);
-
-        allParts.addAll(collectMore(more));
-
-        if (allParts.peekLast() == null) {
-            throw new RuntimeException("the last element of the path representation is unexpectedly null");
+        // 最后一个非空的部分决定是否以分隔符结尾
+        String last = first;
+        if (more != null) {
+            for (String part : more) {
+                if (part != null && !part.isEmpty()) {
+                    last = part;
+                }
+            }
+        }
+        // 已经是规范形式（没有连续的分隔符）时直接使用
+        if ((more == null || more.length == 0) && first.indexOf("//") < 0) {
+            return new S3SftpPosixLikePathRepresentation(first);
         }
-        var endsWithSeparator = hasTrailingSeparatorString(allParts.peekLast());
-        var startsWithSeparator = isAbsoluteString(allParts.peekFirst());
-
-        var path = partsToPathString(allParts, endsWithSeparator, startsWithSeparator);
-
-        return new S3SftpPosixLikePathRepresentation(path);
 
+        var path = new StringBuilder(first.length() + 16);
+        appendPart(path, first);
+        if (more != null) {
+            for (String part : more) {
+                if (part != null) {
+                    appendPart(path, part);
+                }
+            }
+        }
+        if (hasTrailingSeparatorString(last) && (path.length() == 0 || path.charAt(path.length() - 1) != PATH_SEPARATOR_CHAR)) {
+            path.append(PATH_SEPARATOR_CHAR);
+        }
+        if (isAbsoluteString(first) && (path.length() == 0 || path.charAt(0) != PATH_SEPARATOR_CHAR)) {
+            path.insert(0, PATH_SEPARATOR_CHAR);
+        }
+        return new S3SftpPosixLikePathRepresentation(path.toString());
     }
 
-    private static String partsToPathString(LinkedList<String> allParts, boolean endsWithSeparator, boolean startsWithSeparator) {
-        var path = allParts.stream()
-                .flatMap(part -> Arrays.stream(part.split("/+")))
-                .filter(p -> !p.isEmpty())
-                .collect(Collectors.joining(Constants.PATH_SEPARATOR));
-
-        if (endsWithSeparator && !hasTrailingSeparatorString(path)) {
-            path = path + Constants.PATH_SEPARATOR;
-        }
-        if (startsWithSeparator && !isAbsoluteString(path)) {
-            path = Constants.PATH_SEPARATOR + path;
+    /**
+     * 按分隔符拆分后追加非空的部分，元素之间使用一个分隔符
+     */
+    private static void appendPart(StringBuilder path, String part) {
+        int length = part.length();
+        int start = 0;
+        while (start < length) {
+            int end = part.indexOf(PATH_SEPARATOR_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                if (path.length() > 0) {
+                    path.append(PATH_SEPARATOR_CHAR);
+                }
+                path.append(part, start, end);
+            }
+            start = end + 1;
         }
-        return path;
     }
 
-    private static List<String> collectMore(String[] more) {
-        if (more != null && more.length != 0) {
-            return Arrays.stream(more)
-                    .filter(Objects::nonNull)
-                    .filter(p -> !p.isEmpty())
-                    .collect(Collectors.toList());
+    private static boolean isBlank(String path, int start, int end) {
+        for (int i = start; i < end; i++) {
+            // 与 String.trim() 的判断一致
+            if (path.charAt(i) > ' ') {
+                return false;
+            }
         }
-        return Collections.emptyList();
+        return true;
     }
 
     private static boolean isRootString(String path) {
@@ -170,14 +250,56 @@ public class S3SftpPosixLikePathRepresentation {
     }
 
 
-    List<String> elements() {
-        if (this.isRoot()) {
-            return Collections.emptyList();
+    /**
+     * 路径元素的个数
+     *
+     * @return
+     */
+    int elementCount() {
+        return offsets.length / 2;
+    }
+
+    /**
+     * 第 index 个路径元素
+     *
+     * @param index 下标
+     * @return
+     */
+    String element(int index) {
+        return path.substring(offsets[index * 2], offsets[index * 2 + 1]);
+    }
+
+    /**
+     * 用分隔符连接 [begin, end) 的路径元素
+     *
+     * @param begin 起始元素（包含）
+     * @param end   结束元素（不包含）
+     * @return
+     */
+    String join(int begin, int end) {
+        if (begin >= end) {
+            return "";
+        }
+        if (contiguous) {
+            return path.substring(offsets[begin * 2], offsets[(end - 1) * 2 + 1]);
         }
+        var joined = new StringBuilder();
+        for (int i = begin; i < end; i++) {
+            if (i > begin) {
+                joined.append(PATH_SEPARATOR_CHAR);
+            }
+            joined.append(path, offsets[i * 2], offsets[i * 2 + 1]);
+        }
+        return joined.toString();
+    }
 
-        return Arrays.stream(path.split(Constants.PATH_SEPARATOR))
-                .filter(s -> !s.trim().isEmpty())
-                .collect(Collectors.toList());
+    List<String> elements() {
+        List<String> result = elements;
+        if (result == null) {
+            result = offsets.length == 0 ? Collections.emptyList() : new ElementList();
+            elements = result;
+        }
+        return result;
     }
 
     @Override
@@ -194,7 +316,25 @@ public class S3SftpPosixLikePathRepresentation {
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(path);
+        return path.hashCode();
+    }
+
+    /**
+     * 元素的只读视图，按下标截取
+     */
+    private final class ElementList extends AbstractList<String> implements RandomAccess {
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= elementCount()) {
+                throw new IndexOutOfBoundsException("index:" + index + ", size:" + elementCount());
+            }
+            return element(index);
+        }
+
+        @Override
+        public int size() {
+            return elementCount();
+        }
     }
 
 }
@@ -0,0 +1,142 @@
+package com.gengzi.sftp.nio;
+
+import com.gengzi.sftp.util.DirectBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 自适应预读控制器
+ * <p>
+ * 以分片为单位控制两个量：
+ * 预读窗口（当前读取位置之后要保持加载的分片数）和 单次请求合并的分片数（相当于放大请求的分片大小）。
+ * 顺序读取并且每个窗口的吞吐持续上升时，窗口加倍；出现随机读取时回到最小窗口；分片缓冲区所在的内存紧张时窗口减半。
+ * 非线程安全，由所属的读通道在读取时调用
+ */
+class S3SftpReadAheadController {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpReadAheadController.class);
+
+    // 最小预读窗口
+    static final int MIN_WINDOW_FRAGMENTS = 2;
+    // 单次请求最多合并的分片数
+    static final int MAX_FRAGMENT_SPAN = 16;
+    // 吞吐上升超过该比例才认为仍在上升
+    private static final double THROUGHPUT_RISE_RATIO = 1.1d;
+    // 缓冲区内存使用超过该比例认为内存紧张
+    private static final double MEMORY_PRESSURE_RATIO = 0.85d;
+
+    private final int fragmentSize;
+    private final int maxWindowFragments;
+    private final boolean adaptive;
+    // 分片使用的堆外缓冲区池，为null时分片在堆内
+    private final DirectBufferPool bufferPool;
+    private int windowFragments;
+    // 期望的下一次读取位置，用于判断是否顺序读取
+    private long expectedPosition = -1;
+    // 当前采样周期内顺序读取的字节数和开始时间
+    private long sampleBytes;
+    private long sampleStartNanos;
+    private double lastThroughput;
+
+    /**
+     * @param fragmentSize       分片大小
+     * @param maxWindowFragments 最大预读窗口（分片数）
+     * @param adaptive           是否启用自适应，不启用时固定使用最大窗口且不合并请求
+     * @param bufferPool         分片使用的堆外缓冲区池，以其使用量判断内存紧张；为null时按堆内存判断
+     */
+    S3SftpReadAheadController(int fragmentSize, int maxWindowFragments, boolean adaptive, DirectBufferPool bufferPool) {
+        if (fragmentSize < 1) {
+            throw new IllegalArgumentException("fragmentSize must be >= 1");
+        }
+        this.fragmentSize = fragmentSize;
+        this.maxWindowFragments = Math.max(MIN_WINDOW_FRAGMENTS, maxWindowFragments);
+        this.adaptive = adaptive;
+        this.bufferPool = bufferPool;
+        this.windowFragments = adaptive ? MIN_WINDOW_FRAGMENTS : this.maxWindowFragments;
+    }
+
+    /**
+     * 记录一次读取
+     *
+     * @param position 读取开始位置
+     * @param bytes    读取的字节数
+     */
+    void onRead(long position, int bytes) {
+        if (!adaptive) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (position != expectedPosition) {
+            if (expectedPosition >= 0 && windowFragments > MIN_WINDOW_FRAGMENTS) {
+                logger.debug("random access at {} (expected {}), shrink read ahead window {} -> {}",
+                        position, expectedPosition, windowFragments, MIN_WINDOW_FRAGMENTS);
+            }
+            windowFragments = MIN_WINDOW_FRAGMENTS;
+            lastThroughput = 0;
+            resetSample(now);
+        } else if (sampleStartNanos == 0) {
+            resetSample(now);
+        }
+        expectedPosition = position + bytes;
+        sampleBytes += bytes;
+
+        if (isMemoryPressure()) {
+            if (windowFragments > MIN_WINDOW_FRAGMENTS) {
+                windowFragments = Math.max(MIN_WINDOW_FRAGMENTS, windowFragments / 2);
+                logger.debug("memory pressure, shrink read ahead window to {}", windowFragments);
+            }
+            lastThroughput = 0;
+            resetSample(now);
+            return;
+        }
+
+        // 每读取一个窗口大小的数据采样一次吞吐
+        if (sampleBytes < (long) windowFragments * fragmentSize) {
+            return;
+        }
+        long elapsed = Math.max(1L, now - sampleStartNanos);
+        double throughput = (double) sampleBytes / elapsed;
+        if (throughput >= lastThroughput * THROUGHPUT_RISE_RATIO && windowFragments < maxWindowFragments) {
+            windowFragments = Math.min(maxWindowFragments, windowFragments * 2);
+            logger.debug("throughput rising ({} bytes/ms), grow read ahead window to {}",
+                    (long) (throughput * 1_000_000), windowFragments);
+        }
+        lastThroughput = throughput;
+        resetSample(now);
+    }
+
+    /**
+     * 当前预读窗口（分片数）
+     *
+     * @return
+     */
+    int windowFragments() {
+        return windowFragments;
+    }
+
+    /**
+     * 单次请求合并的分片数，窗口越大合并越多，保持窗口内大约4个并发请求
+     *
+     * @return
+     */
+    int fragmentSpan() {
+        if (!adaptive) {
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_FRAGMENT_SPAN, windowFragments / 4));
+    }
+
+    private void resetSample(long now) {
+        sampleBytes = 0;
+        sampleStartNanos = now;
+    }
+
+    private boolean isMemoryPressure() {
+        if (bufferPool != null) {
+            return bufferPool.usedBytes() > bufferPool.maxBytes() * MEMORY_PRESSURE_RATIO;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * MEMORY_PRESSURE_RATIO;
+    }
+}
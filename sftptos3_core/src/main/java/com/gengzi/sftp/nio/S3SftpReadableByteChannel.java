@@ -1,8 +1,11 @@
 package com.gengzi.sftp.nio;
 
+import com.gengzi.sftp.cache.FragmentKey;
+import com.gengzi.sftp.cache.SharedFragmentCache;
+import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
 import com.gengzi.sftp.s3.client.S3SftpClient;
-import com.gengzi.sftp.util.S3DirectBufferUtil;
-import com.gengzi.sftp.util.SafeDirectBuffer;
+import com.gengzi.sftp.util.DirectBufferPool;
+import com.gengzi.sftp.util.PooledByteBuffer;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalCause;
@@ -10,10 +13,13 @@ import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkServiceException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -38,7 +44,18 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
     private final long size;
     private final Long timeout;
     private final TimeUnit timeUnit;
-    private final Cache<Integer, CompletableFuture<ByteBuffer>> readAheadBuffersCache;
+    private final Cache<Integer, CompletableFuture<PooledByteBuffer>> readAheadBuffersCache;
+    // 跨会话共享的分片缓存，对象没有ETag或未启用时为null
+    private final SharedFragmentCache sharedFragmentCache;
+    private final FragmentKey fragmentKey;
+    private final String eTag;
+    // 自适应预读控制
+    private final S3SftpReadAheadController readAheadController;
+    // 是否启用顺序流读取
+    private final boolean sequentialStream;
+    // 顺序流读取器，首次读取时创建，发生seek或异常后关闭并退回分片读取
+    private S3SftpSequentialStreamReader streamReader;
+    private boolean streamFallback;
     private boolean open;
 
 
@@ -48,12 +65,13 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
      * @param maxNumberFragments
      * @param client
      * @param delegator
+     * @param eTag               打开通道时获取的对象ETag，所有范围请求都以此校验对象版本，可以为空
      * @param timeout
      * @param timeUnit
      * @throws IOException
      */
     S3SftpReadableByteChannel(S3SftpPath path, int maxFragmentSize, int maxNumberFragments, S3SftpClient client,
-                              S3SftpSeekableByteChannel delegator, Long timeout, TimeUnit timeUnit) throws IOException {
+                              S3SftpSeekableByteChannel delegator, String eTag, Long timeout, TimeUnit timeUnit) throws IOException {
         Objects.requireNonNull(path);
         Objects.requireNonNull(client);
         Objects.requireNonNull(delegator);
@@ -73,27 +91,27 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
         this.maxFragmentSize = maxFragmentSize;
         // 根据整个文件大小除于分片大小，得到分片数量
         this.numFragmentsInObject = (int) Math.ceil((float) size / (float) maxFragmentSize);
+        // 预读窗口最大分片数，开启自适应时可以扩大到 readAheadMaxBytes
+        S3SftpNioSpiConfiguration configuration = path.getFileSystem().configuration();
+        boolean readAheadAdaptive = configuration.getReadAheadAdaptive();
+        int maxWindowFragments = maxNumberFragments - 1;
+        if (readAheadAdaptive) {
+            maxWindowFragments = Math.max(maxWindowFragments, configuration.getReadAheadMaxBytes() / maxFragmentSize);
+        }
+        this.readAheadController = new S3SftpReadAheadController(maxFragmentSize, maxWindowFragments, readAheadAdaptive,
+                configuration.getDownloadFileUseDirectBuffer() ? DirectBufferPool.shared() : null);
         // 构建缓存，并设置最大缓存数量  如果一个分片是64kb 最大设置20个。 意味着缓存中能存储1280kb
         this.readAheadBuffersCache = Caffeine.newBuilder()
-                .maximumSize(maxNumberFragments)
+                .maximumSize(maxWindowFragments + 1L)
                 .expireAfterAccess(3, TimeUnit.MINUTES) // 3分钟未访问自动淘汰
-                .weakValues() // 无强引用时允许GC回收
                 .recordStats()
-                .removalListener((Integer key, CompletableFuture<ByteBuffer> value, RemovalCause cause) -> {
+                // 同步执行移除监听，缓冲区移出缓存后立即归还到缓冲区池
+                .executor(Runnable::run)
+                .removalListener((Integer key, CompletableFuture<PooledByteBuffer> value, RemovalCause cause) -> {
                     logger.debug("Removed from cache: {}", key);
-                    if (value != null && value.isDone()) {
-                        try {
-                            ByteBuffer buffer = value.get();
-                            if(buffer != null && buffer.isDirect()){
-                                S3DirectBufferUtil.freeDirectBuffer(buffer);
-                            }
-                            buffer = null;
-                            value = null;
-                        } catch (Exception e) {
-                            value = null;
-                            // 处理异常
-                            logger.error("Error while cleaning up direct buffer: " + e.getMessage(), e);
-                        }
+                    if (value != null) {
+                        // 未完成的请求在完成后归还，失败的请求没有缓冲区
+                        value.thenAccept(PooledByteBuffer::release);
                     }
                 })
                 .build();
@@ -103,6 +121,21 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
         // 调用s3的超时时间
         this.timeout = timeout != null ? timeout : 5L;
         this.timeUnit = timeUnit != null ? timeUnit : TimeUnit.MINUTES;
+        this.sequentialStream = configuration.getDownloadFileSequentialStream();
+        // 以ETag区分对象版本，相同版本的分片在所有会话间共享
+        this.eTag = eTag;
+        SharedFragmentCache sharedCache = SharedFragmentCache.shared();
+        if (eTag != null && sharedCache.isEnabled()) {
+            this.sharedFragmentCache = sharedCache;
+            this.fragmentKey = new FragmentKey(configuration.getEndpoint(), path.bucketName(), path.getKey(), eTag, maxFragmentSize, 0);
+            // 其他会话正在读取同一对象时不使用独立的顺序流，通过共享缓存复用下载的分片
+            if (sharedCache.openReader(fragmentKey) > 1) {
+                this.streamFallback = true;
+            }
+        } else {
+            this.sharedFragmentCache = null;
+            this.fragmentKey = null;
+        }
     }
 
 
@@ -166,6 +199,15 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
             return -1;
         }
 
+        // 顺序读取时直接从流中读取，不再按分片发起请求
+        if (sequentialStream && !streamFallback) {
+            int copiedBytes = readFromStream(dst, channelPosition);
+            if (copiedBytes >= 0) {
+                delegator.position(channelPosition + copiedBytes);
+                return copiedBytes;
+            }
+        }
+
         // 通过当前位置除于分片大小得到分片索引 （ 100 /  3kb = 33.33 向下取整 33）
         //figure out the index of the fragment the bytes would start in
         var fragmentIndex = fragmentIndexForByteNumber(channelPosition);
@@ -174,9 +216,18 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
         var fragmentOffset = (int) (channelPosition - (fragmentIndex.longValue() * maxFragmentSize));
         logger.debug("fragment {} offset: {}", fragmentIndex, fragmentOffset);
 
+        PooledByteBuffer pooledFragment = null;
         try {
-            final ByteBuffer fragment = Objects.requireNonNull(readAheadBuffersCache.get(fragmentIndex, this::computeFragmentFuture))
+            pooledFragment = Objects.requireNonNull(readAheadBuffersCache.get(fragmentIndex, this::computeFragmentFuture))
                     .get(timeout, timeUnit);
+            // 引用计数已经归零说明分片刚被移出缓存并归还，重新加载
+            if (!pooledFragment.tryRetain()) {
+                pooledFragment = null;
+                readAheadBuffersCache.invalidate(fragmentIndex);
+                return read(dst);
+            }
+            // 使用独立的视图读取，不修改共享缓冲区的 position/limit
+            final ByteBuffer fragment = pooledFragment.duplicate();
 
             fragment.position(fragmentOffset);
             logger.debug("fragment remaining: {}", fragment.remaining());
@@ -186,7 +237,7 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
             var limit = Math.min(fragment.remaining(), dst.remaining());
             logger.debug("byte limit: {}", limit);
 
-            // 记录fragment的当前limit，避免修改原缓冲区
+            // 记录fragment的当前limit
             int originalFragmentLimit = fragment.limit();
             // 限制拷贝长度
             fragment.limit(fragment.position() + limit);
@@ -196,26 +247,34 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
             fragment.limit(originalFragmentLimit);
 
             int copiedBytes = limit; // 直接使用limit作为拷贝字节数
-
+            readAheadController.onRead(channelPosition, copiedBytes);
 
             if (fragment.position() >= fragment.limit() / 2) {
 
                 // clear any fragments in cache that are lower index than this one
                 clearPriorFragments(fragmentIndex);
 
-                // until available cache slots are filled or number of fragments in file
-                var maxFragmentsToLoad = Math.min(maxNumberFragments - 1, numFragmentsInObject - fragmentIndex - 1);
-
-                for (var i = 0; i < maxFragmentsToLoad; i++) {
-                    final var idxToLoad = i + fragmentIndex + 1;
+                // until the read ahead window is filled or number of fragments in file
+                var maxFragmentsToLoad = Math.min(readAheadController.windowFragments(), numFragmentsInObject - fragmentIndex - 1);
+                var lastIdxToLoad = fragmentIndex + maxFragmentsToLoad;
+                var span = readAheadController.fragmentSpan();
 
+                var idxToLoad = fragmentIndex + 1;
+                while (idxToLoad <= lastIdxToLoad) {
                     //  add the index if it's not already there
                     if (readAheadBuffersCache.asMap().containsKey(idxToLoad)) {
+                        idxToLoad++;
                         continue;
                     }
-
-                    logger.debug("initiate pre-loading fragment with index '{}' from '{}'", idxToLoad, path.toUri());
-                    readAheadBuffersCache.put(idxToLoad, computeFragmentFuture(idxToLoad));
+                    // 连续未加载的分片合并为一次请求
+                    var count = 1;
+                    while (count < span && idxToLoad + count <= lastIdxToLoad
+                            && !readAheadBuffersCache.asMap().containsKey(idxToLoad + count)) {
+                        count++;
+                    }
+                    logger.debug("initiate pre-loading fragments with index '{}' count '{}' from '{}'", idxToLoad, count, path.toUri());
+                    loadFragments(idxToLoad, count);
+                    idxToLoad += count;
                 }
             }
 
@@ -227,6 +286,11 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
             Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
+            if (isPreconditionFailed(e)) {
+                // 对象在读取期间被覆盖，丢弃缓存的属性，重新打开时读取新版本
+                UserPathFileAttributesCacheUtil.removeCacheValue(path);
+                throw new IOException("object " + path.toUri() + " changed while reading, eTag " + eTag + " no longer matches", e.getCause());
+            }
             // the async execution completed exceptionally.
             // not currently obvious when this will happen or if we can recover
             logger.error(
@@ -235,6 +299,10 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
             throw new IOException(e);
         } catch (TimeoutException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (pooledFragment != null) {
+                pooledFragment.release();
+            }
         }
     }
 
@@ -267,12 +335,83 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
      */
     @Override
     public void close() throws IOException {
+        if (open && sharedFragmentCache != null) {
+            sharedFragmentCache.closeReader(fragmentKey);
+        }
         open = false;
+        closeStreamReader();
         readAheadBuffersCache.invalidateAll();
         readAheadBuffersCache.cleanUp();
     }
 
 
+    /**
+     * 从顺序流中读取数据
+     * 首次读取时从当前位置开始打开一个到文件末尾的范围请求，之后只要读取位置与流的位置一致就一直使用该流
+     *
+     * @param dst             目标缓冲区
+     * @param channelPosition 当前通道位置
+     * @return 读取的字节数，返回 -1 表示无法使用流读取（已退回分片读取）
+     * @throws IOException
+     */
+    private int readFromStream(ByteBuffer dst, long channelPosition) throws IOException {
+        if (streamReader == null) {
+            logger.debug("open sequential stream for {} from position {}", path.toUri(), channelPosition);
+            // 未读取的数据最多缓冲与分片读取相同的大小
+            streamReader = new S3SftpSequentialStreamReader(channelPosition, (long) maxFragmentSize * maxNumberFragments);
+            streamReader.start(client.getObjectStream(path.bucketName(), path.getKey(), channelPosition, size - channelPosition, eTag));
+        }
+        if (streamReader.position() != channelPosition && !streamReader.skipTo(channelPosition)) {
+            logger.debug("seek detected on {}, stream position {} channel position {}, fall back to fragments",
+                    path.toUri(), streamReader.position(), channelPosition);
+            fallbackToFragments();
+            return -1;
+        }
+        try {
+            int copiedBytes = streamReader.read(dst, timeout, timeUnit);
+            if (copiedBytes < 0) {
+                // 流提前结束（对象在读取期间被修改等），剩余部分使用分片读取
+                logger.warn("sequential stream of {} ended early at position {}", path.toUri(), channelPosition);
+                fallbackToFragments();
+            }
+            return copiedBytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (IOException | TimeoutException e) {
+            logger.warn("sequential stream of {} failed at position {}, fall back to fragments", path.toUri(), channelPosition, e);
+            fallbackToFragments();
+            return -1;
+        }
+    }
+
+    /**
+     * 范围请求是否因为 If-Match 不满足（412）失败
+     *
+     * @param e
+     * @return
+     */
+    private static boolean isPreconditionFailed(ExecutionException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SdkServiceException && ((SdkServiceException) cause).statusCode() == 412) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fallbackToFragments() {
+        streamFallback = true;
+        closeStreamReader();
+    }
+
+    private void closeStreamReader() {
+        if (streamReader != null) {
+            streamReader.close();
+            streamReader = null;
+        }
+    }
+
     private void clearPriorFragments(int currentFragIndx) {
         final Set<@NonNull Integer> priorIndexes = readAheadBuffersCache
                 .asMap()
@@ -307,12 +446,54 @@ public class S3SftpReadableByteChannel implements ReadableByteChannel {
         return readAheadBuffersCache.stats();
     }
 
-    private CompletableFuture<ByteBuffer> computeFragmentFuture(int fragmentIndex) {
-        var readFrom = (long) fragmentIndex * maxFragmentSize;
-        var length = Math.min(readFrom + maxFragmentSize, size);
-        logger.debug("byte range for {} readForm '{}' length '{}'", path.getKey(), readFrom, length);
+    /**
+     * 从 firstIndex 开始加载 count 个连续分片，多个分片只发起一次请求
+     *
+     * @param firstIndex 第一个分片索引
+     * @param count      分片数量
+     */
+    private void loadFragments(int firstIndex, int count) {
+        if (count == 1) {
+            readAheadBuffersCache.put(firstIndex, computeFragmentFuture(firstIndex));
+            return;
+        }
+        if (sharedFragmentCache != null) {
+            // 共享缓存中已有的分片直接复用，其他会话正在下载的分片等待同一个请求
+            List<FragmentKey> keys = new ArrayList<>(count);
+            for (var i = 0; i < count; i++) {
+                keys.add(fragmentKey.withIndex(firstIndex + i));
+            }
+            sharedFragmentCache.getAll(keys, this::fetchFragments)
+                    .forEach((key, future) -> readAheadBuffersCache.put(key.getIndex(), future));
+            return;
+        }
+        CompletableFuture<List<PooledByteBuffer>> fragments = fetchFragments(firstIndex, count);
+        for (var i = 0; i < count; i++) {
+            final var fragmentOfRequest = i;
+            readAheadBuffersCache.put(firstIndex + i, fragments.thenApply(list -> list.get(fragmentOfRequest)));
+        }
+    }
 
-        return client.getObject(path.bucketName(), path.getKey(), readFrom, length);
+    private CompletableFuture<PooledByteBuffer> computeFragmentFuture(int fragmentIndex) {
+        if (sharedFragmentCache != null) {
+            return sharedFragmentCache.get(fragmentKey.withIndex(fragmentIndex), this::fetchFragments);
+        }
+        // 与多分片请求一样带上打开时的etag，读取过程中对象被覆盖时失败，不会混用新旧两个版本的分片
+        return fetchFragments(fragmentIndex, 1).thenApply(fragments -> fragments.get(0));
+    }
+
+    /**
+     * 从s3下载 firstIndex 开始的 count 个连续分片
+     *
+     * @param firstIndex 第一个分片索引
+     * @param count      分片数量
+     * @return
+     */
+    private CompletableFuture<List<PooledByteBuffer>> fetchFragments(int firstIndex, int count) {
+        var readFrom = (long) firstIndex * maxFragmentSize;
+        var length = Math.min((long) count * maxFragmentSize, size - readFrom);
+        logger.debug("byte range for {} readForm '{}' length '{}'", path.getKey(), readFrom, length);
+        return client.getObjectFragments(path.bucketName(), path.getKey(), readFrom, length, maxFragmentSize, eTag);
     }
 
     /**
@@ -0,0 +1,214 @@
+package com.gengzi.sftp.nio;
+
+import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.SharedFragmentCache;
+import com.gengzi.sftp.s3.client.S3SftpClient;
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * 递归删除目录
+ * <p>
+ * 不使用分隔符分页列出目录下的所有对象，每页（最多1000个key）作为一批调用 DeleteObjects，
+ * 同时进行的批量删除请求数不超过 deleteMaxConcurrentBatches（超过时列表等待，形成背压）。
+ * 删除结束后（无论成功与否）一次性使整个目录子树的缓存失效。
+ * 目录移动时也用于按同样的方式批量删除已经复制完成的源对象
+ */
+final class S3SftpRecursiveDeleter {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpRecursiveDeleter.class);
+
+    // DeleteObjects 一次最多删除的key数量
+    static final int MAX_BATCH_KEYS = 1000;
+
+    private final S3SftpFileSystem fileSystem;
+    private final S3SftpClient s3SftpClient;
+    private final String bucketName;
+    private final String dirKey;
+    private final Semaphore inFlightBatches;
+    private final int maxConcurrentBatches;
+    private final Long timeout;
+    private final TimeUnit timeUnit;
+    private final AtomicLong deleted = new AtomicLong();
+    private final Queue<String> failedKeys = new ConcurrentLinkedQueue<>();
+    private volatile Throwable failure;
+
+    private S3SftpRecursiveDeleter(S3SftpFileSystem fileSystem, String dirKey) {
+        S3SftpNioSpiConfiguration configuration = fileSystem.configuration();
+        this.fileSystem = fileSystem;
+        this.s3SftpClient = fileSystem.client();
+        this.bucketName = fileSystem.bucketName();
+        this.dirKey = dirKey;
+        this.maxConcurrentBatches = Math.max(1, configuration.getDeleteMaxConcurrentBatches());
+        this.inFlightBatches = new Semaphore(this.maxConcurrentBatches);
+        this.timeout = configuration.timeout();
+        this.timeUnit = configuration.timeoutUnit();
+    }
+
+    /**
+     * 删除目录及其下的所有对象
+     *
+     * @param dirPath 目录
+     * @return 删除的对象数量
+     * @throws IOException 有对象删除失败时抛出，已删除的对象不会恢复
+     */
+    static long delete(S3SftpPath dirPath) throws IOException {
+        S3SftpFileSystem fileSystem = dirPath.getFileSystem();
+        String key = dirPath.toRealPath(NOFOLLOW_LINKS).getKey();
+        String dirKey = key.endsWith(S3SftpFileSystemProvider.PATH_SEPARATOR) ? key : key + S3SftpFileSystemProvider.PATH_SEPARATOR;
+        // 不允许删除整个用户根目录
+        String trimmed = dirKey.substring(0, dirKey.length() - 1);
+        if (trimmed.isEmpty() || trimmed.equals(fileSystem.userRootKey())) {
+            throw new AccessDeniedException(dirPath.toString(), null, "the user root directory can not be deleted");
+        }
+        S3SftpRecursiveDeleter deleter = new S3SftpRecursiveDeleter(fileSystem, dirKey);
+        try {
+            deleter.deleteAll();
+        } finally {
+            // 目录下的属性、列表以及父目录的列表一次性失效
+            DirectoryContentsNamesCacheUtil.removeCacheTree(fileSystem, dirKey);
+            SharedFragmentCache.shared().invalidatePrefix(fileSystem.configuration().getEndpoint(), fileSystem.bucketName(), dirKey);
+        }
+        logger.info("recursive delete {} finished, deleted objects:{}", dirKey, deleter.deleted.get());
+        return deleter.deleted.get();
+    }
+
+    /**
+     * 批量删除指定的key，不使缓存失效，由调用方处理
+     *
+     * @param fileSystem
+     * @param dirKey     key所在的目录，用于日志和异常信息
+     * @param keys       要删除的key
+     * @return 删除的对象数量
+     * @throws IOException 有对象删除失败时抛出
+     */
+    static long deleteKeys(S3SftpFileSystem fileSystem, String dirKey, List<String> keys) throws IOException {
+        S3SftpRecursiveDeleter deleter = new S3SftpRecursiveDeleter(fileSystem, dirKey);
+        Throwable primary = null;
+        try {
+            for (int from = 0; from < keys.size() && deleter.failure == null && deleter.failedKeys.isEmpty(); from += MAX_BATCH_KEYS) {
+                deleter.deleteBatch(new ArrayList<>(keys.subList(from, Math.min(keys.size(), from + MAX_BATCH_KEYS))));
+            }
+        } catch (Throwable e) {
+            primary = e;
+            throw e;
+        } finally {
+            deleter.awaitInFlightBatches(primary);
+        }
+        deleter.checkFailure();
+        return deleter.deleted.get();
+    }
+
+    private void deleteAll() throws IOException {
+        String continuationToken = null;
+        Throwable primary = null;
+        try {
+            do {
+                CompletableFuture<ListObjectsResponse> listing = s3SftpClient.listAllObjectsPage(bucketName, dirKey, continuationToken);
+                ListObjectsResponse page = await(listing);
+                List<String> keys = new ArrayList<>(page.getObjects().keySet());
+                if (!keys.isEmpty()) {
+                    deleteBatch(keys);
+                }
+                continuationToken = page.isTruncated() ? page.getNextContinuationToken() : null;
+            } while (continuationToken != null && failure == null && failedKeys.isEmpty());
+        } catch (Throwable e) {
+            primary = e;
+            throw e;
+        } finally {
+            awaitInFlightBatches(primary);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Could not delete directory:" + dirKey, failure);
+        }
+        if (!failedKeys.isEmpty()) {
+            throw new IOException("Could not delete directory:" + dirKey + ", " + failedKeys.size()
+                    + " objects failed, first:" + failedKeys.peek());
+        }
+    }
+
+    private void deleteBatch(List<String> keys) throws IOException {
+        try {
+            // 并发删除数量达到上限时等待
+            if (!inFlightBatches.tryAcquire(timeout, timeUnit)) {
+                throw new IOException("waiting for batch delete of " + dirKey + " timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not delete directory:" + dirKey, e);
+        }
+        CompletableFuture<List<String>> future = s3SftpClient.deleteObjects(bucketName, keys);
+        future.whenComplete((failed, throwable) -> {
+            // 先记录结果再释放，等待全部批次结束后结果已经完整
+            if (throwable != null) {
+                logger.error("batch delete of {} error", dirKey, throwable);
+                failure = throwable;
+            } else {
+                failedKeys.addAll(failed);
+                deleted.addAndGet(keys.size() - failed.size());
+            }
+            inFlightBatches.release();
+        });
+    }
+
+    /**
+     * 等待已发出的批量删除完成，不覆盖已经发生的异常
+     *
+     * @param primary 已经发生的异常，没有时为 null
+     * @throws IOException 没有已发生的异常且等待失败时抛出
+     */
+    private void awaitInFlightBatches(Throwable primary) throws IOException {
+        try {
+            awaitInFlightBatches();
+        } catch (IOException e) {
+            if (primary == null) {
+                throw e;
+            }
+            // 保留原始异常，等待失败作为附加信息
+            primary.addSuppressed(e);
+        }
+    }
+
+    private void awaitInFlightBatches() throws IOException {
+        try {
+            if (!inFlightBatches.tryAcquire(maxConcurrentBatches, timeout, timeUnit)) {
+                throw new IOException("waiting for batch delete of " + dirKey + " timeout");
+            }
+            inFlightBatches.release(maxConcurrentBatches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not delete directory:" + dirKey, e);
+        }
+    }
+
+    private <V> V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not delete directory:" + dirKey, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Could not delete directory:" + dirKey, e);
+        }
+    }
+}
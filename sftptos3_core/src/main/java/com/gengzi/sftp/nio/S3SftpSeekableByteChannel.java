@@ -2,12 +2,14 @@ package com.gengzi.sftp.nio;
 
 
 import com.gengzi.sftp.s3.client.S3SftpClient;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Set;
@@ -59,8 +61,14 @@ public class S3SftpSeekableByteChannel implements SeekableByteChannel {
 
         if (options.contains(StandardOpenOption.READ)) {
             S3SftpNioSpiConfiguration configuration = path.getFileSystem().configuration();
+            // 读取时不使用缓存的属性，大小和ETag取自同一次HEAD，避免缓存过期时按旧版本的ETag请求分片全部失败
+            ObjectHeadResponse head = s3Client.headObject(s3Path.bucketName(), s3Path.getKey());
+            if (head == null) {
+                throw new NoSuchFileException(s3Path.toString());
+            }
+            this.size = head.getSize();
             this.readableByteChannel = new S3SftpReadableByteChannel(s3Path, configuration.getFileMaxFragmentSize(), configuration.getFileMaxNumberFragments(),
-                    s3Client, this, null, null);
+                    s3Client, this, head.geteTag() != null ? head.geteTag().toString() : null, null, null);
             this.writableByteChannel = null;
         } else if (options.contains(StandardOpenOption.WRITE)) {
             this.readableByteChannel = null;
@@ -136,8 +144,9 @@ public class S3SftpSeekableByteChannel implements SeekableByteChannel {
             throw new NonWritableChannelException();
         }
         int remaining = src.remaining();
+        long writePosition = this.position;
         this.position += remaining;
-        int write = writableByteChannel.write(src);
+        int write = writableByteChannel.write(src, writePosition);
         return write;
     }
 
@@ -0,0 +1,236 @@
+package com.gengzi.sftp.nio;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 顺序读取的流式读取器
+ * <p>
+ * 一个打开的文件句柄只发起一次长连接的范围请求，订阅响应体并按需拉取数据块，
+ * 已缓冲但未被读取的数据不超过 maxBufferedBytes，避免客户端读取慢时无限制占用内存
+ */
+class S3SftpSequentialStreamReader implements Subscriber<ByteBuffer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpSequentialStreamReader.class);
+
+    private final Object lock = new Object();
+    // 已接收但未被读取的数据块
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final long maxBufferedBytes;
+    private long bufferedBytes;
+    // 下一个可读取字节在对象中的位置
+    private long position;
+    private boolean demandOutstanding;
+    private Subscription subscription;
+    private Throwable error;
+    private boolean complete;
+    private boolean closed;
+
+    /**
+     * @param startPosition    流开始的位置
+     * @param maxBufferedBytes 最大缓冲字节数
+     */
+    S3SftpSequentialStreamReader(long startPosition, long maxBufferedBytes) {
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("maxBufferedBytes must be >= 1");
+        }
+        this.position = startPosition;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * 响应头返回后开始订阅响应体
+     *
+     * @param publisherFuture 响应体发布者
+     */
+    void start(CompletableFuture<? extends Publisher<ByteBuffer>> publisherFuture) {
+        publisherFuture.whenComplete((publisher, throwable) -> {
+            if (throwable != null) {
+                onError(throwable);
+                return;
+            }
+            publisher.subscribe(this);
+        });
+    }
+
+    /**
+     * 下一个可读取字节的位置
+     *
+     * @return
+     */
+    long position() {
+        synchronized (lock) {
+            return position;
+        }
+    }
+
+    /**
+     * 向前跳过少量数据（客户端并发读取时请求顺序可能略有偏差）
+     * 只在已缓冲数据范围内跳过，不会阻塞等待
+     *
+     * @param target 目标位置
+     * @return 是否已经跳到目标位置
+     */
+    boolean skipTo(long target) {
+        synchronized (lock) {
+            if (target < position || target - position > bufferedBytes) {
+                return false;
+            }
+            long toSkip = target - position;
+            while (toSkip > 0) {
+                ByteBuffer head = buffers.peek();
+                int n = (int) Math.min(head.remaining(), toSkip);
+                head.position(head.position() + n);
+                if (!head.hasRemaining()) {
+                    buffers.poll();
+                }
+                toSkip -= n;
+            }
+            bufferedBytes -= target - position;
+            position = target;
+        }
+        requestIfNeeded();
+        return true;
+    }
+
+    /**
+     * 读取数据到 dst，缓冲区为空时阻塞等待下一个数据块
+     *
+     * @param dst      目标缓冲区
+     * @param timeout  等待超时时间
+     * @param timeUnit 超时时间单位
+     * @return 读取的字节数，流结束返回 -1
+     * @throws IOException      请求s3出现异常
+     * @throws TimeoutException 等待超时
+     */
+    int read(ByteBuffer dst, long timeout, TimeUnit timeUnit) throws IOException, TimeoutException, InterruptedException {
+        int copied = 0;
+        synchronized (lock) {
+            long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+            while (buffers.isEmpty() && error == null && !complete && !closed) {
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    throw new TimeoutException("waiting for s3 stream data timeout, position:" + position);
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+            }
+            if (buffers.isEmpty()) {
+                if (error != null) {
+                    throw new IOException("s3 stream read error, position:" + position, error);
+                }
+                return -1;
+            }
+            while (dst.hasRemaining() && !buffers.isEmpty()) {
+                ByteBuffer head = buffers.peek();
+                int n = Math.min(head.remaining(), dst.remaining());
+                int originalLimit = head.limit();
+                head.limit(head.position() + n);
+                dst.put(head);
+                head.limit(originalLimit);
+                if (!head.hasRemaining()) {
+                    buffers.poll();
+                }
+                copied += n;
+            }
+            bufferedBytes -= copied;
+            position += copied;
+        }
+        requestIfNeeded();
+        return copied;
+    }
+
+    /**
+     * 关闭读取器，取消底层请求并丢弃已缓冲的数据
+     */
+    void close() {
+        Subscription s;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffers.clear();
+            bufferedBytes = 0;
+            s = subscription;
+            lock.notifyAll();
+        }
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        boolean cancel;
+        synchronized (lock) {
+            cancel = closed || subscription != null;
+            if (!cancel) {
+                subscription = s;
+            }
+        }
+        if (cancel) {
+            s.cancel();
+            return;
+        }
+        requestIfNeeded();
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        synchronized (lock) {
+            demandOutstanding = false;
+            if (closed) {
+                return;
+            }
+            if (byteBuffer.hasRemaining()) {
+                buffers.add(byteBuffer);
+                bufferedBytes += byteBuffer.remaining();
+            }
+            lock.notifyAll();
+        }
+        requestIfNeeded();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.debug("s3 stream error at position:{}", position, t);
+        synchronized (lock) {
+            error = t;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            complete = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 缓冲未满并且没有未完成的请求时，再向上游请求一个数据块
+     */
+    private void requestIfNeeded() {
+        Subscription s;
+        synchronized (lock) {
+            if (subscription == null || closed || complete || error != null
+                    || demandOutstanding || bufferedBytes >= maxBufferedBytes) {
+                return;
+            }
+            demandOutstanding = true;
+            s = subscription;
+        }
+        s.request(1);
+    }
+}
@@ -0,0 +1,515 @@
+package com.gengzi.sftp.nio;
+
+import com.gengzi.sftp.cache.AbsentKeyCacheUtil;
+import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.SharedFragmentCache;
+import com.gengzi.sftp.s3.client.S3SftpClient;
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * 目录的复制和移动（重命名）
+ * <p>
+ * 先不使用分隔符列出源目录下的所有对象，再在服务端并发复制（同时进行的复制数不超过 copyMaxConcurrentObjects，
+ * 大对象由客户端的分片复制处理），移动时全部复制完成后按每批1000个key批量删除源对象。
+ * <p>
+ * 每个复制完成的源key连同复制时的大小和etag追加写入本地的进度记录，失败时记录保留，
+ * 再次执行同样的复制或移动时只跳过大小和etag都没有变化的已复制对象，移动时已经删除的源对象也不会再列出；
+ * 超过 JOURNAL_MAX_AGE_MILLIS 的记录不再使用，全部完成后删除记录。
+ * 执行期间持有记录文件的锁，同样的复制或移动同时只能执行一个
+ * <p>
+ * 每个对象的复制按对象大小放大超时时间，等待复制名额和等待全部复制结束时取消超时的复制
+ */
+final class S3SftpTreeCopier {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpTreeCopier.class);
+
+    private static final int JOURNAL_MAGIC = 0x53335443;
+    private static final int JOURNAL_VERSION = 2;
+    // 进度记录的有效期，过期的记录不再用于继续复制
+    private static final long JOURNAL_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final String JOURNAL_SUFFIX = ".journal";
+    // 打印进度日志的间隔
+    private static final long PROGRESS_LOG_INTERVAL_MILLIS = 5_000;
+    // 等待复制名额时检查复制超时的间隔
+    private static final long AWAIT_POLL_MILLIS = 1_000;
+
+    private final S3SftpFileSystem sourceFileSystem;
+    private final S3SftpClient s3SftpClient;
+    private final String sourceBucket;
+    private final String targetBucket;
+    private final String sourceDirKey;
+    private final String targetDirKey;
+    private final boolean move;
+    private final Semaphore inFlightCopies;
+    private final int maxConcurrentCopies;
+    // 进行中的复制及其截止时间（System.nanoTime）
+    private final Map<CompletableFuture<?>, Long> copyDeadlines = new ConcurrentHashMap<>();
+    private final S3SftpNioSpiConfiguration configuration;
+    private final Long timeout;
+    private final TimeUnit timeUnit;
+    private final Path journalFile;
+    private FileChannel journalChannel;
+    private DataOutputStream journal;
+    private long journalCreated;
+    private long totalObjects;
+    private long totalBytes;
+    private final AtomicLong copiedObjects = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong lastProgressLog = new AtomicLong(System.currentTimeMillis());
+    private volatile Throwable failure;
+
+    private S3SftpTreeCopier(S3SftpPath source, S3SftpPath target, String sourceDirKey, String targetDirKey, boolean move) {
+        S3SftpNioSpiConfiguration configuration = source.getFileSystem().configuration();
+        this.sourceFileSystem = source.getFileSystem();
+        this.s3SftpClient = sourceFileSystem.client();
+        this.sourceBucket = source.bucketName();
+        this.targetBucket = target.bucketName();
+        this.sourceDirKey = sourceDirKey;
+        this.targetDirKey = targetDirKey;
+        this.move = move;
+        this.maxConcurrentCopies = Math.max(1, configuration.getCopyMaxConcurrentObjects());
+        this.inFlightCopies = new Semaphore(this.maxConcurrentCopies);
+        this.configuration = configuration;
+        this.timeout = configuration.timeout();
+        this.timeUnit = configuration.timeoutUnit();
+        String identity = String.join("\n", sourceFileSystem.metadataIndexScope(), targetBucket,
+                move ? "move" : "copy", sourceDirKey, targetDirKey);
+        this.journalFile = Paths.get(configuration.getTreeCopyStateDir())
+                .resolve(UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)) + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * 复制目录
+     *
+     * @param source  源目录
+     * @param target  目标目录
+     * @param options 包含 REPLACE_EXISTING 时允许目标已存在
+     * @throws IOException
+     */
+    static void copy(S3SftpPath source, S3SftpPath target, CopyOption... options) throws IOException {
+        run(source, target, false, options);
+    }
+
+    /**
+     * 移动（重命名）目录
+     *
+     * @param source  源目录
+     * @param target  目标目录
+     * @param options 包含 REPLACE_EXISTING 时允许目标已存在
+     * @throws IOException
+     */
+    static void move(S3SftpPath source, S3SftpPath target, CopyOption... options) throws IOException {
+        run(source, target, true, options);
+    }
+
+    private static void run(S3SftpPath source, S3SftpPath target, boolean move, CopyOption... options) throws IOException {
+        String sourceDirKey = dirKey(source);
+        String targetDirKey = dirKey(target);
+        if (move && isUserRoot(source.getFileSystem(), sourceDirKey)) {
+            throw new AccessDeniedException(source.toString(), target.toString(), "the user root directory can not be moved");
+        }
+        if (targetDirKey.startsWith(sourceDirKey) && source.bucketName().equals(target.bucketName())) {
+            throw new FileSystemException(source.toString(), target.toString(), "the target is inside the source directory");
+        }
+        S3SftpTreeCopier copier = new S3SftpTreeCopier(source, target, sourceDirKey, targetDirKey, move);
+        copier.lockJournal(source, target);
+        try {
+            Map<String, String> journaled = copier.readJournal();
+            // 继续执行时，目标目录下只有上次复制的对象不算目标已存在
+            if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING) && exists(target)
+                    && (journaled.isEmpty() || !copier.targetHoldsOnly(journaled))) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            try {
+                copier.execute(journaled);
+            } finally {
+                // 目标目录（以及移动时的源目录）子树和父目录的缓存一次性失效
+                DirectoryContentsNamesCacheUtil.removeCacheTree(target.getFileSystem(), targetDirKey);
+                AbsentKeyCacheUtil.removeAbsent(target.getFileSystem(), targetDirKey);
+                SharedFragmentCache.shared().invalidatePrefix(target.getFileSystem().configuration().getEndpoint(), target.bucketName(), targetDirKey);
+                if (move) {
+                    DirectoryContentsNamesCacheUtil.removeCacheTree(source.getFileSystem(), sourceDirKey);
+                    SharedFragmentCache.shared().invalidatePrefix(source.getFileSystem().configuration().getEndpoint(), source.bucketName(), sourceDirKey);
+                }
+            }
+        } finally {
+            copier.unlockJournal();
+        }
+    }
+
+    /**
+     * @param journaled 进度记录中已经复制的源key和复制时的大小、etag
+     * @throws IOException
+     */
+    private void execute(Map<String, String> journaled) throws IOException {
+        List<String> sourceKeys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<String> eTags = new ArrayList<>();
+        listSource(sourceKeys, sizes, eTags);
+        // 只跳过复制后没有变化的源对象，变化的重新复制
+        Map<String, String> copied = new HashMap<>();
+        for (int i = 0; i < sourceKeys.size(); i++) {
+            String version = version(sizes.get(i), eTags.get(i));
+            if (version.equals(journaled.get(sourceKeys.get(i)))) {
+                copied.put(sourceKeys.get(i), version);
+            }
+        }
+        logger.info("{} {} -> {} started, objects:{}, bytes:{}, already copied:{}, changed since copied:{}", move ? "move" : "copy",
+                sourceDirKey, targetDirKey, totalObjects, totalBytes, copied.size(), journaled.size() - copied.size());
+
+        openJournal(copied);
+        try {
+            try {
+                for (int i = 0; i < sourceKeys.size() && failure == null; i++) {
+                    String sourceKey = sourceKeys.get(i);
+                    if (copied.containsKey(sourceKey)) {
+                        progress(sizes.get(i));
+                        continue;
+                    }
+                    copyObject(sourceKey, sizes.get(i), eTags.get(i));
+                }
+            } finally {
+                awaitInFlightCopies();
+            }
+            if (failure != null) {
+                throw new IOException("Could not " + (move ? "move" : "copy") + " directory:" + sourceDirKey
+                        + ", copied " + copiedObjects.get() + "/" + totalObjects
+                        + " objects, run the same operation again to resume", failure);
+            }
+            if (move) {
+                // 源对象全部复制完成后再删除，失败时再次执行只需要继续删除
+                S3SftpRecursiveDeleter.deleteKeys(sourceFileSystem, sourceDirKey, sourceKeys);
+            }
+        } finally {
+            closeJournal();
+        }
+        // 先清空再删除，删除失败时留下的空记录也不会被当作进度
+        journalChannel.truncate(0);
+        Files.deleteIfExists(journalFile);
+        logger.info("{} {} -> {} finished, objects:{}, bytes:{}", move ? "move" : "copy",
+                sourceDirKey, targetDirKey, copiedObjects.get(), copiedBytes.get());
+    }
+
+    private void listSource(List<String> sourceKeys, List<Long> sizes, List<String> eTags) throws IOException {
+        String continuationToken = null;
+        do {
+            CompletableFuture<ListObjectsResponse> listing = s3SftpClient.listAllObjectsPage(sourceBucket, sourceDirKey, continuationToken);
+            ListObjectsResponse page = await(listing);
+            for (Map.Entry<String, ObjectHeadResponse> entry : page.getObjects().entrySet()) {
+                Long size = entry.getValue().getSize();
+                sourceKeys.add(entry.getKey());
+                sizes.add(size == null ? 0L : size);
+                Object eTag = entry.getValue().geteTag();
+                eTags.add(eTag == null ? "" : eTag.toString());
+                totalObjects++;
+                totalBytes += size == null ? 0L : size;
+            }
+            continuationToken = page.isTruncated() ? page.getNextContinuationToken() : null;
+        } while (continuationToken != null);
+    }
+
+    private void copyObject(String sourceKey, long size, String eTag) throws IOException {
+        // 并发复制数量达到上限时等待，等待时间由进行中的复制各自的超时限定
+        awaitPermits(1);
+        String targetKey = targetDirKey + sourceKey.substring(sourceDirKey.length());
+        CompletableFuture<?> future = s3SftpClient.copyObject(sourceBucket, sourceKey, targetBucket, targetKey, size);
+        copyDeadlines.put(future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(configuration.copyTimeoutMillis(size)));
+        future.whenComplete((completedCopy, throwable) -> {
+            copyDeadlines.remove(future);
+            if (throwable != null) {
+                logger.error("copy {} -> {} error", sourceKey, targetKey, throwable);
+                // 超时取消时保留 cancelExpiredCopies 记录的超时异常
+                if (!(throwable instanceof CancellationException) || failure == null) {
+                    failure = throwable;
+                }
+            } else {
+                record(sourceKey, size, eTag);
+                progress(size);
+            }
+            inFlightCopies.release();
+        });
+    }
+
+    private void progress(long size) {
+        long objects = copiedObjects.incrementAndGet();
+        long bytes = copiedBytes.addAndGet(size);
+        long now = System.currentTimeMillis();
+        long last = lastProgressLog.get();
+        if (now - last >= PROGRESS_LOG_INTERVAL_MILLIS && lastProgressLog.compareAndSet(last, now)) {
+            logger.info("{} {} -> {} progress, objects:{}/{}, bytes:{}/{}", move ? "move" : "copy",
+                    sourceDirKey, targetDirKey, objects, totalObjects, bytes, totalBytes);
+        }
+    }
+
+    /**
+     * 等待全部进行中的复制结束，中断时取消进行中的复制
+     */
+    private void awaitInFlightCopies() throws IOException {
+        awaitPermits(maxConcurrentCopies);
+        inFlightCopies.release(maxConcurrentCopies);
+    }
+
+    /**
+     * 等待空闲的复制名额，等待期间取消超过截止时间的复制，总的等待时间由进行中的复制的大小决定
+     *
+     * @param permits 名额数
+     * @throws IOException
+     */
+    private void awaitPermits(int permits) throws IOException {
+        try {
+            while (!inFlightCopies.tryAcquire(permits, AWAIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                cancelExpiredCopies();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            copyDeadlines.keySet().forEach(future -> future.cancel(true));
+            throw new IOException("Could not copy directory:" + sourceDirKey, e);
+        }
+    }
+
+    private void cancelExpiredCopies() {
+        long now = System.nanoTime();
+        copyDeadlines.forEach((future, deadline) -> {
+            if (now - deadline > 0) {
+                failure = new TimeoutException("copy of " + sourceDirKey + " object timeout");
+                future.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * 锁定进度记录文件，同样的复制或移动已经在执行时失败
+     *
+     * @param source 源目录
+     * @param target 目标目录
+     * @throws IOException
+     */
+    private void lockJournal(S3SftpPath source, S3SftpPath target) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new FileSystemException(source.toString(), target.toString(), "the same " + (move ? "move" : "copy") + " is already running");
+        }
+        journalChannel = channel;
+    }
+
+    private void unlockJournal() {
+        closeJournal();
+        try {
+            // 关闭通道同时释放锁
+            journalChannel.close();
+        } catch (IOException e) {
+            logger.warn("tree copy journal:{} close error", journalFile, e);
+        }
+    }
+
+    /**
+     * 读取进度记录中已经复制完成的源key和复制时的版本，记录末尾不完整时忽略；
+     * 没有记录、格式不符或者超过有效期时返回空
+     *
+     * @return 源key和复制时的大小、etag
+     */
+    private Map<String, String> readJournal() throws IOException {
+        Map<String, String> copied = new HashMap<>();
+        journalCreated = System.currentTimeMillis();
+        if (journalChannel.size() == 0) {
+            return copied;
+        }
+        // 流关闭时会关闭通道并释放锁，这里读完不关闭
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journalChannel.position(0))));
+        try {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                logger.warn("tree copy journal:{} format does not match, ignored", journalFile);
+                return copied;
+            }
+            long created = in.readLong();
+            if (!in.readUTF().equals(sourceDirKey) || !in.readUTF().equals(targetDirKey)) {
+                logger.warn("tree copy journal:{} does not match, ignored", journalFile);
+                return copied;
+            }
+            if (System.currentTimeMillis() - created > JOURNAL_MAX_AGE_MILLIS) {
+                logger.warn("tree copy journal:{} created at {} expired, ignored", journalFile, created);
+                return copied;
+            }
+            journalCreated = created;
+            while (true) {
+                String sourceKey = in.readUTF();
+                copied.put(sourceKey, version(in.readLong(), in.readUTF()));
+            }
+        } catch (EOFException e) {
+            // 记录结束
+        } catch (IOException e) {
+            logger.warn("tree copy journal:{} read error, resume from recorded keys:{}", journalFile, copied.size(), e);
+        }
+        logger.info("resume tree copy {} -> {} from journal:{}, copied keys:{}", sourceDirKey, targetDirKey, journalFile, copied.size());
+        return copied;
+    }
+
+    /**
+     * 目标目录下的对象是否都是进度记录中已经复制的对象
+     *
+     * @param journaled 进度记录中已经复制的源key
+     * @return 目标目录下有其他对象或者目标是文件时返回false
+     * @throws IOException
+     */
+    private boolean targetHoldsOnly(Map<String, String> journaled) throws IOException {
+        boolean empty = true;
+        String continuationToken = null;
+        do {
+            CompletableFuture<ListObjectsResponse> listing = s3SftpClient.listAllObjectsPage(targetBucket, targetDirKey, continuationToken);
+            ListObjectsResponse page = await(listing);
+            for (Object targetKey : page.getObjects().keySet()) {
+                empty = false;
+                if (!journaled.containsKey(sourceDirKey + targetKey.toString().substring(targetDirKey.length()))) {
+                    return false;
+                }
+            }
+            continuationToken = page.isTruncated() ? page.getNextContinuationToken() : null;
+        } while (continuationToken != null);
+        return !empty;
+    }
+
+    /**
+     * 重新写入进度记录（去掉上次可能不完整的末尾和已经变化的对象），之后追加新的记录
+     *
+     * @param copied 已经复制完成的源key和复制时的版本
+     */
+    private void openJournal(Map<String, String> copied) throws IOException {
+        journalChannel.truncate(0);
+        journalChannel.position(0);
+        journal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(journalChannel)));
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeInt(JOURNAL_VERSION);
+        journal.writeLong(journalCreated);
+        journal.writeUTF(sourceDirKey);
+        journal.writeUTF(targetDirKey);
+        for (Map.Entry<String, String> entry : copied.entrySet()) {
+            int separator = entry.getValue().indexOf('/');
+            journal.writeUTF(entry.getKey());
+            journal.writeLong(Long.parseLong(entry.getValue().substring(0, separator)));
+            journal.writeUTF(entry.getValue().substring(separator + 1));
+        }
+        journal.flush();
+    }
+
+    /**
+     * 追加一个复制完成的源key和复制时的大小、etag，写入失败只影响再次执行时跳过的数量
+     */
+    private synchronized void record(String sourceKey, long size, String eTag) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.writeUTF(sourceKey);
+            journal.writeLong(size);
+            journal.writeUTF(eTag);
+            journal.flush();
+        } catch (IOException e) {
+            logger.warn("tree copy journal:{} write error, stop recording", journalFile, e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * 停止记录，不关闭通道，文件锁保持到 unlockJournal
+     */
+    private synchronized void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            logger.warn("tree copy journal:{} flush error", journalFile, e);
+        }
+        journal = null;
+    }
+
+    /**
+     * 源对象的版本，大小和etag都相同时认为复制后没有变化
+     */
+    private static String version(long size, String eTag) {
+        return size + "/" + eTag;
+    }
+
+    private <V> V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not list directory:" + sourceDirKey, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Could not list directory:" + sourceDirKey, e);
+        }
+    }
+
+    private static String dirKey(S3SftpPath path) {
+        String key = path.toRealPath(NOFOLLOW_LINKS).getKey();
+        return key.endsWith(S3SftpFileSystemProvider.PATH_SEPARATOR) ? key : key + S3SftpFileSystemProvider.PATH_SEPARATOR;
+    }
+
+    private static boolean isUserRoot(S3SftpFileSystem fileSystem, String dirKey) {
+        String trimmed = dirKey.substring(0, dirKey.length() - 1);
+        return trimmed.isEmpty() || trimmed.equals(fileSystem.userRootKey());
+    }
+
+    private static boolean exists(S3SftpPath path) throws IOException {
+        try {
+            S3SftpBasicFileAttributes.getNoCache(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+}
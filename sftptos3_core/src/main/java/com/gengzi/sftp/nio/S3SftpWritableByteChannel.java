@@ -1,6 +1,8 @@
 package com.gengzi.sftp.nio;
 
+import com.gengzi.sftp.cache.AbsentKeyCacheUtil;
 import com.gengzi.sftp.cache.DirectoryContentsNamesCacheUtil;
+import com.gengzi.sftp.cache.SharedFragmentCache;
 import com.gengzi.sftp.cache.UserPathFileAttributesCacheUtil;
 import com.gengzi.sftp.s3.client.S3SftpClient;
 import org.checkerframework.checker.nullness.qual.NonNull;
@@ -24,9 +26,14 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
 
     private static final Logger logger = LoggerFactory.getLogger(S3SftpWritableByteChannel.class);
     // 定义一个本地文件操作通道
-    private final SeekableByteChannel channel;
+    private SeekableByteChannel channel;
     // 定义一个临时文件
-    private final Path tempFile;
+    private Path tempFile;
+    // 流式分片上传，使用本地临时文件时为null
+    private S3SftpMultipartUploader uploader;
+    // 流式上传时暂存乱序到达的数据
+    private S3SftpWriteReorderBuffer reorderBuffer;
+    private final Set<? extends OpenOption> options;
     private final S3SftpPath s3SftpPath;
     private final S3SftpClient s3SftpClient;
     // 定义当前通道是否打开
@@ -40,6 +47,7 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
                                      Set<? extends OpenOption> options) throws IOException {
         this.s3SftpPath = s3SftpPath;
         this.s3SftpClient = s3Client;
+        this.options = options;
         // 判断当前文件是否存在
         S3SftpFileSystemProvider provider = (S3SftpFileSystemProvider) s3SftpPath.getFileSystem().provider();
         Boolean exists = provider.exists(s3Client, s3SftpPath);
@@ -54,6 +62,17 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
             throw new NoSuchFileException("File at path:" + s3SftpPath + " does not exist yet");
         }
 
+        // 新文件或者覆盖写入时不需要原文件内容，使用流式分片上传
+        S3SftpNioSpiConfiguration configuration = s3SftpPath.getFileSystem().configuration();
+        if (configuration.getUploadFileStreaming() && (!exists || options.contains(StandardOpenOption.TRUNCATE_EXISTING))) {
+            this.uploader = new S3SftpMultipartUploader(s3Client, s3SftpPath.bucketName(), s3SftpPath.getKey(),
+                    configuration.getUploadPartSize(), configuration.getUploadMaxConcurrentParts(),
+                    configuration.timeout(), configuration.timeoutUnit());
+            this.reorderBuffer = new S3SftpWriteReorderBuffer(configuration.getUploadReorderBufferBytes());
+            this.isOpen = true;
+            return;
+        }
+
         //TODO 生成临时文件的名称？？？ 可自定义？
         this.tempFile = Files.createTempFile("s3-sftp-tmp", ".tmp");
         if (exists) {
@@ -65,6 +84,26 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
         this.isOpen = true;
     }
 
+    /**
+     * 流式上传还未开始上传分片时出现非顺序写入，将已写入的数据转存到本地临时文件，之后使用临时文件方式上传
+     *
+     * @throws IOException
+     */
+    private void switchToTempFile() throws IOException {
+        logger.debug("non-sequential write before any part uploaded, switch to temp file, path:{}", s3SftpPath);
+        this.tempFile = Files.createTempFile("s3-sftp-tmp", ".tmp");
+        this.channel = Files.newByteChannel(this.tempFile, removeCreateNew(options));
+        ByteBuffer bufferedData = uploader.bufferedData();
+        while (bufferedData.hasRemaining()) {
+            channel.write(bufferedData);
+        }
+        reorderBuffer.transferTo(channel);
+        reorderBuffer.close();
+        reorderBuffer = null;
+        uploader.abort();
+        uploader = null;
+    }
+
     private @NonNull Set<? extends OpenOption> removeCreateNew(Set<? extends OpenOption> options) {
         var auxOptions = new HashSet<>(options);
         auxOptions.remove(StandardOpenOption.CREATE_NEW);
@@ -121,6 +160,39 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
      */
     @Override
     public int write(ByteBuffer src) throws IOException {
+        if (uploader != null) {
+            return write(src, uploader.position());
+        }
+        return channel.write(src);
+    }
+
+    /**
+     * 从指定位置写入数据
+     *
+     * @param src      The buffer from which bytes are to be retrieved
+     * @param position 写入位置
+     * @return The number of bytes written, possibly zero
+     * @throws IOException 流式上传已经开始上传分片后出现非顺序写入
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (uploader != null) {
+            if (position == uploader.position()) {
+                int written = uploader.write(src);
+                // 补齐空洞后，之前超前到达的数据可以继续顺序写入
+                reorderBuffer.drainTo(uploader, false);
+                return written;
+            }
+            if (position > uploader.position()) {
+                // 流水线写入时超前到达的数据先暂存
+                return reorderBuffer.put(position, src);
+            }
+            if (uploader.isStarted()) {
+                throw new IOException("non-sequential write at " + position + " (expected " + uploader.position()
+                        + ") is not supported by streaming upload, path:" + s3SftpPath);
+            }
+            switchToTempFile();
+        }
+        channel.position(position);
         return channel.write(src);
     }
 
@@ -161,18 +233,39 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
     public void close() throws IOException {
         logger.debug("writ close, prepare upload s3 path:{}", s3SftpPath.toString());
         // 关闭本地文件通道
-        channel.close();
+        if (channel != null) {
+            channel.close();
+        }
         if (!isOpen) {
             return;
         }
-        // 移除缓存
-        UserPathFileAttributesCacheUtil.removeCacheValue(s3SftpPath);
-        DirectoryContentsNamesCacheUtil.removeCacheValue(s3SftpPath.getFileSystem(), s3SftpPath.getKey());
+        // 移除缓存，上传完成后再移除一次，上传期间读取写入的缓存不会保留到上传之后
+        invalidateCaches();
+        if (uploader != null) {
+            // 流式上传只需要上传剩余数据并完成分片上传
+            try {
+                if (!this.isForce) {
+                    reorderBuffer.drainTo(uploader, true);
+                    uploader.finish();
+                    invalidateUploadedCaches();
+                    logger.debug("upload s3 sucess path；{}", s3SftpPath.toString());
+                }
+            } catch (Exception e) {
+                logger.error("upload s3 error path；{}", s3SftpPath.toString(), e);
+                uploader.abort();
+                throw e;
+            } finally {
+                reorderBuffer.close();
+                this.isOpen = false;
+            }
+            return;
+        }
         // 可能存在一致性问题，上传成功或者失败，但是临时文件并没有删除
         // 上传文件到对象存储
         try {
             if (!this.isForce) {
                 s3SftpClient.putObjectByLocalFile(s3SftpPath.bucketName(), s3SftpPath.getKey(), tempFile);
+                invalidateUploadedCaches();
                 logger.debug("upload s3 sucess path；{}", s3SftpPath.toString());
             }
         } catch (Exception e) {
@@ -191,7 +284,16 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
         // 在sshd调用  fsync 命令时，上传文件到s3
         logger.debug("writ force, prepare upload s3 path:{}", s3SftpPath.toString());
         try {
+            if (uploader != null) {
+                reorderBuffer.drainTo(uploader, true);
+                uploader.finish();
+                invalidateUploadedCaches();
+                logger.debug("upload s3 sucess path；{}", s3SftpPath.toString());
+                this.isForce = true;
+                return;
+            }
             s3SftpClient.putObjectByLocalFile(s3SftpPath.bucketName(), s3SftpPath.getKey(), tempFile);
+            invalidateUploadedCaches();
             logger.debug("upload s3 sucess path；{}", s3SftpPath.toString());
         } catch (Exception e) {
             logger.error("upload s3 error path；{}", s3SftpPath.toString(), e);
@@ -199,4 +301,22 @@ public class S3SftpWritableByteChannel implements WritableByteChannel {
         this.isForce = true;
     }
 
+    /**
+     * 移除该文件的属性、所在目录列表和下载分片缓存
+     */
+    private void invalidateCaches() {
+        UserPathFileAttributesCacheUtil.removeCacheValue(s3SftpPath);
+        DirectoryContentsNamesCacheUtil.removeCacheValue(s3SftpPath.getFileSystem(), s3SftpPath.getKey());
+        SharedFragmentCache.shared().invalidateObject(s3SftpPath.getFileSystem().configuration().getEndpoint(),
+                s3SftpPath.bucketName(), s3SftpPath.getKey());
+    }
+
+    /**
+     * 上传成功后移除缓存，包括上传期间其他读取重新写入的旧属性和列表
+     */
+    private void invalidateUploadedCaches() {
+        invalidateCaches();
+        AbsentKeyCacheUtil.removeAbsent(s3SftpPath.getFileSystem(), s3SftpPath.getKey());
+    }
+
 }
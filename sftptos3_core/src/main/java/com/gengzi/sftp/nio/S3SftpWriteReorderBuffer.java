@@ -0,0 +1,197 @@
+package com.gengzi.sftp.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 乱序写入重排缓冲区
+ * <p>
+ * sftp 客户端会流水线式地发送多个写请求，到达服务端时偏移量可能不是递增的。
+ * 流式上传只能顺序写入，超前到达的数据按偏移量暂存在这里，等前面的空洞补齐后再按顺序写入上传器。
+ * 内存中暂存的数据超过 memoryLimit 后，后续超前的数据写入本地临时文件
+ */
+class S3SftpWriteReorderBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3SftpWriteReorderBuffer.class);
+    private static final int ZERO_FILL_SIZE = 64 * 1024;
+
+    private final long memoryLimit;
+    // 按偏移量排序的暂存数据
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private long memoryBytes;
+    private Path spillFile;
+    private FileChannel spillChannel;
+
+    /**
+     * @param memoryLimit 内存中最多暂存的字节数
+     */
+    S3SftpWriteReorderBuffer(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * 暂存一段超前到达的数据
+     *
+     * @param offset 数据在文件中的偏移量
+     * @param src    数据，方法返回后 src 的数据已经全部读取
+     * @return 暂存的字节数
+     * @throws IOException 写入本地临时文件失败
+     */
+    int put(long offset, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        Segment previous;
+        if (memoryBytes + length <= memoryLimit) {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(src).flip();
+            memoryBytes += length;
+            previous = segments.put(offset, new Segment(offset, length, copy));
+        } else {
+            FileChannel spill = spillChannel();
+            long written = 0;
+            while (src.hasRemaining()) {
+                written += spill.write(src, offset + written);
+            }
+            logger.debug("reorder buffer memory limit reached, spill {} bytes at offset {} to {}", length, offset, spillFile);
+            previous = segments.put(offset, new Segment(offset, length, null));
+        }
+        // 客户端重发同一偏移量的数据时覆盖之前的数据
+        if (previous != null && previous.data != null) {
+            memoryBytes -= previous.length;
+        }
+        return length;
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * 将已经连续的数据按顺序写入上传器
+     *
+     * @param uploader 上传器
+     * @param fillGaps 是否用0填充空洞（关闭时使用，和普通文件中未写入区域的行为一致）
+     * @throws IOException
+     */
+    void drainTo(S3SftpMultipartUploader uploader, boolean fillGaps) throws IOException {
+        while (!segments.isEmpty()) {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            long position = uploader.position();
+            if (first.getKey() > position) {
+                if (!fillGaps) {
+                    return;
+                }
+                writeZeros(uploader, first.getKey() - position);
+                continue;
+            }
+            segments.pollFirstEntry();
+            Segment segment = first.getValue();
+            if (segment.data != null) {
+                memoryBytes -= segment.length;
+            }
+            long end = segment.offset + segment.length;
+            if (end <= position) {
+                // 已经写入过的重复数据
+                continue;
+            }
+            ByteBuffer data = read(segment);
+            data.position((int) (position - segment.offset));
+            while (data.hasRemaining()) {
+                uploader.write(data);
+            }
+        }
+    }
+
+    /**
+     * 将暂存的所有数据按偏移量写入本地通道（退回临时文件方式上传时使用）
+     *
+     * @param channel 本地文件通道
+     * @throws IOException
+     */
+    void transferTo(SeekableByteChannel channel) throws IOException {
+        for (Segment segment : segments.values()) {
+            ByteBuffer data = read(segment);
+            channel.position(segment.offset);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        segments.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * 释放暂存数据并删除本地临时文件
+     */
+    void close() {
+        segments.clear();
+        memoryBytes = 0;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                logger.warn("delete reorder spill file {} error", spillFile, e);
+            }
+            spillChannel = null;
+        }
+    }
+
+    private ByteBuffer read(Segment segment) throws IOException {
+        if (segment.data != null) {
+            return segment.data;
+        }
+        ByteBuffer data = ByteBuffer.allocate(segment.length);
+        while (data.hasRemaining()) {
+            if (spillChannel.read(data, segment.offset + data.position()) < 0) {
+                throw new IOException("unexpected end of reorder spill file " + spillFile);
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    private FileChannel spillChannel() throws IOException {
+        if (spillChannel == null) {
+            spillFile = Files.createTempFile("s3-sftp-reorder", ".tmp");
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return spillChannel;
+    }
+
+    private static void writeZeros(S3SftpMultipartUploader uploader, long length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ZERO_FILL_SIZE, length));
+        long remaining = length;
+        while (remaining > 0) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), remaining));
+            remaining -= uploader.write(zeros);
+        }
+    }
+
+    /**
+     * 一段暂存数据，data 为 null 时数据在本地临时文件的 offset 位置
+     */
+    private static final class Segment {
+        private final long offset;
+        private final int length;
+        private final ByteBuffer data;
+
+        private Segment(long offset, int length, ByteBuffer data) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+}
@@ -2,7 +2,7 @@ package com.gengzi.sftp.s3.client;
 
 import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
 
-public abstract class AbstractS3SftpClient<T> implements S3SftpClient{
+public abstract class AbstractS3SftpClient<T> implements S3SftpClient<T> {
 
     public S3SftpNioSpiConfiguration configuration;
 
@@ -1,28 +1,18 @@
 package com.gengzi.sftp.s3.client;
 
-import com.gengzi.sftp.config.NettyEventGroup;
 import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
 import com.gengzi.sftp.nio.constans.Constants;
 import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
 import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
-import com.gengzi.sftp.util.S3DirectBufferUtil;
-import io.reactivex.rxjava3.core.Flowable;
-import io.reactivex.rxjava3.core.Single;
-import org.jetbrains.annotations.NotNull;
+import com.gengzi.sftp.util.DirectBufferPool;
+import com.gengzi.sftp.util.PooledByteBuffer;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.Flux;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
-import software.amazon.awssdk.core.async.SdkPublisher;
-import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
-import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Publisher;
 import software.amazon.awssdk.transfer.s3.S3TransferManager;
 import software.amazon.awssdk.transfer.s3.model.*;
 
@@ -32,18 +22,36 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient> {
 
     private static final char PATH_SEPARATOR_CHAR = Constants.PATH_SEPARATOR.charAt(0);
     private static final Logger logger = LoggerFactory.getLogger(DefaultAwsS3SftpClient.class);
+    private static final long MB = 1024L * 1024;
+    // 分片复制的最小分片大小
+    private static final long MIN_COPY_PART_SIZE = 16 * MB;
+    // UploadPartCopy 单个分片最大 5gb，一次分片上传最多 10000 个分片
+    private static final long MAX_COPY_PART_SIZE = 5L * 1024 * MB;
+    private static final int MAX_COPY_PARTS = 10000;
+
+    // 注意：以下字段在父类构造方法调用 createClient 时赋值，不能有初始化表达式，否则会被覆盖
+    // 同一存储的会话共享的客户端
+    private S3ClientRegistry.Entry sharedClient;
+    private boolean closed;
 
     public DefaultAwsS3SftpClient(S3SftpNioSpiConfiguration s3SftpNioSpiConfiguration) {
         super(s3SftpNioSpiConfiguration);
@@ -73,50 +81,6 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
         return path.endsWith("/") ? path : path + "/";
     }
 
-    @NotNull
-    private static ObjectHeadResponse getDirHeadResponse(String key, ListObjectsV2Publisher objectsAttributes) throws NoSuchFileException {
-        SdkPublisher<S3Object> contents = objectsAttributes.contents();
-        SdkPublisher<CommonPrefix> commonPrefixSdkPublisher = objectsAttributes.commonPrefixes();
-        Single<Boolean> empty = Flowable.concat(commonPrefixSdkPublisher, contents).isEmpty();
-        if (!empty.blockingGet()) {
-            HashMap<String, ObjectHeadResponse> objects = new HashMap<>();
-            HashMap<String, ObjectHeadResponse> prefixes = new HashMap<>();
-
-            Flux.from(commonPrefixSdkPublisher).doOnNext(commonPrefix -> {
-                prefixes.put(commonPrefix.prefix().endsWith(Constants.PATH_SEPARATOR) ? commonPrefix.prefix().substring(0, commonPrefix.prefix().length() - 1) : commonPrefix.prefix(), new ObjectHeadResponse(
-                        FileTime.fromMillis(0),
-                        0L,
-                        null,
-                        true,
-                        false
-                ));
-            }).then().block();
-
-            Flux.from(contents).doOnNext(s3Object -> {
-                objects.put(s3Object.key(), new ObjectHeadResponse(
-                        FileTime.from(s3Object.lastModified()),
-                        s3Object.size(),
-                        s3Object.eTag(),
-                        false,
-                        true
-                ));
-            }).then().block();
-            logger.debug("dir HeadResponse objects:{},prefixes:{}",
-                    objects.entrySet().stream().map(m -> m.getKey() + ":" + m.getValue().toString()).collect(Collectors.joining("\n")),
-                    prefixes.entrySet().stream().map(m -> m.getKey() + ":" + m.getValue().toString()).collect(Collectors.joining("\n")));
-            return new ObjectHeadResponse(
-                    FileTime.fromMillis(0),
-                    0L,
-                    null,
-                    true,
-                    false,
-                    new ListObjectsResponse(objects, prefixes)
-            );
-        } else {
-            throw new NoSuchFileException("no such file,path:" + key);
-        }
-    }
-
     private static CompletableFuture<ListObjectsResponse> listObjectsRecursively(
             S3AsyncClient client, ListObjectsV2Request request,
             HashMap<String, ObjectHeadResponse> objects,
@@ -124,26 +88,8 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
 
         return client.listObjectsV2(request)
                 .thenCompose(response -> {
-                    // 处理当前页文件
-                    response.contents().stream().forEach(s3Object -> {
-                        objects.put(s3Object.key(), new ObjectHeadResponse(
-                                FileTime.from(s3Object.lastModified()),
-                                s3Object.size(),
-                                s3Object.eTag(),
-                                false,
-                                true
-                        ));
-                    });
-
-                    response.commonPrefixes().stream().forEach(commonPrefix -> {
-                        prefixes.put(commonPrefix.prefix().endsWith(Constants.PATH_SEPARATOR) ? commonPrefix.prefix().substring(0, commonPrefix.prefix().length() - 1) : commonPrefix.prefix(), new ObjectHeadResponse(
-                                FileTime.fromMillis(0),
-                                0L,
-                                null,
-                                true,
-                                false
-                        ));
-                    });
+                    // 处理当前页文件和子目录
+                    collectPage(response, objects, prefixes);
                     // 若有更多结果，继续异步获取下一页
                     if (response.isTruncated()) {
                         ListObjectsV2Request nextRequest = request.toBuilder()
@@ -156,6 +102,50 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
                 });
     }
 
+    private static void collectPage(ListObjectsV2Response response,
+                                    HashMap<String, ObjectHeadResponse> objects,
+                                    HashMap<String, ObjectHeadResponse> prefixes) {
+        response.contents().forEach(s3Object -> {
+            objects.put(s3Object.key(), new ObjectHeadResponse(
+                    FileTime.from(s3Object.lastModified()),
+                    s3Object.size(),
+                    s3Object.eTag(),
+                    false,
+                    true
+            ));
+        });
+
+        response.commonPrefixes().forEach(commonPrefix -> {
+            prefixes.put(commonPrefix.prefix().endsWith(Constants.PATH_SEPARATOR) ? commonPrefix.prefix().substring(0, commonPrefix.prefix().length() - 1) : commonPrefix.prefix(), new ObjectHeadResponse(
+                    FileTime.fromMillis(0),
+                    0L,
+                    null,
+                    true,
+                    false
+            ));
+        });
+    }
+
+    /**
+     * 目录的元信息
+     *
+     * @param listObjects 目录下的内容
+     * @return 目录下没有内容时返回 null
+     */
+    private static ObjectHeadResponse toDirHeadResponse(ListObjectsResponse listObjects) {
+        if (listObjects.getObjects().isEmpty() && listObjects.getPrefixes().isEmpty()) {
+            return null;
+        }
+        return new ObjectHeadResponse(
+                FileTime.fromMillis(0),
+                0L,
+                null,
+                true,
+                false,
+                listObjects
+        );
+    }
+
     /**
      * s3客户端名称
      *
@@ -168,27 +158,40 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
 
     @Override
     public S3AsyncClient createClient(S3SftpNioSpiConfiguration s3SftpNioSpiConfiguration) {
-        // 构建 Netty HTTP 客户端，注入自定义 EventLoopGroup
-        NettyNioAsyncHttpClient nettyHttpClient = (NettyNioAsyncHttpClient) NettyNioAsyncHttpClient.builder()
-                .eventLoopGroup(SdkEventLoopGroup.create(NettyEventGroup.CUSTOMEVENTLOOPGROUP)) // 注入自定义线程池
-                .connectionTimeout(Duration.ofSeconds(10)) // 连接超时
-                .maxConcurrency(500) // 最大并发连接数（默认 100，可根据线程数调整）
-                .build();
+        // 从注册表获取同一存储共享的客户端（共享 Netty 连接池），会话关闭时释放
+        this.sharedClient = S3ClientRegistry.shared().acquire(s3SftpNioSpiConfiguration);
+        return sharedClient.s3Client();
+    }
 
-        return S3AsyncClient.builder()
-                .region(Region.of(s3SftpNioSpiConfiguration.region()))
-                .endpointOverride(s3SftpNioSpiConfiguration.endpointUri())
-                .credentialsProvider(StaticCredentialsProvider.create(
-                        AwsBasicCredentials.create(s3SftpNioSpiConfiguration.accessKey(), s3SftpNioSpiConfiguration.secretKey())
-                ))
-                .serviceConfiguration(service -> service
-                        .pathStyleAccessEnabled(true)
-                ).httpClient(nettyHttpClient)
-                .build();
+    /**
+     * 获取传输管理器，同一存储的会话共享
+     *
+     * @return
+     */
+    private synchronized S3TransferManager transferManager() {
+        if (closed) {
+            throw new IllegalStateException("s3 client already closed");
+        }
+        return sharedClient.transferManager();
+    }
+
+    /**
+     * 关闭客户端，释放对共享客户端的引用，可以重复调用
+     * 共享客户端在没有会话使用且空闲超时后由注册表关闭
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        logger.debug("release s3 client endpoint:{}", configuration.getEndpoint());
+        S3ClientRegistry.shared().release(sharedClient);
     }
 
     /**
      * 从对象存储中获取一个文件内容并返回到ByteBuffer
+     * 使用直接内存时响应体直接写入池化的堆外缓冲区
      *
      * @param bucketName 桶
      * @param key        对象key
@@ -197,28 +200,82 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
      * @return
      */
     @Override
-    public CompletableFuture<ByteBuffer> getObject(String bucketName, String key, long offset, long length) {
+    public CompletableFuture<PooledByteBuffer> getObject(String bucketName, String key, long offset, long length) {
         logger.debug("getObject bucketName:{},key:{},offset:{},length:{}", bucketName, key, offset, length);
-        long readFrom = offset;
-        long readTo = offset + length - 1;
-        String range = "bytes=" + readFrom + "-" + readTo;
+        return getObjectFragments(bucketName, key, offset, length, (int) length, null)
+                .thenApply(fragments -> fragments.isEmpty()
+                        ? PooledByteBuffer.unpooled(ByteBuffer.allocate(0))
+                        : fragments.get(0));
+    }
+
+    /**
+     * 一次范围请求获取连续的多个分片，并按分片大小拆分
+     * 每个分片是独立的缓冲区，可以单独释放
+     *
+     * @param bucketName   桶
+     * @param key          对象key
+     * @param offset       偏移量
+     * @param length       长度
+     * @param fragmentSize 分片大小
+     * @param eTag         对象ETag，可以为空
+     * @return
+     */
+    @Override
+    public CompletableFuture<List<PooledByteBuffer>> getObjectFragments(String bucketName, String key, long offset, long length, int fragmentSize, String eTag) {
+        logger.debug("getObjectFragments bucketName:{},key:{},offset:{},length:{},fragmentSize:{},eTag:{}", bucketName, key, offset, length, fragmentSize, eTag);
+        String range = "bytes=" + offset + "-" + (offset + length - 1);
         logger.debug("byte range for {} is '{}'", key, range);
-        S3AsyncClient s3AsyncClient = this.s3Client;
-        return s3AsyncClient.getObject(
+        if (this.configuration.getDownloadFileUseDirectBuffer()) {
+            return this.s3Client.getObject(
+                    builder -> builder
+                            .bucket(bucketName)
+                            .key(key)
+                            .range(range)
+                            .ifMatch(eTag),
+                    new PooledByteBufferResponseTransformer(DirectBufferPool.shared(), fragmentSize));
+        }
+        return this.s3Client.getObject(
                         builder -> builder
                                 .bucket(bucketName)
                                 .key(key)
-                                .range(range),
+                                .range(range)
+                                .ifMatch(eTag),
                         AsyncResponseTransformer.toBytes())
-                .thenApply(
-                        getObjectResponseResponseBytes -> {
-                            boolean downloadFileUseDirectBuffer = this.configuration.getDownloadFileUseDirectBuffer();
-                            if (downloadFileUseDirectBuffer) {
-                                return S3DirectBufferUtil.toDirectBuffer(getObjectResponseResponseBytes);
-                            }
-                            return getObjectResponseResponseBytes.asByteBuffer();
-                        }
-                );
+                .thenApply(responseBytes -> {
+                    ByteBuffer whole = responseBytes.asByteBuffer();
+                    List<PooledByteBuffer> fragments = new ArrayList<>();
+                    while (whole.hasRemaining()) {
+                        int n = Math.min(fragmentSize, whole.remaining());
+                        fragments.add(PooledByteBuffer.unpooled(whole.slice(whole.position(), n)));
+                        whole.position(whole.position() + n);
+                    }
+                    return fragments;
+                });
+    }
+
+    /**
+     * 以流的方式从对象存储中获取文件内容
+     * 使用 toPublisher 不在堆内聚合整个响应，数据块按订阅方的请求逐个推送
+     *
+     * @param bucketName 桶
+     * @param key        对象key
+     * @param offset     偏移量
+     * @param length     长度
+     * @param eTag       对象ETag，可以为空
+     * @return
+     */
+    @Override
+    public CompletableFuture<Publisher<ByteBuffer>> getObjectStream(String bucketName, String key, long offset, long length, String eTag) {
+        logger.debug("getObjectStream bucketName:{},key:{},offset:{},length:{},eTag:{}", bucketName, key, offset, length, eTag);
+        String range = "bytes=" + offset + "-" + (offset + length - 1);
+        return this.s3Client.getObject(
+                        builder -> builder
+                                .bucket(bucketName)
+                                .key(key)
+                                .range(range)
+                                .ifMatch(eTag),
+                        AsyncResponseTransformer.toPublisher())
+                .thenApply(responsePublisher -> responsePublisher);
     }
 
     /**
@@ -258,6 +315,35 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
         );
     }
 
+    /**
+     * 批量删除对象，使用 quiet 模式，响应中只返回删除失败的key
+     *
+     * @param bucketName
+     * @param keys
+     * @return
+     */
+    @Override
+    public CompletableFuture<List<String>> deleteObjects(String bucketName, List<String> keys) {
+        logger.debug("deleteObjects bucketName:{},keys:{}", bucketName, keys.size());
+        List<ObjectIdentifier> objects = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+        return this.s3Client.deleteObjects(
+                DeleteObjectsRequest.builder()
+                        .bucket(bucketName)
+                        .delete(Delete.builder().objects(objects).quiet(true).build())
+                        .build()
+        ).thenApply(response -> {
+            List<String> failedKeys = new ArrayList<>();
+            for (S3Error error : response.errors()) {
+                logger.warn("deleteObjects bucketName:{},key:{} error:{} {}", bucketName, error.key(), error.code(), error.message());
+                failedKeys.add(error.key());
+            }
+            return failedKeys;
+        });
+    }
+
     /**
      * copy到目标对象
      *
@@ -269,16 +355,216 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
      */
     @Override
     public CompletableFuture<?> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
-        try (S3TransferManager s3TransferManager = S3TransferManager.builder().s3Client(this.s3Client).build()) {
-            return s3TransferManager.copy(CopyRequest.builder()
-                    .copyObjectRequest(CopyObjectRequest.builder()
-                            .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+        return copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey, -1L);
+    }
+
+    /**
+     * copy到目标对象
+     * <p>
+     * 源对象小于 copyMultipartThreshold 时一次复制，否则按分片并发复制（UploadPartCopy），
+     * 大小未知时先查询源对象。取消返回的future时取消进行中的请求，分片复制不再复制新的分片并取消分片上传
+     *
+     * @param sourceBucketName
+     * @param sourceKey
+     * @param destinationBucketName
+     * @param destinationKey
+     * @param sourceSize            源对象大小，小于0表示未知
+     * @return
+     */
+    @Override
+    public CompletableFuture<?> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long sourceSize) {
+        long threshold = this.configuration.getCopyMultipartThreshold();
+        if (sourceSize >= 0 && sourceSize < threshold) {
+            return singleCopyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+        }
+        // 分片复制需要源对象的etag和元数据，大小未知或超过阈值时都先查询一次
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        CompletableFuture<HeadObjectResponse> headRequest = this.s3Client.headObject(builder -> builder.bucket(sourceBucketName).key(sourceKey));
+        // 当前进行中的请求，取消时一起取消
+        AtomicReference<CompletableFuture<?>> current = new AtomicReference<>(headRequest);
+        headRequest.whenComplete((head, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<?> copy = head.contentLength() == null || head.contentLength() < threshold
+                    ? singleCopyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey)
+                    : new MultipartCopy(sourceBucketName, sourceKey, destinationBucketName, destinationKey, head).start();
+            current.set(copy);
+            copy.whenComplete((completed, copyThrowable) -> {
+                if (copyThrowable != null) {
+                    result.completeExceptionally(copyThrowable);
+                } else {
+                    result.complete(completed);
+                }
+            });
+            if (result.isCancelled()) {
+                copy.cancel(true);
+            }
+        });
+        result.whenComplete((completed, throwable) -> {
+            if (result.isCancelled()) {
+                current.get().cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<?> singleCopyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
+        return transferManager().copy(CopyRequest.builder()
+                .copyObjectRequest(CopyObjectRequest.builder()
+                        .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                        .sourceBucket(sourceBucketName)
+                        .sourceKey(sourceKey)
+                        .destinationBucket(destinationBucketName)
+                        .destinationKey(destinationKey)
+                        .build())
+                .build()).completionFuture();
+    }
+
+    /**
+     * 计算分片复制的分片大小
+     * <p>
+     * 分片数约为并发数的4倍，使各个并发在对象复制结束前都有分片可做；
+     * 同时不小于 MIN_COPY_PART_SIZE 且分片数不超过 MAX_COPY_PARTS，最大 5gb，按 1mb 对齐
+     *
+     * @param objectSize         对象大小
+     * @param maxConcurrentParts 并发复制的分片数
+     * @return 分片大小
+     */
+    static long copyPartSize(long objectSize, int maxConcurrentParts) {
+        long partSize = objectSize / (Math.max(1, maxConcurrentParts) * 4L);
+        partSize = Math.max(partSize, MIN_COPY_PART_SIZE);
+        partSize = Math.max(partSize, (objectSize + MAX_COPY_PARTS - 1) / MAX_COPY_PARTS);
+        partSize = Math.min(partSize, MAX_COPY_PART_SIZE);
+        return (partSize + MB - 1) / MB * MB;
+    }
+
+    /**
+     * 一个对象的分片复制
+     * <p>
+     * 启动 copyMaxConcurrentParts 个复制链，每个链依次领取下一个分片号复制，
+     * 全部分片完成后合并；任一分片失败或者复制被取消时其余链不再领取新分片，结束后取消分片上传。
+     * 每个分片都带 x-amz-copy-source-if-match，复制过程中源对象被覆盖时失败，不会拼出新旧混合的对象
+     */
+    private final class MultipartCopy {
+        private final String sourceBucketName;
+        private final String sourceKey;
+        private final String destinationBucketName;
+        private final String destinationKey;
+        private final HeadObjectResponse source;
+        private final long size;
+        private final long partSize;
+        private final int partCount;
+        private final AtomicInteger nextPart = new AtomicInteger(1);
+        private final SortedMap<Integer, String> partETags = new ConcurrentSkipListMap<>();
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile String uploadId;
+
+        private MultipartCopy(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, HeadObjectResponse source) {
+            this.sourceBucketName = sourceBucketName;
+            this.sourceKey = sourceKey;
+            this.destinationBucketName = destinationBucketName;
+            this.destinationKey = destinationKey;
+            this.source = source;
+            this.size = source.contentLength();
+            this.partSize = copyPartSize(size, configuration.getCopyMaxConcurrentParts());
+            this.partCount = (int) ((size + partSize - 1) / partSize);
+        }
+
+        /**
+         * @return 复制结果，取消时不再复制新的分片，已经开始的分片结束后取消分片上传
+         */
+        private CompletableFuture<?> start() {
+            result.whenComplete((completed, throwable) -> {
+                if (result.isCancelled()) {
+                    nextPart.set(Integer.MAX_VALUE);
+                }
+            });
+            logger.debug("multipart copy {}/{} -> {}/{}, size:{}, partSize:{}, parts:{}",
+                    sourceBucketName, sourceKey, destinationBucketName, destinationKey, size, partSize, partCount);
+            // 目标对象保留源对象的内容类型和用户元数据，与 CopyObject 的默认行为一致
+            s3Client.createMultipartUpload(builder -> builder
+                            .bucket(destinationBucketName)
+                            .key(destinationKey)
+                            .contentType(source.contentType())
+                            .contentEncoding(source.contentEncoding())
+                            .contentDisposition(source.contentDisposition())
+                            .contentLanguage(source.contentLanguage())
+                            .cacheControl(source.cacheControl())
+                            .metadata(source.metadata()))
+                    .thenCompose(created -> {
+                        uploadId = created.uploadId();
+                        int workers = Math.max(1, Math.min(configuration.getCopyMaxConcurrentParts(), partCount));
+                        CompletableFuture<?>[] chains = new CompletableFuture<?>[workers];
+                        for (int i = 0; i < workers; i++) {
+                            chains[i] = copyNextPart();
+                        }
+                        return CompletableFuture.allOf(chains);
+                    })
+                    .thenCompose(v -> {
+                        // 取消后部分分片没有复制，不能合并
+                        if (result.isCancelled()) {
+                            throw new CancellationException("multipart copy of " + sourceKey + " cancelled");
+                        }
+                        return completeMultipartUpload(destinationBucketName, destinationKey, uploadId, partETags);
+                    })
+                    .handle((completed, throwable) -> {
+                        if (throwable == null) {
+                            return CompletableFuture.completedFuture(completed);
+                        }
+                        logger.error("multipart copy {}/{} -> {}/{} error", sourceBucketName, sourceKey,
+                                destinationBucketName, destinationKey, throwable);
+                        CompletableFuture<Object> failed = new CompletableFuture<>();
+                        if (uploadId == null) {
+                            failed.completeExceptionally(throwable);
+                            return failed;
+                        }
+                        // 取消分片上传，释放已复制的分片，取消失败不影响返回原始异常
+                        abortMultipartUpload(destinationBucketName, destinationKey, uploadId)
+                                .whenComplete((aborted, abortThrowable) -> failed.completeExceptionally(throwable));
+                        return failed;
+                    })
+                    .thenCompose(future -> future)
+                    .whenComplete((completed, throwable) -> {
+                        if (throwable != null) {
+                            result.completeExceptionally(throwable);
+                        } else {
+                            result.complete(completed);
+                        }
+                    });
+            return result;
+        }
+
+        private CompletableFuture<Void> copyNextPart() {
+            int partNumber = nextPart.getAndIncrement();
+            if (partNumber < 1 || partNumber > partCount) {
+                return CompletableFuture.completedFuture(null);
+            }
+            long start = (partNumber - 1) * partSize;
+            long end = Math.min(size, start + partSize) - 1;
+            return s3Client.uploadPartCopy(builder -> builder
                             .sourceBucket(sourceBucketName)
                             .sourceKey(sourceKey)
                             .destinationBucket(destinationBucketName)
                             .destinationKey(destinationKey)
-                            .build())
-                    .build()).completionFuture();
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .copySourceRange("bytes=" + start + "-" + end)
+                            .copySourceIfMatch(source.eTag()))
+                    .whenComplete((response, throwable) -> {
+                        if (throwable != null) {
+                            // 其余复制链不再领取新的分片
+                            nextPart.set(Integer.MAX_VALUE);
+                        }
+                    })
+                    .thenCompose(response -> {
+                        partETags.put(partNumber, response.copyPartResult().eTag());
+                        return copyNextPart();
+                    });
         }
     }
 
@@ -293,37 +579,23 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
     @Override
     public void getObjectAndWriteToLocalFile(String bucketName, String key, Path destination) throws IOException {
         logger.info("getObjectAndWriteToLocalFile bucketName:{},key:{},Path:{} ", bucketName, key, destination);
-        try (S3TransferManager s3TransferManager = S3TransferManager.builder().s3Client(this.s3Client).build()) {
-            CompletableFuture<CompletedFileDownload> downloadCompletableFuture = s3TransferManager.downloadFile(
-                    DownloadFileRequest.builder()
-                            .getObjectRequest(GetObjectRequest.builder()
-                                    .bucket(bucketName)
-                                    .key(key)
-                                    .build())
-                            .destination(destination)
-                            .build()
-            ).completionFuture();
-
-            try {
-                if (false) {
-                    try {
-                        downloadCompletableFuture.get(600L, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Could not open the path:" + key, e);
-                    } catch (TimeoutException | ExecutionException e) {
-                        throw new IOException("Could not open the path:" + key, e);
-                    }
-                } else {
-                    downloadCompletableFuture.join();
-                }
-            } catch (Exception e) {
-                throw new IOException("Could not open the path:" + key, e);
-            } finally {
-                downloadCompletableFuture = null;
-            }
-
+        CompletableFuture<CompletedFileDownload> downloadCompletableFuture = transferManager().downloadFile(
+                DownloadFileRequest.builder()
+                        .getObjectRequest(GetObjectRequest.builder()
+                                .bucket(bucketName)
+                                .key(key)
+                                .build())
+                        .destination(destination)
+                        .build()
+        ).completionFuture();
 
+        try {
+            downloadCompletableFuture.get(this.configuration.timeout(), this.configuration.timeoutUnit());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Could not open the path:" + key, e);
+        } catch (Exception e) {
+            throw new IOException("Could not open the path:" + key, e);
         }
     }
 
@@ -338,8 +610,8 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
     @Override
     public void putObjectByLocalFile(String bucketName, String key, Path localFile) throws IOException {
         logger.info("putObjectByLocalFile bucketName:{},key:{},Path:{} ", bucketName, key, localFile);
-        try (S3TransferManager s3TransferManager = S3TransferManager.builder().s3Client(this.s3Client).build()) {
-            CompletableFuture<CompletedFileUpload> uploadCompletableFuture = s3TransferManager.uploadFile(
+        try {
+            CompletableFuture<CompletedFileUpload> uploadCompletableFuture = transferManager().uploadFile(
                     UploadFileRequest.builder()
                             .putObjectRequest(PutObjectRequest.builder()
                                     .bucket(bucketName)
@@ -369,9 +641,122 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
     }
 
 
+    /**
+     * 上传内存中的数据到对象存储
+     *
+     * @param bucketName
+     * @param key
+     * @param content
+     * @return
+     */
+    @Override
+    public CompletableFuture<?> putObject(String bucketName, String key, ByteBuffer content) {
+        logger.debug("putObject bucketName:{},key:{},length:{}", bucketName, key, content.remaining());
+        return this.s3Client.putObject(builder -> builder
+                        .bucket(bucketName)
+                        .key(key),
+                AsyncRequestBody.fromByteBufferUnsafe(content));
+    }
+
+    /**
+     * 创建分片上传
+     *
+     * @param bucketName
+     * @param key
+     * @return
+     */
+    @Override
+    public CompletableFuture<String> createMultipartUpload(String bucketName, String key) {
+        logger.debug("createMultipartUpload bucketName:{},key:{}", bucketName, key);
+        return this.s3Client.createMultipartUpload(builder -> builder
+                        .bucket(bucketName)
+                        .key(key))
+                .thenApply(CreateMultipartUploadResponse::uploadId);
+    }
+
+    /**
+     * 上传一个分片
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @param partNumber
+     * @param content
+     * @return
+     */
+    @Override
+    public CompletableFuture<String> uploadPart(String bucketName, String key, String uploadId, int partNumber, ByteBuffer content) {
+        logger.debug("uploadPart bucketName:{},key:{},uploadId:{},partNumber:{},length:{}", bucketName, key, uploadId, partNumber, content.remaining());
+        return this.s3Client.uploadPart(builder -> builder
+                                .bucket(bucketName)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) content.remaining()),
+                        AsyncRequestBody.fromByteBufferUnsafe(content))
+                .thenApply(UploadPartResponse::eTag);
+    }
+
+    /**
+     * 完成分片上传
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @param partETags
+     * @return
+     */
+    @Override
+    public CompletableFuture<?> completeMultipartUpload(String bucketName, String key, String uploadId, SortedMap<Integer, String> partETags) {
+        logger.debug("completeMultipartUpload bucketName:{},key:{},uploadId:{},parts:{}", bucketName, key, uploadId, partETags.size());
+        List<CompletedPart> completedParts = partETags.entrySet().stream()
+                .map(entry -> CompletedPart.builder().partNumber(entry.getKey()).eTag(entry.getValue()).build())
+                .collect(Collectors.toList());
+        return this.s3Client.completeMultipartUpload(builder -> builder
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(upload -> upload.parts(completedParts)));
+    }
+
+    /**
+     * 取消分片上传
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @return
+     */
+    @Override
+    public CompletableFuture<?> abortMultipartUpload(String bucketName, String key, String uploadId) {
+        logger.debug("abortMultipartUpload bucketName:{},key:{},uploadId:{}", bucketName, key, uploadId);
+        return this.s3Client.abortMultipartUpload(builder -> builder
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId));
+    }
+
     @Override
     public CompletableFuture<ListObjectsResponse> getCurrentKeyDirAllListObjects(String bucketName, String prefixKey) {
         logger.debug("getCurrentKeyDirAllListObjects bucketName:{},key:{},Path:{} ", bucketName, prefixKey);
+        // 同一目录的并发列表请求合并为一次
+        return sharedClient.listRequests().executeAsync(bucketName + Constants.PATH_SEPARATOR + prefixKey,
+                () -> listCurrentKeyDirAllObjects(bucketName, prefixKey));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsResponse> getCurrentKeyDirListObjectsPage(String bucketName, String prefixKey, String continuationToken) {
+        logger.debug("getCurrentKeyDirListObjectsPage bucketName:{},key:{},continuationToken:{} ", bucketName, prefixKey, continuationToken);
+        return listObjectsPage(bucketName, prefixKey, Constants.PATH_SEPARATOR, 1000, continuationToken);
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsResponse> listAllObjectsPage(String bucketName, String prefixKey, String continuationToken) {
+        logger.debug("listAllObjectsPage bucketName:{},key:{},continuationToken:{} ", bucketName, prefixKey, continuationToken);
+        return listObjectsPage(bucketName, prefixKey, null, 1000, continuationToken);
+    }
+
+    private CompletableFuture<ListObjectsResponse> listCurrentKeyDirAllObjects(String bucketName, String prefixKey) {
         ListObjectsV2Request request = ListObjectsV2Request.builder()
                 .bucket(bucketName)
                 .prefix(prefixKey)
@@ -395,24 +780,65 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
     @Override
     public ObjectHeadResponse headFileOrDirObject(String bucketName, String key) throws IOException {
         logger.debug("headFileOrDirObject bucketName:{},key:{} ", bucketName, key);
+        // 同一对象的并发元信息请求合并为一次，结果由调用方放入缓存
+        return sharedClient.headRequests().execute(bucketName + Constants.PATH_SEPARATOR + key,
+                () -> resolveFileOrDirObject(bucketName, key),
+                this.configuration.timeout(), this.configuration.timeoutUnit());
+    }
+
+    private ObjectHeadResponse resolveFileOrDirObject(String bucketName, String key) throws IOException {
+        // 只取前两个 key 的一页 LIST 判断是否为目录（取两个 key 才能区分空目录对象 key/ 和非空目录），
+        // 不完整的一页不会作为目录列表缓存
+        CompletableFuture<ListObjectsResponse> list = listObjectsPage(bucketName, normalizePath(key), Constants.PATH_SEPARATOR, 2, null);
+        CompletableFuture<ObjectHeadResponse> resolved;
+        CompletableFuture<HeadObjectResponse> head = null;
         if (isDirectoryString(key)) {
-            ListObjectsV2Publisher objectsAttributes = getObjectsAttributes(bucketName, key);
-            return getDirHeadResponse(key, objectsAttributes);
+            // 目录路径只需要 LIST
+            resolved = list.thenApply(DefaultAwsS3SftpClient::toDirHeadResponse);
+        } else {
+            // 同时发起 HEAD 和 LIST，HEAD 命中时取消 LIST 直接返回文件，不用等待 LIST；
+            // HEAD 未命中时由 LIST 判断是否为目录，目录和不存在的key也只需要一次往返
+            head = headObjectOrNull(bucketName, key);
+            resolved = head.thenCompose(response -> {
+                if (response != null) {
+                    list.cancel(true);
+                    return CompletableFuture.completedFuture(new ObjectHeadResponse(
+                            FileTime.from(response.lastModified()),
+                            response.contentLength(),
+                            response.eTag(),
+                            false,
+                            true
+                    ));
+                }
+                return list.thenApply(DefaultAwsS3SftpClient::toDirHeadResponse);
+            });
         }
-        HeadObjectResponse response = getObjectAttributes(bucketName, key);
-        // 判断key是否为目录对象
-        if (response == null) {
-            ListObjectsV2Publisher objectsAttributes = getObjectsAttributes(bucketName, key);
-            return getDirHeadResponse(key, objectsAttributes);
+        Long timeout = this.configuration.timeout();
+        TimeUnit timeUnit = this.configuration.timeoutUnit();
+        ObjectHeadResponse objectHeadResponse;
+        try {
+            objectHeadResponse = resolved.get(timeout, timeUnit);
+        } catch (ExecutionException e) {
+            String errMsg = String.format("path: %s getFileAttributes error!!! req s3 server :%s",
+                    key, e.getCause().toString());
+            logger.error(errMsg);
+            throw new IOException(errMsg, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (TimeoutException e) {
+            // 组合得到的 future 取消不会传递到请求，分别取消
+            resolved.cancel(true);
+            list.cancel(true);
+            if (head != null) {
+                head.cancel(true);
+            }
+            throw new IOException("path " + key + "getFileAttributes timeout " + timeout + ",timeUnit" + timeUnit.toString(), e);
         }
-        return new ObjectHeadResponse(
-                FileTime.from(response.lastModified()),
-                response.contentLength(),
-                response.eTag(),
-                false,
-                true
-        );
-
+        if (objectHeadResponse == null) {
+            throw new NoSuchFileException("no such file,path:" + key);
+        }
+        return objectHeadResponse;
     }
 
     /**
@@ -466,12 +892,69 @@ public class DefaultAwsS3SftpClient extends AbstractS3SftpClient<S3AsyncClient>
         }
     }
 
-    private ListObjectsV2Publisher getObjectsAttributes(String bucketName, String key) {
-        String keyDir = normalizePath(key);
-        return this.s3Client.listObjectsV2Paginator(req -> req
+    /**
+     * 异步获取对象的基础元信息
+     *
+     * @param bucketName
+     * @param key
+     * @return 如果无此对象，返回 null，取消时同时取消底层的请求
+     */
+    private CompletableFuture<HeadObjectResponse> headObjectOrNull(String bucketName, String key) {
+        CompletableFuture<HeadObjectResponse> request = this.s3Client.headObject(req -> req
+                .bucket(bucketName)
+                .key(key)
+        );
+        CompletableFuture<HeadObjectResponse> head = request.handle((response, throwable) -> {
+            if (throwable == null) {
+                return response;
+            }
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause() : throwable;
+            if (cause instanceof NoSuchKeyException) {
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
+        head.whenComplete((response, throwable) -> {
+            if (head.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return head;
+    }
+
+    /**
+     * 列出目录下的一页文件或者子目录
+     *
+     * @param bucketName
+     * @param keyDir            目录
+     * @param delimiter         分隔符，为 null 时列出前缀下的所有对象
+     * @param maxKeys           最多返回的数量
+     * @param continuationToken 上一页返回的 token，第一页为 null
+     * @return 结果有更多内容时 truncated 为 true，取消时同时取消底层的列表请求
+     */
+    private CompletableFuture<ListObjectsResponse> listObjectsPage(String bucketName, String keyDir, String delimiter, int maxKeys, String continuationToken) {
+        CompletableFuture<ListObjectsV2Response> request = this.s3Client.listObjectsV2(req -> req
                 .bucket(bucketName)
                 .prefix(keyDir)
-                .delimiter(Constants.PATH_SEPARATOR));
+                .delimiter(delimiter)
+                .maxKeys(maxKeys)
+                .continuationToken(continuationToken)
+        );
+        CompletableFuture<ListObjectsResponse> page = request.thenApply(response -> {
+            HashMap<String, ObjectHeadResponse> objects = new HashMap<>();
+            HashMap<String, ObjectHeadResponse> prefixes = new HashMap<>();
+            collectPage(response, objects, prefixes);
+            return new ListObjectsResponse(objects, prefixes, Boolean.TRUE.equals(response.isTruncated()),
+                    response.nextContinuationToken());
+        });
+        // 取消 thenApply 得到的 future 不会传递到 SDK 的请求，需要单独取消
+        page.whenComplete((response, throwable) -> {
+            if (page.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return page;
     }
 
 }
@@ -0,0 +1,119 @@
+package com.gengzi.sftp.s3.client;
+
+import com.gengzi.sftp.util.DirectBufferPool;
+import com.gengzi.sftp.util.PooledByteBuffer;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 将响应体直接写入池化缓冲区的响应转换器
+ * <p>
+ * 按 fragmentSize 切分为多个缓冲区，不经过堆内字节数组中转。
+ * 请求失败时已写入的缓冲区全部归还
+ */
+public class PooledByteBufferResponseTransformer implements AsyncResponseTransformer<GetObjectResponse, List<PooledByteBuffer>> {
+
+    private final DirectBufferPool pool;
+    private final int fragmentSize;
+    private volatile CompletableFuture<List<PooledByteBuffer>> future;
+    private volatile long contentLength = -1;
+
+    /**
+     * @param pool         缓冲区池
+     * @param fragmentSize 每个缓冲区的大小
+     */
+    public PooledByteBufferResponseTransformer(DirectBufferPool pool, int fragmentSize) {
+        if (fragmentSize < 1) {
+            throw new IllegalArgumentException("fragmentSize must be >= 1");
+        }
+        this.pool = pool;
+        this.fragmentSize = fragmentSize;
+    }
+
+    @Override
+    public CompletableFuture<List<PooledByteBuffer>> prepare() {
+        // 重试时会再次调用 prepare
+        future = new CompletableFuture<>();
+        contentLength = -1;
+        return future;
+    }
+
+    @Override
+    public void onResponse(GetObjectResponse response) {
+        if (response.contentLength() != null) {
+            contentLength = response.contentLength();
+        }
+    }
+
+    @Override
+    public void onStream(SdkPublisher<ByteBuffer> publisher) {
+        publisher.subscribe(new FragmentSubscriber(future, contentLength));
+    }
+
+    @Override
+    public void exceptionOccurred(Throwable error) {
+        future.completeExceptionally(error);
+    }
+
+    private class FragmentSubscriber implements Subscriber<ByteBuffer> {
+
+        private final CompletableFuture<List<PooledByteBuffer>> result;
+        private final List<PooledByteBuffer> fragments = new ArrayList<>();
+        private long remainingLength;
+        private PooledByteBuffer current;
+
+        FragmentSubscriber(CompletableFuture<List<PooledByteBuffer>> result, long contentLength) {
+            this.result = result;
+            this.remainingLength = contentLength;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            // 数据最终都要写入内存，直接请求全部数据
+            s.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ByteBuffer byteBuffer) {
+            while (byteBuffer.hasRemaining()) {
+                if (current == null || !current.buffer().hasRemaining()) {
+                    int capacity = remainingLength > 0 ? (int) Math.min(fragmentSize, remainingLength) : fragmentSize;
+                    current = pool.acquire(capacity);
+                    fragments.add(current);
+                    if (remainingLength > 0) {
+                        remainingLength -= capacity;
+                    }
+                }
+                ByteBuffer target = current.buffer();
+                int n = Math.min(target.remaining(), byteBuffer.remaining());
+                int originalLimit = byteBuffer.limit();
+                byteBuffer.limit(byteBuffer.position() + n);
+                target.put(byteBuffer);
+                byteBuffer.limit(originalLimit);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fragments.forEach(PooledByteBuffer::release);
+            fragments.clear();
+            result.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            fragments.forEach(fragment -> fragment.buffer().flip());
+            if (!result.complete(fragments)) {
+                fragments.forEach(PooledByteBuffer::release);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.gengzi.sftp.s3.client;
+
+import com.gengzi.sftp.config.NettyEventGroup;
+import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
+import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
+import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+import com.gengzi.sftp.util.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.transfer.s3.S3TransferManager;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * s3 客户端注册表
+ * <p>
+ * 同一存储（endpoint + region + 访问凭证 + 传输参数）的所有会话共享一个 S3AsyncClient、Netty 连接池和传输管理器，
+ * 新会话直接复用已经建立好的连接。按引用计数管理，没有会话使用且空闲超过 idleTimeout 后关闭。
+ * 共享客户端只保存创建时复制的连接和传输参数，不持有会话的配置（其中有会话上下文）
+ */
+public final class S3ClientRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3ClientRegistry.class);
+
+    // 默认空闲5分钟后关闭
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final S3ClientRegistry shared = new S3ClientRegistry();
+
+    private final ConcurrentHashMap<StorageKey, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictExecutor;
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private S3ClientRegistry() {
+        this.evictExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sftptos3-client-evict-thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictExecutor.scheduleWithFixedDelay(this::evictIdle, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 全局注册表
+     *
+     * @return
+     */
+    public static S3ClientRegistry shared() {
+        return shared;
+    }
+
+    /**
+     * 设置客户端空闲多久后关闭，需要在服务启动时调用
+     *
+     * @param idleTimeoutMillis 空闲时间（毫秒），0表示最后一个会话释放后立即关闭
+     */
+    public static void configure(long idleTimeoutMillis) {
+        logger.info("s3 client idle timeout millis:{}", idleTimeoutMillis);
+        shared.idleTimeoutMillis = Math.max(0L, idleTimeoutMillis);
+    }
+
+    /**
+     * 获取存储对应的共享客户端，并增加引用，使用结束后需要调用 {@link #release(Entry)}
+     *
+     * @param configuration 会话的配置
+     * @return
+     */
+    public Entry acquire(S3SftpNioSpiConfiguration configuration) {
+        StorageKey key = new StorageKey(configuration);
+        return entries.compute(key, (k, entry) -> {
+            if (entry == null) {
+                logger.info("create shared s3 client for {}", k);
+                entry = new Entry(k);
+            }
+            entry.refCount++;
+            return entry;
+        });
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放后客户端保留 idleTimeout 供新会话复用
+     *
+     * @param entry 共享客户端
+     */
+    public void release(Entry entry) {
+        List<Entry> closing = new ArrayList<>(1);
+        entries.computeIfPresent(entry.key, (k, current) -> {
+            if (current != entry) {
+                return current;
+            }
+            current.refCount--;
+            current.lastReleasedMillis = System.currentTimeMillis();
+            if (current.refCount <= 0 && idleTimeoutMillis == 0) {
+                closing.add(current);
+                return null;
+            }
+            return current;
+        });
+        closing.forEach(Entry::close);
+    }
+
+    /**
+     * 关闭空闲超时的客户端
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<Entry> closing = new ArrayList<>();
+        for (StorageKey key : entries.keySet()) {
+            entries.computeIfPresent(key, (k, entry) -> {
+                if (entry.refCount <= 0 && now - entry.lastReleasedMillis >= idleTimeoutMillis) {
+                    closing.add(entry);
+                    return null;
+                }
+                return entry;
+            });
+        }
+        for (Entry entry : closing) {
+            logger.info("close idle shared s3 client for {}", entry.key);
+            try {
+                entry.close();
+            } catch (RuntimeException e) {
+                logger.warn("close shared s3 client for {} error", entry.key, e);
+            }
+        }
+    }
+
+    /**
+     * 一个存储的共享客户端
+     * 引用计数只在注册表的 compute 中修改
+     */
+    public static final class Entry {
+
+        // 连接和传输参数
+        private final StorageKey key;
+        private final NettyNioAsyncHttpClient nettyHttpClient;
+        private final S3AsyncClient s3Client;
+        // 同一存储的会话并发请求相同对象的元信息和目录列表时合并为一次请求
+        private final SingleFlight<String, ObjectHeadResponse> headRequests = new SingleFlight<>();
+        private final SingleFlight<String, ListObjectsResponse> listRequests = new SingleFlight<>();
+        // 开启自动分片的客户端和传输管理器，第一次使用时创建
+        private S3AsyncClient multipartClient;
+        private S3TransferManager transferManager;
+        private ExecutorService transferExecutor;
+        private int refCount;
+        private long lastReleasedMillis;
+        private boolean closed;
+
+        private Entry(StorageKey key) {
+            this.key = key;
+            // 构建 Netty HTTP 客户端，注入自定义 EventLoopGroup
+            this.nettyHttpClient = (NettyNioAsyncHttpClient) NettyNioAsyncHttpClient.builder()
+                    .eventLoopGroup(NettyEventGroup.customEventLoopGroup()) // 注入自定义线程池
+                    .connectionTimeout(Duration.ofSeconds(10)) // 连接超时
+                    .maxConcurrency(500) // 最大并发连接数（默认 100，可根据线程数调整）
+                    .build();
+            this.s3Client = S3AsyncClient.builder()
+                    .region(Region.of(key.region))
+                    .endpointOverride(key.endpointUri)
+                    .credentialsProvider(StaticCredentialsProvider.create(
+                            AwsBasicCredentials.create(key.accessKey, key.secretKey)
+                    ))
+                    .serviceConfiguration(service -> service
+                            .pathStyleAccessEnabled(true)
+                    ).httpClient(nettyHttpClient)
+                    .build();
+        }
+
+        public S3AsyncClient s3Client() {
+            return s3Client;
+        }
+
+        public SingleFlight<String, ObjectHeadResponse> headRequests() {
+            return headRequests;
+        }
+
+        public SingleFlight<String, ListObjectsResponse> listRequests() {
+            return listRequests;
+        }
+
+        /**
+         * 获取传输管理器，每个共享客户端只创建一个
+         * 传输管理器使用开启自动分片的客户端（与普通客户端共享 Netty HTTP 客户端），大文件自动分片并发传输
+         *
+         * @return
+         */
+        public synchronized S3TransferManager transferManager() {
+            if (closed) {
+                throw new IllegalStateException("s3 client already closed");
+            }
+            if (transferManager == null) {
+                logger.debug("create transfer manager partSize:{},threshold:{},concurrency:{}",
+                        key.transferPartSize, key.transferThreshold, key.transferConcurrency);
+                this.multipartClient = S3AsyncClient.builder()
+                        .region(Region.of(key.region))
+                        .endpointOverride(key.endpointUri)
+                        .credentialsProvider(StaticCredentialsProvider.create(
+                                AwsBasicCredentials.create(key.accessKey, key.secretKey)
+                        ))
+                        .serviceConfiguration(service -> service
+                                .pathStyleAccessEnabled(true)
+                        ).httpClient(nettyHttpClient)
+                        .multipartEnabled(true)
+                        .multipartConfiguration(multipart -> multipart
+                                .minimumPartSizeInBytes(key.transferPartSize)
+                                .thresholdInBytes(key.transferThreshold))
+                        .build();
+                AtomicInteger threadNumber = new AtomicInteger();
+                this.transferExecutor = Executors.newFixedThreadPool(key.transferConcurrency, r -> {
+                    Thread thread = new Thread(r, "sftptos3-transfer-thread-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.transferManager = S3TransferManager.builder()
+                        .s3Client(multipartClient)
+                        .executor(transferExecutor)
+                        .build();
+            }
+            return transferManager;
+        }
+
+        /**
+         * 关闭传输管理器、线程池和连接池，只由注册表在引用归零后调用
+         */
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (transferManager != null) {
+                transferManager.close();
+                multipartClient.close();
+                transferExecutor.shutdown();
+            }
+            s3Client.close();
+            // 传入的 httpClient 不会随 S3AsyncClient 关闭，需要单独关闭（自定义 EventLoopGroup 不会被关闭）
+            nettyHttpClient.close();
+        }
+    }
+
+    /**
+     * 存储标识，创建时从会话配置复制，不可变；传输参数不同的会话使用不同的共享客户端。
+     * toString 不输出密钥
+     */
+    private static final class StorageKey {
+        private final String endpoint;
+        private final URI endpointUri;
+        private final String region;
+        private final String accessKey;
+        private final String secretKey;
+        private final long transferPartSize;
+        private final long transferThreshold;
+        private final int transferConcurrency;
+
+        private StorageKey(S3SftpNioSpiConfiguration configuration) {
+            this.endpoint = configuration.getEndpoint();
+            this.endpointUri = configuration.endpointUri();
+            this.region = configuration.region();
+            this.accessKey = configuration.accessKey();
+            this.secretKey = configuration.secretKey();
+            this.transferPartSize = configuration.getTransferPartSize();
+            this.transferThreshold = configuration.getTransferThreshold();
+            this.transferConcurrency = configuration.getTransferConcurrency();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StorageKey)) {
+                return false;
+            }
+            StorageKey that = (StorageKey) o;
+            return transferPartSize == that.transferPartSize
+                    && transferThreshold == that.transferThreshold
+                    && transferConcurrency == that.transferConcurrency
+                    && Objects.equals(endpoint, that.endpoint)
+                    && Objects.equals(region, that.region)
+                    && Objects.equals(accessKey, that.accessKey)
+                    && Objects.equals(secretKey, that.secretKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, region, accessKey, secretKey, transferPartSize, transferThreshold, transferConcurrency);
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + "(" + region + "," + accessKey + ")";
+        }
+    }
+}
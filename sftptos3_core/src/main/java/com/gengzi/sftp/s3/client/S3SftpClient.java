@@ -3,6 +3,8 @@ package com.gengzi.sftp.s3.client;
 import com.gengzi.sftp.nio.S3SftpNioSpiConfiguration;
 import com.gengzi.sftp.s3.client.entity.ListObjectsResponse;
 import com.gengzi.sftp.s3.client.entity.ObjectHeadResponse;
+import com.gengzi.sftp.util.PooledByteBuffer;
+import org.reactivestreams.Publisher;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -10,6 +12,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -43,9 +46,37 @@ public interface S3SftpClient<T> {
      * @param key        对象key
      * @param offset     偏移量
      * @param length     长度
-     * @return
+     * @return 使用结束后需要 release
+     */
+    CompletableFuture<PooledByteBuffer> getObject(String bucketName, String key, long offset, long length);
+
+
+    /**
+     * 一次范围请求获取连续的多个分片，并按分片大小拆分为多个 ByteBuffer（预读合并请求使用）
+     *
+     * @param bucketName   桶
+     * @param key          对象key
+     * @param offset       偏移量
+     * @param length       长度
+     * @param fragmentSize 分片大小
+     * @param eTag         对象ETag，不为空时只有对象未被修改才返回数据（If-Match），避免缓存混入新旧版本的数据
+     * @return 按顺序拆分后的分片，最后一个分片可能不足 fragmentSize，每个分片使用结束后需要 release
      */
-    CompletableFuture<ByteBuffer> getObject(String bucketName, String key, long offset, long length);
+    CompletableFuture<List<PooledByteBuffer>> getObjectFragments(String bucketName, String key, long offset, long length, int fragmentSize, String eTag);
+
+
+    /**
+     * 以流的方式从对象存储中获取文件内容（顺序读取使用）
+     * 只发起一次范围请求，响应体以 ByteBuffer 分块推送，由订阅方控制拉取速度
+     *
+     * @param bucketName 桶
+     * @param key        对象key
+     * @param offset     偏移量
+     * @param length     长度
+     * @param eTag       对象ETag，与分片读取使用同一个，可以为空
+     * @return 响应头返回后完成，得到响应体的发布者
+     */
+    CompletableFuture<Publisher<ByteBuffer>> getObjectStream(String bucketName, String key, long offset, long length, String eTag);
 
 
     /**
@@ -68,6 +99,16 @@ public interface S3SftpClient<T> {
     CompletableFuture<?> deleteObject(String bucketName, String deletePathKey);
 
 
+    /**
+     * 批量删除对象，一次最多1000个
+     *
+     * @param bucketName
+     * @param keys       要删除的key
+     * @return 删除失败的key，全部成功时为空
+     */
+    CompletableFuture<List<String>> deleteObjects(String bucketName, List<String> keys);
+
+
     /**
      * copy到目标对象
      * @param sourceBucketName
@@ -78,6 +119,17 @@ public interface S3SftpClient<T> {
      */
     CompletableFuture<?> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey);
 
+    /**
+     * copy到目标对象，已知源对象大小时使用，避免复制前再查询一次对象大小
+     * @param sourceBucketName
+     * @param sourceKey
+     * @param destinationBucketName
+     * @param destinationKey
+     * @param sourceSize 源对象大小，小于0表示未知
+     * @return
+     */
+    CompletableFuture<?> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long sourceSize);
+
 
     /**
      * 从对象存储中获取文件内容并保存到本地文件中
@@ -101,6 +153,63 @@ public interface S3SftpClient<T> {
     void putObjectByLocalFile(String bucketName, String key, Path localFile) throws IOException;
 
 
+    /**
+     * 上传内存中的数据到对象存储（小文件使用）
+     *
+     * @param bucketName
+     * @param key
+     * @param content    上传的内容，上传完成前不能修改
+     * @return
+     */
+    CompletableFuture<?> putObject(String bucketName, String key, ByteBuffer content);
+
+
+    /**
+     * 创建分片上传
+     *
+     * @param bucketName
+     * @param key
+     * @return uploadId
+     */
+    CompletableFuture<String> createMultipartUpload(String bucketName, String key);
+
+
+    /**
+     * 上传一个分片
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @param partNumber 分片序号，从1开始
+     * @param content    分片内容，上传完成前不能修改
+     * @return 分片的ETag
+     */
+    CompletableFuture<String> uploadPart(String bucketName, String key, String uploadId, int partNumber, ByteBuffer content);
+
+
+    /**
+     * 完成分片上传
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @param partETags  分片序号和ETag，按分片序号排序
+     * @return
+     */
+    CompletableFuture<?> completeMultipartUpload(String bucketName, String key, String uploadId, SortedMap<Integer, String> partETags);
+
+
+    /**
+     * 取消分片上传，删除已上传的分片
+     *
+     * @param bucketName
+     * @param key
+     * @param uploadId
+     * @return
+     */
+    CompletableFuture<?> abortMultipartUpload(String bucketName, String key, String uploadId);
+
+
     /**
      * 获取当前路径下的所有文件信息
      *
@@ -110,6 +219,26 @@ public interface S3SftpClient<T> {
      */
     CompletableFuture<ListObjectsResponse> getCurrentKeyDirAllListObjects(String bucketName, String prefixKey);
 
+    /**
+     * 分页获取当前路径下的文件信息，每次只获取一页
+     *
+     * @param bucketName
+     * @param prefixKey
+     * @param continuationToken 上一页返回的 nextContinuationToken，第一页传 null
+     * @return 当前页的内容，还有下一页时 truncated 为 true
+     */
+    CompletableFuture<ListObjectsResponse> getCurrentKeyDirListObjectsPage(String bucketName, String prefixKey, String continuationToken);
+
+    /**
+     * 分页获取前缀下的所有对象（不按目录分隔，包含所有子目录下的对象），每次只获取一页
+     *
+     * @param bucketName
+     * @param prefixKey
+     * @param continuationToken 上一页返回的 nextContinuationToken，第一页传 null
+     * @return 当前页的对象，还有下一页时 truncated 为 true
+     */
+    CompletableFuture<ListObjectsResponse> listAllObjectsPage(String bucketName, String prefixKey, String continuationToken);
+
 
     /**
      * 获取对象的基础元信息（支持对象文件或者对象"目录"）
@@ -129,4 +258,11 @@ public interface S3SftpClient<T> {
      * @return 如果无此对象，必须返回 null
      */
     ObjectHeadResponse headObject(String bucketName, String key) throws IOException;
+
+
+    /**
+     * 关闭客户端，释放连接池、线程池等资源
+     * 文件系统关闭时调用，需要支持重复调用
+     */
+    void close();
 }
@@ -23,9 +23,31 @@ public class ListObjectsResponse {
     private Map<String, ObjectHeadResponse> prefixes;
 
 
+    /**
+     * 是否只包含目录的部分内容（判断目录是否存在时只列出前几个），为 true 时不能作为目录的完整列表缓存
+     */
+    private boolean truncated;
+
+    /**
+     * 分页列出时下一页的 continuationToken，没有下一页时为 null
+     */
+    private String nextContinuationToken;
+
+
     public ListObjectsResponse(Map<String, ObjectHeadResponse> objects, Map<String, ObjectHeadResponse> prefixes) {
+        this(objects, prefixes, false);
+    }
+
+    public ListObjectsResponse(Map<String, ObjectHeadResponse> objects, Map<String, ObjectHeadResponse> prefixes, boolean truncated) {
+        this(objects, prefixes, truncated, null);
+    }
+
+    public ListObjectsResponse(Map<String, ObjectHeadResponse> objects, Map<String, ObjectHeadResponse> prefixes,
+                               boolean truncated, String nextContinuationToken) {
         this.objects = objects;
         this.prefixes = prefixes;
+        this.truncated = truncated;
+        this.nextContinuationToken = nextContinuationToken;
     }
 
     /**
@@ -53,4 +75,12 @@ public class ListObjectsResponse {
     public Map<String, ObjectHeadResponse> getPrefixes() {
         return prefixes;
     }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public String getNextContinuationToken() {
+        return nextContinuationToken;
+    }
 }
@@ -13,7 +13,6 @@ import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.session.ServerSession;
 import org.apache.sshd.sftp.server.FileHandle;
 import org.apache.sshd.sftp.server.Handle;
-import org.apache.sshd.sftp.server.SftpSubsystem;
 import org.apache.sshd.sftp.server.SftpSubsystemConfigurator;
 import org.jetbrains.annotations.NotNull;
 
@@ -28,7 +27,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 
-public class AuditSftpSubsystem extends SftpSubsystem {
+public class AuditSftpSubsystem extends S3SftpSubsystem {
 
     // 存放操作审计事件监听器
     private final Collection<AuditEventListener> optAuditEventListeners = new CopyOnWriteArraySet<>();
@@ -187,6 +186,27 @@ public class AuditSftpSubsystem extends SftpSubsystem {
                 "", LocalDateTime.now(), result.sftpAudit.getId());
     }
 
+    /**
+     * 递归删除一个目录（扩展命令），按删除目录审计
+     *
+     * @param id
+     * @param path
+     * @throws IOException
+     */
+    @Override
+    protected void doRemoveTree(int id, String path) throws IOException {
+        Result result = initRemoveOptAudit(path, OptType.DELETE_DIR);
+        try {
+            super.doRemoveTree(id, path);
+        } catch (Exception e) {
+            sftpAuditRepository().updateReadEvent("", OperateStatus.FAILURE.getStatus(),
+                    substringByChars(e.getMessage(), 200), LocalDateTime.now(), result.sftpAudit.getId());
+            throw e;
+        }
+        sftpAuditRepository().updateReadEvent("", OperateStatus.SUCCESS.getStatus(),
+                "", LocalDateTime.now(), result.sftpAudit.getId());
+    }
+
     @Override
     protected void doRemoveFile(int id, String path) throws IOException {
         Result result = initRemoveOptAudit(path, OptType.DELETE_FILE);
@@ -3,7 +3,6 @@ package com.gengzi.sftp.sshd;
 import org.apache.sshd.common.util.GenericUtils;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.command.Command;
-import org.apache.sshd.sftp.server.SftpSubsystemFactory;
 
 import java.io.IOException;
 
@@ -11,7 +10,7 @@ import java.io.IOException;
  * 用于创建带审计功能的sftp系统工厂类
  *
  */
-public class AuditSftpSubsystemFactory extends SftpSubsystemFactory {
+public class AuditSftpSubsystemFactory extends S3SftpSubsystemFactory {
 
 
     /**
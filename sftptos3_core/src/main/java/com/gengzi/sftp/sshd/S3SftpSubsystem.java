@@ -0,0 +1,131 @@
+package com.gengzi.sftp.sshd;
+
+import com.gengzi.sftp.nio.S3SftpFileSystemProvider;
+import com.gengzi.sftp.nio.S3SftpPath;
+import org.apache.sshd.common.OptionalFeature;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystem;
+import org.apache.sshd.sftp.server.SftpSubsystemConfigurator;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * s3存储的sftp子系统
+ * <p>
+ * 在标准 sftp 协议之外提供递归删除目录的扩展命令 {@value #REMOVE_TREE_EXTENSION}，
+ * 请求内容为一个路径字符串，成功时返回 SSH_FX_OK。
+ * 客户端使用该扩展删除目录树时，服务端按批量删除，不需要客户端逐级列出目录、逐个删除文件
+ */
+public class S3SftpSubsystem extends SftpSubsystem {
+
+    // 递归删除目录的扩展命令名称
+    public static final String REMOVE_TREE_EXTENSION = "remove-tree@sftptos3";
+
+    /**
+     * @param channel      The {@link ChannelSession} through which the command was received
+     * @param configurator The {@link SftpSubsystemConfigurator} to use
+     */
+    public S3SftpSubsystem(ChannelSession channel, SftpSubsystemConfigurator configurator) {
+        super(channel, configurator);
+    }
+
+    /**
+     * 在版本协商时向客户端声明支持的扩展命令
+     *
+     * @param session
+     * @return
+     */
+    @Override
+    protected Map<String, OptionalFeature> getSupportedClientExtensions(ServerSession session) {
+        Map<String, OptionalFeature> extensions = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        extensions.putAll(super.getSupportedClientExtensions(session));
+        extensions.put(REMOVE_TREE_EXTENSION, OptionalFeature.TRUE);
+        return extensions;
+    }
+
+    @Override
+    protected void executeExtendedCommand(Buffer buffer, int id, String extension) throws IOException {
+        if (REMOVE_TREE_EXTENSION.equals(extension)) {
+            doRemoveTree(buffer, id);
+            return;
+        }
+        super.executeExtendedCommand(buffer, id, extension);
+    }
+
+    protected void doRemoveTree(Buffer buffer, int id) throws IOException {
+        String path = buffer.getString();
+        try {
+            doRemoveTree(id, path);
+        } catch (IOException | RuntimeException e) {
+            sendStatus(prepareReply(buffer), id, e, SftpConstants.SSH_FXP_EXTENDED, REMOVE_TREE_EXTENSION, path);
+            return;
+        }
+        sendStatus(prepareReply(buffer), id, SftpConstants.SSH_FX_OK, "");
+    }
+
+    /**
+     * 递归删除目录
+     *
+     * @param id
+     * @param path 目录
+     * @throws IOException
+     */
+    protected void doRemoveTree(int id, String path) throws IOException {
+        Path p = resolveFile(path);
+        if (!Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+            throw new NotDirectoryException(p.toString());
+        }
+        ServerSession session = getServerSession();
+        SftpEventListener listener = getSftpEventListenerProxy();
+        listener.removing(session, p, true);
+        try {
+            if (p instanceof S3SftpPath) {
+                ((S3SftpFileSystemProvider) p.getFileSystem().provider()).deleteTree(p);
+            } else {
+                deleteLocalTree(p);
+            }
+        } catch (IOException | RuntimeException e) {
+            listener.removed(session, p, true, e);
+            throw e;
+        }
+        listener.removed(session, p, true, null);
+    }
+
+    /**
+     * 本地存储时逐个删除
+     *
+     * @param dir
+     * @throws IOException
+     */
+    private static void deleteLocalTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,29 @@
+package com.gengzi.sftp.sshd;
+
+import org.apache.sshd.common.util.GenericUtils;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.IOException;
+
+/**
+ * 用于创建s3存储sftp子系统的工厂类
+ *
+ */
+public class S3SftpSubsystemFactory extends SftpSubsystemFactory {
+
+
+    /**
+     * 只重写创建子系统类的方法
+     * @param channel     The {@link ChannelSession} through which the command has been received
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public Command createSubsystem(ChannelSession channel) throws IOException {
+        S3SftpSubsystem subsystem = new S3SftpSubsystem(channel, this);
+        GenericUtils.forEach(getRegisteredListeners(), subsystem::addSftpEventListener);
+        return subsystem;
+    }
+}
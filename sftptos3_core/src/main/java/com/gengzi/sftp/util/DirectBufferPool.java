@@ -0,0 +1,264 @@
+package com.gengzi.sftp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按大小分级的堆外缓冲区池（所有读通道共享）
+ * <p>
+ * 容量按2的幂分级（4kb ~ 最大级别，下载默认8mb，上传默认128mb），每一级维护空闲队列；已分配的堆外内存总量不超过 maxBytes，
+ * 超出预算或超过最大级别时退回使用堆内缓冲区。缓冲区只在池内复用，不再通过反射调用 cleaner 释放。
+ * 下载分片和上传分片使用两个独立的池，并发上传不会占满下载的预算；
+ * 上传使用带等待的 acquire，预算不足时等待其他分片归还而不是退回堆内，上传占用的内存不超过预算
+ */
+public final class DirectBufferPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectBufferPool.class);
+
+    // 最小级别 4kb
+    private static final int MIN_CLASS_SHIFT = 12;
+    // 默认最大级别 8mb
+    private static final int MAX_CLASS_SHIFT = 23;
+    // 上传池的最大级别 128mb，与上传分片增长的上限一致
+    private static final int UPLOAD_MAX_CLASS_SHIFT = 27;
+    // 等待预算时重新检查的间隔
+    private static final long BUDGET_WAIT_MILLIS = 100;
+    // 默认堆外内存预算 256mb
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    // 默认上传使用的堆外内存预算 128mb
+    public static final long DEFAULT_UPLOAD_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static volatile DirectBufferPool shared = new DirectBufferPool(DEFAULT_MAX_BYTES);
+    private static volatile DirectBufferPool uploadShared = new DirectBufferPool(DEFAULT_UPLOAD_MAX_BYTES, 1 << UPLOAD_MAX_CLASS_SHIFT);
+
+    private final long maxBytes;
+    private final int maxClassShift;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+    // 已分配的堆外内存（包括使用中和空闲的）
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    // 使用中（未归还）的堆外内存
+    private final AtomicLong usedBytes = new AtomicLong();
+    // 等待预算的线程数，没有等待时归还缓冲区不需要唤醒
+    private final AtomicInteger budgetWaiters = new AtomicInteger();
+
+    public DirectBufferPool(long maxBytes) {
+        this(maxBytes, 1 << MAX_CLASS_SHIFT);
+    }
+
+    /**
+     * @param maxBytes     最大堆外内存字节数
+     * @param maxClassSize 最大级别的容量，向下取2的幂，且不超过 maxBytes
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long maxBytes, int maxClassSize) {
+        this.maxBytes = maxBytes;
+        int shift = 31 - Integer.numberOfLeadingZeros(Math.max(1, maxClassSize));
+        while (shift > MIN_CLASS_SHIFT && (1L << shift) > maxBytes) {
+            shift--;
+        }
+        this.maxClassShift = Math.max(MIN_CLASS_SHIFT, shift);
+        this.freeLists = new ConcurrentLinkedQueue[maxClassShift - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * 全局共享的缓冲区池
+     *
+     * @return
+     */
+    public static DirectBufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * 流式上传分片使用的缓冲区池
+     *
+     * @return
+     */
+    public static DirectBufferPool uploadShared() {
+        return uploadShared;
+    }
+
+    /**
+     * 设置上传缓冲区池的堆外内存预算，需要在服务启动时调用
+     *
+     * @param maxBytes 最大堆外内存字节数
+     */
+    public static void configureUpload(long maxBytes) {
+        logger.info("upload direct buffer pool max bytes:{}", maxBytes);
+        uploadShared = new DirectBufferPool(maxBytes, 1 << UPLOAD_MAX_CLASS_SHIFT);
+    }
+
+    /**
+     * 设置全局缓冲区池的堆外内存预算，需要在服务启动时调用
+     *
+     * @param maxBytes 最大堆外内存字节数
+     */
+    public static void configure(long maxBytes) {
+        logger.info("direct buffer pool max bytes:{}", maxBytes);
+        shared = new DirectBufferPool(maxBytes);
+    }
+
+    /**
+     * 获取一个至少 capacity 大小的缓冲区，limit 设置为 capacity
+     *
+     * @param capacity 需要的容量
+     * @return 使用结束后需要 release
+     */
+    public PooledByteBuffer acquire(int capacity) {
+        int classIndex = classIndex(capacity);
+        PooledByteBuffer pooled = classIndex < 0 ? null : tryAcquire(classIndex, capacity);
+        if (pooled == null) {
+            logger.debug("direct buffer pool exhausted, fall back to heap buffer, capacity:{}", capacity);
+            return PooledByteBuffer.unpooled(ByteBuffer.allocate(capacity));
+        }
+        return pooled;
+    }
+
+    /**
+     * 获取一个至少 capacity 大小的堆外缓冲区，预算不足时等待其他缓冲区归还，不退回堆内缓冲区。
+     * 等待时丢弃其他级别的空闲缓冲区（交给GC回收）腾出预算；超过最大级别时同 {@link #acquire(int)}
+     *
+     * @param capacity 需要的容量
+     * @param timeout  最长等待时间
+     * @param unit     时间单位
+     * @return 使用结束后需要 release，超时返回 null
+     * @throws InterruptedException
+     */
+    public PooledByteBuffer acquire(int capacity, long timeout, TimeUnit unit) throws InterruptedException {
+        int classIndex = classIndex(capacity);
+        if (classIndex < 0) {
+            return acquire(capacity);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        budgetWaiters.incrementAndGet();
+        try {
+            for (; ; ) {
+                PooledByteBuffer pooled = tryAcquire(classIndex, capacity);
+                if (pooled == null && trimFreeLists(classIndex)) {
+                    pooled = tryAcquire(classIndex, capacity);
+                }
+                if (pooled != null) {
+                    return pooled;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                synchronized (budgetWaiters) {
+                    budgetWaiters.wait(Math.max(1, Math.min(BUDGET_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining))));
+                }
+            }
+        } finally {
+            budgetWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 从空闲队列或者剩余预算中获取缓冲区，预算不足时返回 null
+     */
+    private PooledByteBuffer tryAcquire(int classIndex, int capacity) {
+        ByteBuffer buffer = freeLists[classIndex].poll();
+        if (buffer == null) {
+            int classSize = 1 << (classIndex + MIN_CLASS_SHIFT);
+            if (allocatedBytes.addAndGet(classSize) > maxBytes) {
+                allocatedBytes.addAndGet(-classSize);
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(classSize);
+        }
+        usedBytes.addAndGet(buffer.capacity());
+        buffer.clear().limit(capacity);
+        return new PooledByteBuffer(buffer, this);
+    }
+
+    /**
+     * 丢弃其他级别的空闲缓冲区，直到剩余预算足够分配一个 classIndex 级别的缓冲区
+     *
+     * @return 是否丢弃了空闲缓冲区
+     */
+    private boolean trimFreeLists(int classIndex) {
+        int classSize = 1 << (classIndex + MIN_CLASS_SHIFT);
+        boolean trimmed = false;
+        for (int i = 0; i < freeLists.length && allocatedBytes.get() + classSize > maxBytes; i++) {
+            if (i == classIndex) {
+                continue;
+            }
+            ByteBuffer buffer;
+            while (allocatedBytes.get() + classSize > maxBytes && (buffer = freeLists[i].poll()) != null) {
+                allocatedBytes.addAndGet(-buffer.capacity());
+                trimmed = true;
+            }
+        }
+        return trimmed;
+    }
+
+    /**
+     * 归还缓冲区
+     *
+     * @param buffer
+     */
+    void recycle(ByteBuffer buffer) {
+        int classIndex = classIndex(buffer.capacity());
+        if (classIndex < 0 || (1 << (classIndex + MIN_CLASS_SHIFT)) != buffer.capacity()) {
+            return;
+        }
+        usedBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        freeLists[classIndex].offer(buffer);
+        if (budgetWaiters.get() > 0) {
+            synchronized (budgetWaiters) {
+                budgetWaiters.notifyAll();
+            }
+        }
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * 使用中的堆外内存，已分配但空闲的缓冲区不计入
+     *
+     * @return
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 最大级别的容量，超过该容量的缓冲区不在池内分配
+     *
+     * @return
+     */
+    public int maxClassSize() {
+        return 1 << maxClassShift;
+    }
+
+    /**
+     * 计算容量所属的级别，超过最大级别返回 -1
+     *
+     * @param capacity
+     * @return
+     */
+    private int classIndex(int capacity) {
+        if (capacity > (1 << maxClassShift)) {
+            return -1;
+        }
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
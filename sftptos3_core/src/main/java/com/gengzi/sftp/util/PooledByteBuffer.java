@@ -0,0 +1,106 @@
+package com.gengzi.sftp.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带引用计数的缓冲区
+ * <p>
+ * 创建时引用计数为1，最后一次 release 后缓冲区归还到 {@link DirectBufferPool}（堆内缓冲区直接交给GC）。
+ * 多个线程同时读取时，读取方先 tryRetain 再通过 {@link #duplicate()} 读取，读取结束后 release，
+ * 避免缓冲区在读取过程中被归还并被其他请求复用
+ */
+public final class PooledByteBuffer {
+
+    private final ByteBuffer buffer;
+    private final DirectBufferPool pool;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    PooledByteBuffer(ByteBuffer buffer, DirectBufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * 包装一个非池化的缓冲区
+     *
+     * @param buffer
+     * @return
+     */
+    public static PooledByteBuffer unpooled(ByteBuffer buffer) {
+        return new PooledByteBuffer(buffer, null);
+    }
+
+    /**
+     * 底层缓冲区，写入数据时使用
+     *
+     * @return
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * 独立 position/limit 的只读视图，读取数据时使用
+     *
+     * @return
+     */
+    public ByteBuffer duplicate() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * 增加引用，缓冲区已经释放时返回false
+     *
+     * @return
+     */
+    public boolean tryRetain() {
+        for (; ; ) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                return false;
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 增加引用
+     *
+     * @return
+     */
+    public PooledByteBuffer retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("buffer already released");
+        }
+        return this;
+    }
+
+    /**
+     * 释放引用，引用计数归零时归还缓冲区
+     */
+    public void release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            if (pool != null) {
+                pool.recycle(buffer);
+            }
+        } else if (cnt < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
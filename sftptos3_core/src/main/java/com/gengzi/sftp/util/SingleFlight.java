@@ -0,0 +1,116 @@
+package com.gengzi.sftp.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并
+ * <p>
+ * 同一个 key 同时只有一个请求在执行，执行期间相同 key 的请求直接等待同一个 future，
+ * 请求结束后从 in-flight 表中移除，结果不做缓存（缓存由调用方负责）
+ *
+ * @param <K> 请求key
+ * @param <V> 请求结果
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 合并异步请求
+     *
+     * @param key  请求key
+     * @param call 没有相同请求在执行时发起请求
+     * @return 请求结果，相同 key 的并发调用返回同一个 future
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> leader = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            call.get().whenComplete((value, throwable) -> complete(key, leader, value, throwable));
+        } catch (Throwable t) {
+            complete(key, leader, null, t);
+        }
+        return leader;
+    }
+
+    /**
+     * 合并同步请求，第一个调用方在当前线程执行请求，其他调用方等待结果
+     *
+     * @param key      请求key
+     * @param call     请求
+     * @param timeout  等待超时时间
+     * @param timeUnit 超时时间单位
+     * @return 请求结果
+     * @throws IOException 请求抛出的异常（同一个异常实例会抛给所有等待者）或等待超时
+     */
+    public V execute(K key, Callable<V> call, long timeout, TimeUnit timeUnit) throws IOException {
+        CompletableFuture<V> leader = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, leader);
+        if (existing == null) {
+            V value = null;
+            Throwable throwable = null;
+            try {
+                value = call.call();
+                return value;
+            } catch (Throwable t) {
+                throwable = t;
+                throw t instanceof IOException ? (IOException) t : new IOException(t);
+            } finally {
+                complete(key, leader, value, throwable);
+            }
+        }
+        try {
+            return existing.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException("waiting for in-flight request " + key + " timeout", e);
+        }
+    }
+
+    /**
+     * 当前执行中的请求数
+     *
+     * @return
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void complete(K key, CompletableFuture<V> leader, V value, Throwable throwable) {
+        // 先移除再完成，完成之后到达的请求会重新发起
+        inFlight.remove(key, leader);
+        if (throwable != null) {
+            leader.completeExceptionally(throwable);
+        } else {
+            leader.complete(value);
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof UncheckedIOException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+}
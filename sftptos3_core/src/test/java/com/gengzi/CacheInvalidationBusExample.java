@@ -0,0 +1,49 @@
+package com.gengzi;
+
+import com.gengzi.sftp.cache.CacheInvalidationBus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机模拟多个节点的缓存失效广播
+ * <p>
+ * 参数：[节点数] [起始端口]，例如：3 17070
+ * 每个节点都把所有节点（包括自己）作为对等节点，由一个节点发出失效消息，其他节点都应该收到且自己不会收到
+ */
+public class CacheInvalidationBusExample {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int basePort = args.length > 1 ? Integer.parseInt(args[1]) : 17070;
+
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            peers.add("127.0.0.1:" + (basePort + i));
+        }
+        CountDownLatch received = new CountDownLatch(nodes - 1);
+        List<CacheInvalidationBus> buses = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            int node = i;
+            buses.add(new CacheInvalidationBus(basePort + i, peers, invalidation -> {
+                System.out.printf("node %d received: %s%n", node, invalidation);
+                if (node == 0) {
+                    System.out.println("node 0 received its own invalidation");
+                }
+                received.countDown();
+            }));
+        }
+        try {
+            buses.get(0).send(new CacheInvalidationBus.Invalidation(
+                    CacheInvalidationBus.Type.TREE, "http://127.0.0.1:9000/image", "home/admin/dir/"));
+            boolean all = received.await(5, TimeUnit.SECONDS);
+            System.out.println(all ? "all peers invalidated" : "some peers did not receive the invalidation");
+        } finally {
+            for (CacheInvalidationBus bus : buses) {
+                bus.close();
+            }
+        }
+    }
+}
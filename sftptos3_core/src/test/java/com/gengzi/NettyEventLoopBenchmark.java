@@ -0,0 +1,91 @@
+package com.gengzi;
+
+import com.gengzi.sftp.config.NettyEventGroup;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 比较不同 Netty IO 线程数下 s3 下载吞吐量
+ * <p>
+ * 需要一个本地的 s3 兼容服务（如 minio），参数：
+ * [endpoint] [线程数,逗号分隔] [是否epoll]
+ * 例如：http://127.0.0.1:9000 1,2,4,8,16,100 false
+ */
+public class NettyEventLoopBenchmark {
+
+    private static final String ACCESS_KEY = "minioadmin";
+    private static final String SECRET_KEY = "minioadmin";
+    private static final String BUCKET_NAME = "image";
+    private static final String OBJECT_KEY = "benchmark/netty-event-loop.bin";
+    // 测试对象 8mb
+    private static final int OBJECT_SIZE = 8 * 1024 * 1024;
+    // 同时发起的下载数和每轮总下载数
+    private static final int CONCURRENCY = 64;
+    private static final int REQUESTS = 512;
+
+    public static void main(String[] args) throws Exception {
+        String endpoint = args.length > 0 ? args[0] : "http://127.0.0.1:9000";
+        String threadsArg = args.length > 1 ? args[1] : "1,2,4," + NettyEventGroup.defaultThreads() + ",100";
+        boolean nativeTransport = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        for (String threadCount : threadsArg.split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            SdkEventLoopGroup group = NettyEventGroup.create(threads, nativeTransport);
+            SdkAsyncHttpClient httpClient = NettyNioAsyncHttpClient.builder()
+                    .eventLoopGroup(group)
+                    .connectionTimeout(Duration.ofSeconds(10))
+                    .maxConcurrency(500)
+                    .build();
+            S3AsyncClient s3Client = S3AsyncClient.builder()
+                    .region(Region.US_EAST_1)
+                    .endpointOverride(URI.create(endpoint))
+                    .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(ACCESS_KEY, SECRET_KEY)))
+                    .serviceConfiguration(service -> service.pathStyleAccessEnabled(true))
+                    .httpClient(httpClient)
+                    .build();
+            try {
+                s3Client.putObject(b -> b.bucket(BUCKET_NAME).key(OBJECT_KEY),
+                        AsyncRequestBody.fromBytes(new byte[OBJECT_SIZE])).join();
+                // 预热连接池
+                run(s3Client, CONCURRENCY, CONCURRENCY);
+                long start = System.nanoTime();
+                long bytes = run(s3Client, REQUESTS, CONCURRENCY);
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                System.out.printf("threads=%d epoll=%s throughput=%.1f MB/s requests/s=%.1f%n",
+                        threads, nativeTransport, bytes / seconds / 1024 / 1024, REQUESTS / seconds);
+            } finally {
+                s3Client.close();
+                httpClient.close();
+                group.eventLoopGroup().shutdownGracefully().syncUninterruptibly();
+            }
+        }
+    }
+
+    private static long run(S3AsyncClient s3Client, int requests, int concurrency) {
+        long bytes = 0;
+        for (int done = 0; done < requests; done += concurrency) {
+            List<CompletableFuture<Integer>> batch = new ArrayList<>();
+            for (int i = 0; i < Math.min(concurrency, requests - done); i++) {
+                batch.add(s3Client.getObject(b -> b.bucket(BUCKET_NAME).key(OBJECT_KEY),
+                        AsyncResponseTransformer.toBytes()).thenApply(response -> response.asByteArray().length));
+            }
+            for (CompletableFuture<Integer> future : batch) {
+                bytes += future.join();
+            }
+        }
+        return bytes;
+    }
+}